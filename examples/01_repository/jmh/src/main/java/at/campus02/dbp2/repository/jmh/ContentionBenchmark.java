@@ -0,0 +1,103 @@
+package at.campus02.dbp2.repository.jmh;
+
+import at.campus02.dbp2.repository.ConnectionPool;
+import at.campus02.dbp2.repository.Customer;
+import at.campus02.dbp2.repository.JDBCRepository;
+import at.campus02.dbp2.repository.RetryPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Read-modify-write of the same customers from several threads (JDBCRepository, pooled):
+ * optimistic (read, update with version check, retry on conflict) against pessimistic
+ * (SELECT ... FOR UPDATE, other writers wait). The fewer hot customers, the more conflicts.
+ * <p>
+ * Run with several threads, e.g. {@code -Pjmh.threads=1,4,8 -Pjmh.args="ContentionBenchmark"}.
+ * The retries per operation are reported as secondary result {@code retries}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+
+    private static final Consumer<Customer> INCREMENT =
+            customer -> customer.setFirstname(String.valueOf(Integer.parseInt(customer.getFirstname()) + 1));
+
+    @Param({"OPTIMISTIC", "PESSIMISTIC"})
+    public String locking;
+
+    @Param({"1", "10", "1000"})
+    public int hotCustomers;
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private JDBCRepository repository;
+    private RetryPolicy retryPolicy;
+    private String jdbcUrl;
+
+    /**
+     * Counted per thread, JMH sums them up.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Conflicts {
+        public long retries;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        jdbcUrl = "jdbc:derby:memory:contention" + databases.incrementAndGet();
+        repository = new JDBCRepository(new ConnectionPool(jdbcUrl + ";create=true", 1, 16, 60_000, 60_000));
+        retryPolicy = new RetryPolicy(Integer.MAX_VALUE, 1);
+        List<Customer> customers = new ArrayList<>(hotCustomers);
+        for (int i = 0; i < hotCustomers; i++) {
+            Customer customer = new Customer();
+            customer.setEmail(i + "@mail.com");
+            customer.setFirstname("0");
+            customer.setLastname("Customer");
+            customers.add(customer);
+        }
+        repository.createAll(customers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        repository.close();
+        try {
+            DriverManager.getConnection(jdbcUrl + ";drop=true").close();
+        } catch (SQLException e) {
+            // 08006: database dropped
+            if (!"08006".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+    }
+
+    @Benchmark
+    public void increment(Conflicts conflicts) {
+        String email = ThreadLocalRandom.current().nextInt(hotCustomers) + "@mail.com";
+        if ("PESSIMISTIC".equals(locking)) {
+            repository.updateLocked(email, INCREMENT);
+            return;
+        }
+        int[] attempts = {0};
+        retryPolicy.run(() -> {
+            attempts[0]++;
+            Customer customer = repository.read(email);
+            INCREMENT.accept(customer);
+            repository.update(customer);
+        });
+        conflicts.retries += attempts[0] - 1;
+    }
+}
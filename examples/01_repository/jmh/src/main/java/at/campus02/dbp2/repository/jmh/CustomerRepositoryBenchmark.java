@@ -0,0 +1,214 @@
+package at.campus02.dbp2.repository.jmh;
+
+import at.campus02.dbp2.repository.ConcurrentInMemoryRepository;
+import at.campus02.dbp2.repository.ConnectionPool;
+import at.campus02.dbp2.repository.Customer;
+import at.campus02.dbp2.repository.CustomerRepository;
+import at.campus02.dbp2.repository.InMemoryRepository;
+import at.campus02.dbp2.repository.JDBCRepository;
+import at.campus02.dbp2.repository.JPARepository;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CRUD and a read-heavy mix against every CustomerRepository implementation.
+ * <p>
+ * Throughput and sampled latency (percentiles) per operation, the thread count is set by
+ * {@link RunBenchmarks}. InMemoryRepository and JPARepository with one entity manager are not
+ * thread-safe, they run behind one lock; that is what sharing them between threads costs.
+ * JPAPerOperation is a JPARepository with a short-lived entity manager per operation, without lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CustomerRepositoryBenchmark {
+
+    @Param({"InMemory", "ConcurrentInMemory", "JDBC", "JPA", "JPAPerOperation"})
+    public String implementation;
+
+    @Param({"1000", "100000"})
+    public int customers;
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private CustomerRepository repository;
+    private AutoCloseable closeable;
+    private EntityManagerFactory factory;
+    private String jdbcUrl;
+    // every created customer gets a new email, also across threads
+    private final AtomicInteger created = new AtomicInteger();
+
+    private static Customer customer(String email, String firstname) {
+        Customer customer = new Customer();
+        customer.setEmail(email);
+        customer.setFirstname(firstname);
+        customer.setLastname("Customer");
+        return customer;
+    }
+
+    private static String existingEmail(int customers) {
+        return ThreadLocalRandom.current().nextInt(customers) + "@mail.com";
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (implementation) {
+            case "InMemory":
+                repository = new SynchronizedRepository(new InMemoryRepository());
+                break;
+            case "ConcurrentInMemory":
+                repository = new ConcurrentInMemoryRepository(customers);
+                break;
+            case "JDBC":
+                jdbcUrl = "jdbc:derby:memory:jmh" + databases.incrementAndGet();
+                JDBCRepository jdbc = new JDBCRepository(new ConnectionPool(jdbcUrl + ";create=true", 1, 16, 60_000, 60_000));
+                repository = jdbc;
+                closeable = jdbc;
+                break;
+            case "JPA":
+                // the persistence unit drops and creates the table, every trial starts empty
+                JPARepository jpa = new JPARepository();
+                repository = new SynchronizedRepository(jpa);
+                closeable = jpa;
+                break;
+            case "JPAPerOperation":
+                factory = Persistence.createEntityManagerFactory("nameOfJpaPersistenceUnit");
+                repository = new JPARepository(factory);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation " + implementation);
+        }
+
+        List<Customer> initial = new ArrayList<>(customers);
+        for (int i = 0; i < customers; i++) {
+            initial.add(customer(i + "@mail.com", "Carlo"));
+        }
+        repository.createAll(initial);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (closeable != null) {
+            closeable.close();
+        }
+        if (factory != null) {
+            factory.close();
+        }
+        if (jdbcUrl != null) {
+            try {
+                DriverManager.getConnection(jdbcUrl + ";drop=true").close();
+            } catch (SQLException e) {
+                // 08006: database dropped
+                if (!"08006".equals(e.getSQLState())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void create() {
+        repository.create(customer("new-" + created.incrementAndGet() + "@mail.com", "Carlo"));
+    }
+
+    @Benchmark
+    public Customer read() {
+        return repository.read(existingEmail(customers));
+    }
+
+    @Benchmark
+    public void update() {
+        repository.update(customer(existingEmail(customers), "Conrad"));
+    }
+
+    /**
+     * Deletes an existing customer and creates it again, so the data set keeps its size.
+     * Every thread uses its own customers, two threads never create the same email.
+     */
+    @Benchmark
+    public void deleteAndCreate(ThreadParams thread) {
+        int perThread = Math.max(1, customers / thread.getThreadCount());
+        int number = thread.getThreadIndex() + thread.getThreadCount() * ThreadLocalRandom.current().nextInt(perThread);
+        String email = number % customers + "@mail.com";
+        if (repository instanceof SynchronizedRepository) {
+            // JPARepository.read detaches the customers other threads have read, keep read and delete together
+            synchronized (repository) {
+                deleteAndCreate(email);
+            }
+        } else {
+            deleteAndCreate(email);
+        }
+    }
+
+    private void deleteAndCreate(String email) {
+        Customer existing = repository.read(email);
+        if (existing != null) {
+            repository.delete(existing);
+            repository.create(customer(email, existing.getFirstname()));
+        }
+    }
+
+    /**
+     * 90% reads, 10% updates.
+     */
+    @Benchmark
+    public Customer readHeavy() {
+        String email = existingEmail(customers);
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            repository.update(customer(email, "Conrad"));
+            return null;
+        }
+        return repository.read(email);
+    }
+
+    /**
+     * Serializes every call, for implementations that must not be used by several threads at once.
+     */
+    private static class SynchronizedRepository implements CustomerRepository {
+        private final CustomerRepository delegate;
+
+        SynchronizedRepository(CustomerRepository delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void create(Customer customer) {
+            delegate.create(customer);
+        }
+
+        @Override
+        public synchronized Customer read(String email) {
+            return delegate.read(email);
+        }
+
+        @Override
+        public synchronized void update(Customer customer) {
+            delegate.update(customer);
+        }
+
+        @Override
+        public synchronized void delete(Customer customer) {
+            delegate.delete(customer);
+        }
+
+        @Override
+        public synchronized void createAll(Collection<Customer> customers) {
+            delegate.createAll(customers);
+        }
+    }
+}
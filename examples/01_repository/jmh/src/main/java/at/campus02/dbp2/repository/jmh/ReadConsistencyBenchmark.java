@@ -0,0 +1,90 @@
+package at.campus02.dbp2.repository.jmh;
+
+import at.campus02.dbp2.repository.Customer;
+import at.campus02.dbp2.repository.JPARepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read latency and allocation of JPARepository.read with every {@link JPARepository.ReadConsistency}.
+ * <p>
+ * The repository uses one entity manager and must not be shared by threads, run with
+ * {@code -Pjmh.threads=1}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ReadConsistencyBenchmark {
+
+    @Param({"CLEAR", "REFRESH", "DETACH"})
+    public JPARepository.ReadConsistency consistency;
+
+    @Param({"1000"})
+    public int customers;
+
+    private JPARepository repository;
+
+    private static Customer customer(String email, String firstname) {
+        Customer customer = new Customer();
+        customer.setEmail(email);
+        customer.setFirstname(firstname);
+        customer.setLastname("Customer");
+        return customer;
+    }
+
+    private String existingEmail() {
+        return ThreadLocalRandom.current().nextInt(customers) + "@mail.com";
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // the persistence unit drops and creates the table, every trial starts empty
+        repository = new JPARepository();
+        List<Customer> initial = new ArrayList<>(customers);
+        for (int i = 0; i < customers; i++) {
+            initial.add(customer(i + "@mail.com", "Carlo"));
+        }
+        repository.createAll(initial);
+        repository.setReadConsistency(consistency);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repository.close();
+    }
+
+    @Benchmark
+    public Customer read() {
+        return repository.read(existingEmail());
+    }
+
+    /**
+     * 90% reads, 10% updates.
+     */
+    @Benchmark
+    public Customer readHeavy() {
+        String email = existingEmail();
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            repository.update(customer(email, "Conrad"));
+            return null;
+        }
+        return repository.read(email);
+    }
+
+    /**
+     * The read that CLEAR makes expensive: the customer was just written through the same manager.
+     */
+    @Benchmark
+    public Customer readAfterUpdate() {
+        String email = existingEmail();
+        repository.update(customer(email, "Conrad"));
+        return repository.read(email);
+    }
+}
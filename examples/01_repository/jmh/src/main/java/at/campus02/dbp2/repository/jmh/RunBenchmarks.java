@@ -0,0 +1,32 @@
+package at.campus02.dbp2.repository.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count of the system property {@code jmh.threads}
+ * (default 1,2,4), always with the GC profiler for the allocation rate.
+ * <p>
+ * The arguments are regular JMH options, e.g. {@code read -p implementation=JDBC} or {@code -rf json}.
+ */
+public class RunBenchmarks {
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (String threads : System.getProperty("jmh.threads", "1,2,4").split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .addProfiler(GCProfiler.class);
+            if (commandLine.getIncludes().isEmpty()) {
+                options.include(CustomerRepositoryBenchmark.class.getSimpleName());
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
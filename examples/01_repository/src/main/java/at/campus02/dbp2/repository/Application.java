@@ -13,6 +13,9 @@ public class Application {
 
 //        CustomerRepository repository = new InMemoryRepository();
 
+            // thread-safe in-memory variant, can be shared between threads
+//        CustomerRepository repository = new ConcurrentInMemoryRepository();
+
             // if database doesn't exist, will be created by derby
 //        CustomerRepository repository = new JDBCRepository("jdbc:derby:database;create=true");
         CustomerRepository repository = new JPARepository();
@@ -0,0 +1,210 @@
+package at.campus02.dbp2.repository;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade of a CustomerRepository: every method returns at once, the blocking call of the
+ * underlying repository runs on a virtual thread (Java 21 and later) or, without virtual threads, on a
+ * pool of {@code maxConcurrent} platform threads. At most {@code maxConcurrent} calls run at the same time,
+ * the others wait for a permit - on a virtual thread that costs no platform thread.
+ * <p>
+ * The underlying repository must be usable by several threads at once, e.g. JDBCRepository with a
+ * ConnectionPool or JPARepository with an EntityManagerFactory. A failed call completes the future
+ * exceptionally with the exception of the underlying repository, a call after close with an
+ * IllegalStateException.
+ */
+public class AsyncCustomerRepository implements AutoCloseable {
+
+    private final CustomerRepository delegate;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private volatile boolean closed;
+
+    //#region statistics
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peakRunning = new AtomicInteger();
+    //#endregion
+
+    /**
+     * @param maxConcurrent calls of the underlying repository running at once, e.g. the size of its connection pool
+     */
+    public AsyncCustomerRepository(CustomerRepository delegate, int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1: " + maxConcurrent);
+        }
+        this.delegate = delegate;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        this.virtual = virtualThreads != null;
+        this.executor = virtual ? virtualThreads : Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+            Thread thread = new Thread(runnable, "AsyncCustomerRepository worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() if the running Java has it (the code is compiled for
+     * an older one), otherwise null. Before Java 21 it is a preview feature and throws.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public CompletableFuture<Void> create(Customer customer) {
+        return submit(() -> {
+            delegate.create(customer);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Customer> read(String email) {
+        return submit(() -> delegate.read(email));
+    }
+
+    public CompletableFuture<Void> update(Customer customer) {
+        return submit(() -> {
+            delegate.update(customer);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> delete(Customer customer) {
+        return submit(() -> {
+            delegate.delete(customer);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> createAll(Collection<Customer> customers) {
+        return submit(() -> {
+            delegate.createAll(customers);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> updateAll(Collection<Customer> customers) {
+        return submit(() -> {
+            delegate.updateAll(customers);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteAll(Collection<Customer> customers) {
+        return submit(() -> {
+            delegate.deleteAll(customers);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> call) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Repository is closed"));
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // only close interrupts, the call is not started
+                    future.completeExceptionally(new IllegalStateException("Repository is closed", e));
+                    return;
+                }
+                try {
+                    peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    running.decrementAndGet();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed after the check above
+            future.completeExceptionally(new IllegalStateException("Repository is closed", e));
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the calls already submitted, at most a minute (then they are interrupted), and closes
+     * the underlying repository if it is AutoCloseable.
+     *
+     * @throws IllegalStateException if the underlying repository could not be closed
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (delegate instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) delegate).close();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not close the underlying repository", e);
+            }
+        }
+    }
+
+    //#region statistics
+
+    /**
+     * true: calls run on virtual threads, false: on a pool of maxConcurrent platform threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Calls of the underlying repository running right now.
+     */
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    /**
+     * Calls waiting for a permit, not counting the ones queued for a platform thread.
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public int getPeakRunningCount() {
+        return peakRunning.get();
+    }
+
+    //#endregion
+}
@@ -0,0 +1,61 @@
+package at.campus02.dbp2.repository;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe variant of {@link InMemoryRepository}.
+ * <p>
+ * Reads never block, writes only lock the hash bin of the affected email,
+ * so one instance can be shared by all request threads without a global lock.
+ */
+public class ConcurrentInMemoryRepository implements CustomerRepository {
+
+    private final ConcurrentMap<String, Customer> storage;
+
+    public ConcurrentInMemoryRepository() {
+        this(16);
+    }
+
+    public ConcurrentInMemoryRepository(int expectedSize) {
+        storage = new ConcurrentHashMap<>(expectedSize);
+    }
+
+    @Override
+    public void create(Customer customer) {
+        // email is primary key, same semantics as InMemoryRepository (last create wins)
+        storage.put(requireEmail(customer), customer);
+    }
+
+    @Override
+    public Customer read(String email) {
+        // ConcurrentHashMap does not allow null keys, HashMap would simply return null
+        if (email == null) {
+            return null;
+        }
+        return storage.get(email);
+    }
+
+    @Override
+    public void update(Customer customer) {
+        // only replaces existing keys, atomically
+        storage.replace(requireEmail(customer), customer);
+    }
+
+    @Override
+    public void delete(Customer customer) {
+        // only removes the entry if it is still mapped to this customer
+        storage.remove(requireEmail(customer), customer);
+    }
+
+    public int size() {
+        return storage.size();
+    }
+
+    private static String requireEmail(Customer customer) {
+        if (customer.getEmail() == null) {
+            throw new IllegalArgumentException("Customer without email cannot be stored");
+        }
+        return customer.getEmail();
+    }
+}
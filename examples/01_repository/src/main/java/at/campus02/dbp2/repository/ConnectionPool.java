@@ -0,0 +1,421 @@
+package at.campus02.dbp2.repository;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of JDBC connections.
+ * <ul>
+ *     <li>opens {@code minSize} connections up front and never more than {@code maxSize}</li>
+ *     <li>{@link #borrow()} waits at most {@code acquireTimeoutMillis} for a free connection</li>
+ *     <li>idle connections are validated before they are handed out</li>
+ *     <li>connections idle for longer than {@code maxIdleMillis} are closed (down to {@code minSize})</li>
+ * </ul>
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // seconds the driver may take to validate a connection
+    private static final int VALIDATION_TIMEOUT = 1;
+
+    private final String jdbcUrl;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutNanos;
+    private final long maxIdleNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // most recently used connection first, idle eviction starts at the end
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    // open connections, idle and borrowed
+    private int total;
+    private boolean closed;
+
+    //#region statistics, guarded by lock
+    private long borrowCount;
+    private long timeoutCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private int peakActive;
+    private long createdCount;
+    private long discardedCount;
+    // statement cache counts of connections that are already closed
+    private long retiredStatementHits;
+    private long retiredStatementMisses;
+    //#endregion
+
+    public ConnectionPool(String jdbcUrl, int maxSize) {
+        this(jdbcUrl, 1, maxSize, 30_000, 600_000);
+    }
+
+    public ConnectionPool(String jdbcUrl, int minSize, int maxSize, long acquireTimeoutMillis, long maxIdleMillis) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+
+        lock.lock();
+        try {
+            while (total < minSize) {
+                idle.addLast(open());
+                total++;
+            }
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("No database connection", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Borrows a connection, use it with try-with-resources to give it back.
+     *
+     * @throws IllegalStateException if no connection became available within the acquire timeout
+     */
+    public PooledConnection borrow() {
+        long start = System.nanoTime();
+        long remaining = acquireTimeoutNanos;
+
+        while (true) {
+            PooledConnection candidate = null;
+            boolean mayOpen = false;
+
+            lock.lock();
+            try {
+                while (candidate == null && !mayOpen) {
+                    if (closed) {
+                        throw new IllegalStateException("Connection pool is closed");
+                    }
+                    candidate = idle.pollFirst();
+                    if (candidate == null && total < maxSize) {
+                        // reserve the slot, the connection is opened outside of the lock
+                        total++;
+                        mayOpen = true;
+                    }
+                    if (candidate == null && !mayOpen) {
+                        if (remaining <= 0) {
+                            timeoutCount++;
+                            throw new IllegalStateException(
+                                    "No database connection available within " +
+                                            TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + " ms");
+                        }
+                        remaining = released.awaitNanos(remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a database connection", e);
+            } finally {
+                lock.unlock();
+            }
+
+            if (mayOpen) {
+                try {
+                    candidate = open();
+                } catch (SQLException e) {
+                    lock.lock();
+                    try {
+                        total--;
+                        released.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw new IllegalStateException("No database connection", e);
+                }
+            } else if (!isValid(candidate)) {
+                lock.lock();
+                try {
+                    remove(candidate);
+                } finally {
+                    lock.unlock();
+                }
+                continue;
+            }
+
+            lock.lock();
+            try {
+                long waited = System.nanoTime() - start;
+                borrowCount++;
+                totalWaitNanos += waited;
+                maxWaitNanos = Math.max(maxWaitNanos, waited);
+                peakActive = Math.max(peakActive, total - idle.size());
+            } finally {
+                lock.unlock();
+            }
+            candidate.markBorrowed();
+            return candidate;
+        }
+    }
+
+    void release(PooledConnection connection) {
+        boolean broken = !resetConnection(connection);
+        lock.lock();
+        try {
+            if (closed || broken) {
+                remove(connection);
+                return;
+            }
+            connection.lastUsed = System.nanoTime();
+            idle.addFirst(connection);
+            evictIdle(connection.lastUsed);
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes connections that have been idle for longer than {@code maxIdleMillis},
+     * as long as at least {@code minSize} connections stay open.
+     * Runs on every release, but can also be called periodically.
+     */
+    public void evictIdleConnections() {
+        lock.lock();
+        try {
+            evictIdle(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictIdle(long now) {
+        Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && total > minSize) {
+            PooledConnection connection = oldestFirst.next();
+            if (now - connection.lastUsed < maxIdleNanos) {
+                // all others were used more recently
+                return;
+            }
+            oldestFirst.remove();
+            retire(connection);
+        }
+    }
+
+    /**
+     * Closes all idle connections, borrowed ones are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            while (!idle.isEmpty()) {
+                retire(idle.pollFirst());
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(jdbcUrl);
+        lock.lock();
+        try {
+            createdCount++;
+        } finally {
+            lock.unlock();
+        }
+        return new PooledConnection(this, connection);
+    }
+
+    private static boolean isValid(PooledConnection connection) {
+        try {
+            return connection.getConnection().isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Undo changes a borrower may have left behind, e.g. after a failed batch.
+     */
+    private static boolean resetConnection(PooledConnection pooled) {
+        try {
+            Connection connection = pooled.getConnection();
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // lock must be held
+    private void remove(PooledConnection connection) {
+        retire(connection);
+        released.signal();
+    }
+
+    // lock must be held
+    private void retire(PooledConnection connection) {
+        total--;
+        discardedCount++;
+        retiredStatementHits += connection.getStatements().getHits();
+        retiredStatementMisses += connection.getStatements().getMisses();
+        connection.discard();
+    }
+
+    //#region statistics
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Open connections, borrowed and idle.
+     */
+    public int getTotalCount() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return total - idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPeakActiveCount() {
+        lock.lock();
+        try {
+            return peakActive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Borrowed connections relative to the maximum pool size, between 0 and 1.
+     */
+    public double getUtilisation() {
+        return (double) getActiveCount() / maxSize;
+    }
+
+    public long getBorrowCount() {
+        lock.lock();
+        try {
+            return borrowCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeoutCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCreatedCount() {
+        lock.lock();
+        try {
+            return createdCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDiscardedCount() {
+        lock.lock();
+        try {
+            return discardedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getAverageWaitMillis() {
+        lock.lock();
+        try {
+            return borrowCount == 0 ? 0 : totalWaitNanos / 1_000_000.0 / borrowCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getMaxWaitMillis() {
+        lock.lock();
+        try {
+            return maxWaitNanos / 1_000_000.0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Statement cache hits of all connections this pool has opened.
+     * Only counts idle and closed connections, borrowed ones are added when they come back.
+     */
+    public long getStatementHits() {
+        lock.lock();
+        try {
+            long hits = retiredStatementHits;
+            for (PooledConnection connection : idle) {
+                hits += connection.getStatements().getHits();
+            }
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Statement cache misses (= statements prepared) of all connections this pool has opened.
+     * Only counts idle and closed connections, borrowed ones are added when they come back.
+     */
+    public long getStatementMisses() {
+        lock.lock();
+        try {
+            long misses = retiredStatementMisses;
+            for (PooledConnection connection : idle) {
+                misses += connection.getStatements().getMisses();
+            }
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //#endregion
+}
@@ -2,6 +2,7 @@ package at.campus02.dbp2.repository;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Version;
 
 @Entity
 public class Customer {
@@ -10,6 +11,9 @@ public class Customer {
     private String firstname;
     @Id
     private String email;
+    // incremented by every update; null for a customer that was not read or created by a repository
+    @Version
+    private Long version;
 
     public String getLastname() {
         return lastname;
@@ -35,6 +39,19 @@ public class Customer {
         this.email = email;
     }
 
+    /**
+     * The version the customer had when it was read. update and delete fail with a
+     * {@link StaleCustomerException} if someone else changed the customer since.
+     * Without a version (null) they overwrite whatever is in the database.
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    void setVersion(Long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "Customer - " +
@@ -1,9 +1,25 @@
 package at.campus02.dbp2.repository;
 
+import java.util.Collection;
+
 public interface CustomerRepository {
     void create(Customer customer);
     Customer read(String email);
     void update(Customer customer);
     void delete(Customer customer);
 
+    // bulk variants, implementations backed by a database write them in batches
+
+    default void createAll(Collection<Customer> customers) {
+        customers.forEach(this::create);
+    }
+
+    default void updateAll(Collection<Customer> customers) {
+        customers.forEach(this::update);
+    }
+
+    default void deleteAll(Collection<Customer> customers) {
+        customers.forEach(this::delete);
+    }
+
 }
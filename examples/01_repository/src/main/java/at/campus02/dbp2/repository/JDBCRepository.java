@@ -1,50 +1,115 @@
 package at.campus02.dbp2.repository;
 
 import java.sql.*;
+import java.util.Collection;
+import java.util.function.Consumer;
 
-public class JDBCRepository implements CustomerRepository {
+public class JDBCRepository implements CustomerRepository, AutoCloseable {
 
-    private Connection connection;
+    private static final String INSERT =
+            "INSERT INTO Customer (email, lastname, firstname, version) VALUES(?,?,?,?)";
+    private static final String SELECT_BY_EMAIL =
+            "SELECT email, lastname, firstname, version FROM Customer WHERE Email = ?";
+    // pessimistic: other writers of the customer wait until the transaction ends. With the default
+    // isolation (read committed) Derby would release the update lock when the cursor is closed,
+    // read stability (RS) keeps it until the commit
+    private static final String SELECT_BY_EMAIL_FOR_UPDATE =
+            SELECT_BY_EMAIL + " FOR UPDATE WITH RS";
+    // every update increments the version, also the ones without version check
+    private static final String UPDATE =
+            "UPDATE Customer " +
+                    "SET lastname = ?, firstname = ?, version = version + 1 " +
+                    "WHERE email = ?";
+    private static final String UPDATE_VERSION =
+            UPDATE + " AND version = ?";
+    private static final String DELETE =
+            "DELETE from Customer " +
+                    "WHERE email = ?";
+    private static final String DELETE_VERSION =
+            DELETE + " AND version = ?";
 
+    // the version of a new customer, the same as the one JPA starts with
+    private static final long INITIAL_VERSION = 1;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final ConnectionPool pool;
+    // statements per executeBatch/commit in createAll, updateAll and deleteAll
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    // how long a caller waits for the one connection in single connection mode
+    static final long SINGLE_CONNECTION_ACQUIRE_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Single connection mode: all operations share one connection, callers are serialized.
+     * A caller that waits longer than 30 seconds for the connection gets an IllegalStateException,
+     * e.g. a repository call from within the change of {@link #updateLocked(String, Consumer)}.
+     */
     public JDBCRepository(String jdbcUrl) {
-        try {
-            connection = DriverManager.getConnection(jdbcUrl);
+        this(new ConnectionPool(jdbcUrl, 1, 1, SINGLE_CONNECTION_ACQUIRE_TIMEOUT_MILLIS, Long.MAX_VALUE));
+    }
 
-            ensureTable();
+    /**
+     * Pooled mode: every operation borrows a connection from the pool,
+     * so the repository can be used by many threads at the same time.
+     */
+    public JDBCRepository(ConnectionPool pool) {
+        this.pool = pool;
+        try (PooledConnection connection = pool.borrow()) {
+            ensureTable(connection.getConnection());
         } catch (SQLException e) {
             throw new IllegalStateException("No database connection", e);
         }
     }
 
-    private void ensureTable() throws SQLException {
+    private void ensureTable(Connection connection) throws SQLException {
 
-        boolean tableExists =
-                connection.getMetaData().getTables(null, null, "CUSTOMER", null).next();
+        boolean tableExists;
+        try (ResultSet tables = connection.getMetaData().getTables(null, null, "CUSTOMER", null)) {
+            tableExists = tables.next();
+        }
 
         if (!tableExists) {
-            PreparedStatement statement = connection.prepareStatement(
-                    "CREATE Table Customer (" +
-                            "email varchar(50) PRIMARY KEY, " +
-                            "lastname varchar(50), " +
-                            "firstname varchar(50))"
-
-            );
-
-            statement.execute();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(
+                        "CREATE Table Customer (" +
+                                "email varchar(50) PRIMARY KEY, " +
+                                "lastname varchar(50), " +
+                                "firstname varchar(50), " +
+                                "version bigint DEFAULT " + INITIAL_VERSION + " NOT NULL)"
+                );
+            } catch (SQLException e) {
+                // X0Y32: another repository on the same database was faster
+                if (!"X0Y32".equals(e.getSQLState())) {
+                    throw e;
+                }
+            }
+            return;
         }
 
+        // tables created before customers had a version
+        boolean versionExists;
+        try (ResultSet columns = connection.getMetaData().getColumns(null, null, "CUSTOMER", "VERSION")) {
+            versionExists = columns.next();
+        }
+        if (!versionExists) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ALTER TABLE Customer ADD COLUMN version bigint DEFAULT " + INITIAL_VERSION + " NOT NULL");
+            } catch (SQLException e) {
+                if (!"X0Y32".equals(e.getSQLState())) {
+                    throw e;
+                }
+            }
+        }
     }
 
     @Override
     public void create(Customer customer) {
-        try {
-            PreparedStatement statement = connection.prepareStatement(
-                    "INSERT INTO Customer VALUES(?,?,?)"
-            );
-            statement.setString(1, customer.getEmail());
-            statement.setString(2, customer.getLastname());
-            statement.setString(3, customer.getFirstname());
+        try (PooledConnection connection = pool.borrow()) {
+            PreparedStatement statement = connection.prepare(INSERT);
+            bindInsert(statement, customer);
             statement.executeUpdate();
+            customer.setVersion(INITIAL_VERSION);
 
         } catch (SQLException e) {
             throw new IllegalStateException("Could not insert customer", e);
@@ -55,39 +120,52 @@ public class JDBCRepository implements CustomerRepository {
 
     @Override
     public Customer read(String email) {
-        try {
-            PreparedStatement statement = connection.prepareStatement(
-                    "SELECT * FROM Customer WHERE Email = ?"
-            );
-            statement.setString(1, email);
-            ResultSet rs = statement.executeQuery();
+        try (PooledConnection connection = pool.borrow()) {
+            return select(connection.prepare(SELECT_BY_EMAIL), email);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read customer", e);
+        }
+    }
+
+    private static Customer select(PreparedStatement statement, String email) throws SQLException {
+        statement.setString(1, email);
+        try (ResultSet rs = statement.executeQuery()) {
             if (rs.next()) {
                 Customer fromDB = new Customer();
                 fromDB.setEmail(rs.getString(1));
                 fromDB.setLastname(rs.getString(2));
                 fromDB.setFirstname(rs.getString(3));
+                fromDB.setVersion(rs.getLong(4));
                 return fromDB;
             }
-        } catch (SQLException e) {
-            throw new IllegalStateException("Could not read customer", e);
         }
-
         return null;
     }
 
+    /**
+     * With a version, the update only succeeds if nobody changed the customer since it was read,
+     * the customer has the new version afterwards. Without a version it overwrites the row.
+     *
+     * @throws StaleCustomerException if the customer was changed or deleted since it was read
+     */
     @Override
     public void update(Customer customer) {
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(
-                    "UPDATE Customer " +
-                            "SET lastname = ?, firstname = ? " +
-                            "WHERE email = ?"
-            );
-            statement.setString(1, customer.getLastname());
-            statement.setString(2, customer.getFirstname());
-            statement.setString(3, customer.getEmail());
-            statement.executeUpdate();
+        try (PooledConnection connection = pool.borrow()) {
+            if (customer.getVersion() == null) {
+                PreparedStatement statement = connection.prepare(UPDATE);
+                bindUpdate(statement, customer);
+                statement.executeUpdate();
+                return;
+            }
+
+            PreparedStatement statement = connection.prepare(UPDATE_VERSION);
+            bindUpdate(statement, customer);
+            statement.setLong(4, customer.getVersion());
+            if (statement.executeUpdate() == 0) {
+                throw new StaleCustomerException(customer);
+            }
+            customer.setVersion(customer.getVersion() + 1);
 
         } catch (SQLException e) {
             throw new IllegalStateException("Could not update customer.", e);
@@ -95,22 +173,177 @@ public class JDBCRepository implements CustomerRepository {
 
     }
 
+    /**
+     * Pessimistic alternative to read, change and update: the customer is read with
+     * SELECT ... FOR UPDATE, so other writers of this customer wait until the change is committed.
+     * Never conflicts, but writers of the same customer run one after the other.
+     * The change runs while the connection is borrowed: in single connection mode it must not call the
+     * repository, that call would wait for the connection until the acquire timeout.
+     *
+     * @return false if there is no customer with this email
+     */
+    public boolean updateLocked(String email, Consumer<Customer> change) {
+        try (PooledConnection pooled = pool.borrow()) {
+            Connection connection = pooled.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                Customer customer = select(pooled.prepare(SELECT_BY_EMAIL_FOR_UPDATE), email);
+                if (customer == null) {
+                    connection.rollback();
+                    return false;
+                }
+                change.accept(customer);
+                PreparedStatement update = pooled.prepare(UPDATE);
+                bindUpdate(update, customer);
+                update.executeUpdate();
+                connection.commit();
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not update customer.", e);
+        }
+    }
 
+    /**
+     * With a version, only deletes the customer if nobody changed it since it was read.
+     *
+     * @throws StaleCustomerException if the customer was changed or deleted since it was read
+     */
     @Override
     public void delete(Customer customer) {
 
-        try {
-            PreparedStatement statement = connection.prepareStatement(
-                    "DELETE from Customer " +
-                            "WHERE email = ?"
-            );
+        try (PooledConnection connection = pool.borrow()) {
+            if (customer.getVersion() == null) {
+                PreparedStatement statement = connection.prepare(DELETE);
+                bindDelete(statement, customer);
+                statement.execute();
+                return;
+            }
 
-            statement.setString(1, customer.getEmail());
-            statement.execute();
+            PreparedStatement statement = connection.prepare(DELETE_VERSION);
+            bindDelete(statement, customer);
+            statement.setLong(2, customer.getVersion());
+            if (statement.executeUpdate() == 0) {
+                throw new StaleCustomerException(customer);
+            }
 
         } catch (SQLException e) {
             throw new IllegalStateException("Could not delete customer", e);
         }
 
     }
+
+    @Override
+    public void createAll(Collection<Customer> customers) {
+        executeInBatches(INSERT, customers, JDBCRepository::bindInsert, "Could not insert customers");
+        customers.forEach(customer -> customer.setVersion(INITIAL_VERSION));
+    }
+
+    /**
+     * Overwrites without version check, like update of a customer without version. The versions in
+     * the database are incremented, the given customers keep the old one: read them again before a checked update.
+     */
+    @Override
+    public void updateAll(Collection<Customer> customers) {
+        executeInBatches(UPDATE, customers, JDBCRepository::bindUpdate, "Could not update customers");
+    }
+
+    /**
+     * Deletes without version check.
+     */
+    @Override
+    public void deleteAll(Collection<Customer> customers) {
+        executeInBatches(DELETE, customers, JDBCRepository::bindDelete, "Could not delete customers");
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement statement, Customer customer) throws SQLException;
+    }
+
+    private static void bindInsert(PreparedStatement statement, Customer customer) throws SQLException {
+        statement.setString(1, customer.getEmail());
+        statement.setString(2, customer.getLastname());
+        statement.setString(3, customer.getFirstname());
+        statement.setLong(4, INITIAL_VERSION);
+    }
+
+    private static void bindUpdate(PreparedStatement statement, Customer customer) throws SQLException {
+        statement.setString(1, customer.getLastname());
+        statement.setString(2, customer.getFirstname());
+        statement.setString(3, customer.getEmail());
+    }
+
+    private static void bindDelete(PreparedStatement statement, Customer customer) throws SQLException {
+        statement.setString(1, customer.getEmail());
+    }
+
+    /**
+     * Sends the statements in JDBC batches of {@code batchSize}, one transaction per batch.
+     * If a batch fails, it is rolled back; batches committed before stay in the database.
+     */
+    private void executeInBatches(String sql, Collection<Customer> customers, Binder binder, String failure) {
+        if (customers.isEmpty()) {
+            return;
+        }
+        try (PooledConnection pooled = pool.borrow()) {
+            Connection connection = pooled.getConnection();
+            PreparedStatement statement = pooled.prepare(sql);
+            connection.setAutoCommit(false);
+            try {
+                int inBatch = 0;
+                for (Customer customer : customers) {
+                    binder.bind(statement, customer);
+                    statement.addBatch();
+                    if (++inBatch == batchSize) {
+                        statement.executeBatch();
+                        connection.commit();
+                        inBatch = 0;
+                    }
+                }
+                if (inBatch > 0) {
+                    statement.executeBatch();
+                    connection.commit();
+                }
+            } catch (SQLException e) {
+                statement.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(failure, e);
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Pool and statement cache statistics, e.g. for monitoring.
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * Closes the pool, including all cached statements and connections.
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
 }
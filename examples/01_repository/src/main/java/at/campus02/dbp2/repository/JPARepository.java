@@ -1,46 +1,368 @@
 package at.campus02.dbp2.repository;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+public class JPARepository implements CustomerRepository, AutoCloseable {
 
-public class JPARepository implements CustomerRepository {
+    public static final int DEFAULT_BATCH_SIZE = 500;
 
-    private EntityManager manager;
+    /**
+     * How read makes sure it does not return an outdated customer from the persistence context.
+     */
+    public enum ReadConsistency {
+        /**
+         * Detaches every managed customer before the lookup. The customer comes from EclipseLink's
+         * shared cache (or the database), which has every change made through the factory.
+         */
+        CLEAR,
+        /**
+         * Reads the requested customer from the database and refreshes the managed instance, the
+         * rest of the persistence context stays. Also sees changes made outside the factory,
+         * e.g. by JDBC, at the cost of one SELECT per read.
+         */
+        REFRESH,
+        /**
+         * No customer stays managed after an operation: read, create and update detach the
+         * customer they return or leave behind, so every lookup comes from the shared cache like
+         * with CLEAR, but without clearing the whole persistence context.
+         */
+        DETACH
+    }
 
+    private final EntityManagerFactory factory;
+    // single manager mode: one entity manager for all operations, null in per-operation mode
+    private final EntityManager manager;
+    // only a factory created by the repository is closed by it
+    private final boolean ownsFactory;
+    // entities per transaction in createAll, updateAll and deleteAll
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ReadConsistency readConsistency = ReadConsistency.CLEAR;
 
+
+    /**
+     * Single manager mode: all operations share one entity manager,
+     * the repository must not be used by several threads at once.
+     */
     public JPARepository() {
-        EntityManagerFactory factory = Persistence
+        factory = Persistence
                 .createEntityManagerFactory("nameOfJpaPersistenceUnit");
         manager = factory.createEntityManager();
+        ownsFactory = true;
+    }
+
+    /**
+     * Per-operation mode: every operation gets a short-lived entity manager from the factory
+     * and closes it afterwards. The repository can be used by several threads at once and
+     * keeps no persistence context between operations, every read returns a detached customer.
+     *
+     * @param factory shared with other repositories, not closed by this one
+     */
+    public JPARepository(EntityManagerFactory factory) {
+        this.factory = factory;
+        manager = null;
+        ownsFactory = false;
     }
 
     @Override
     public void create(Customer customer) {
-        manager.getTransaction().begin();
-        manager.persist(customer);
-        manager.getTransaction().commit();
+        inTransaction(em -> {
+            em.persist(customer);
+            return customer;
+        });
     }
 
     @Override
     public Customer read(String email) {
-        manager.clear();
-        return manager.find(Customer.class, email);
+        return withManager(em -> {
+            // a shared manager would otherwise return what it read before, not the current row
+            switch (readConsistency) {
+                case REFRESH:
+                    return em.find(Customer.class, email, Map.of(QueryHints.REFRESH, HintValues.TRUE));
+                case DETACH:
+                    return detachIfRequired(em, em.find(Customer.class, email));
+                default:
+                    em.clear();
+                    return em.find(Customer.class, email);
+            }
+        });
     }
 
+    /**
+     * With a version, the update only succeeds if nobody changed the customer since it was read,
+     * the customer has the new version afterwards. Without a version it overwrites the current state.
+     *
+     * @throws StaleCustomerException if the customer was changed or deleted since it was read
+     */
     @Override
     public void update(Customer customer) {
+        Customer managed = inTransaction(customer, em -> {
+            Customer current = em.find(Customer.class, customer.getEmail());
+            if (customer.getVersion() == null) {
+                if (current == null) {
+                    // like merge: a customer that does not exist yet is created
+                    return em.merge(customer);
+                }
+                current.setLastname(customer.getLastname());
+                current.setFirstname(customer.getFirstname());
+                return current;
+            }
+            requireVersion(em, current, customer);
+            // the commit checks the version once more, in the UPDATE statement
+            return em.merge(customer);
+        });
+        if (customer.getVersion() != null) {
+            customer.setVersion(managed.getVersion());
+        }
+    }
 
-        manager.getTransaction().begin();
-        manager.merge(customer);
-        manager.getTransaction().commit();
+    /**
+     * current comes from the persistence context or the shared cache, refreshed if it differs.
+     */
+    private static void requireVersion(EntityManager em, Customer current, Customer customer) {
+        if (current != null && !customer.getVersion().equals(current.getVersion())) {
+            em.refresh(current);
+        }
+        if (current == null || !customer.getVersion().equals(current.getVersion())) {
+            throw new StaleCustomerException(customer);
+        }
     }
 
+    /**
+     * With a version, only deletes the customer if nobody changed it since it was read.
+     *
+     * @throws StaleCustomerException if the customer was changed or deleted since it was read
+     */
     @Override
     public void delete(Customer customer) {
-        manager.getTransaction().begin();
-        manager.remove(customer);
-        manager.getTransaction().commit();
+        inTransaction(customer, em -> {
+            // in per-operation mode the customer was read by another, already closed manager
+            Customer managed = em.contains(customer) ? customer : em.find(Customer.class, customer.getEmail());
+            if (customer.getVersion() != null) {
+                requireVersion(em, managed, customer);
+            }
+            if (managed != null) {
+                em.remove(managed);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void createAll(Collection<Customer> customers) {
+        inChunks(customers, (em, chunk) -> chunk.forEach(em::persist));
+    }
+
+    /**
+     * Overwrites without version check, like update of a customer without version and like
+     * JDBCRepository.updateAll. The versions in the database are incremented, the given customers keep
+     * the old one: read them again before a checked update. Customers that do not exist are created.
+     *
+     * @throws StaleCustomerException if someone else changed a customer of the chunk while it was written
+     */
+    @Override
+    public void updateAll(Collection<Customer> customers) {
+        inChunks(customers, (em, chunk) -> {
+            List<String> emails = new ArrayList<>();
+            chunk.forEach(customer -> emails.add(customer.getEmail()));
+            // one query per chunk, merge would look up every customer on its own and check its version
+            Map<String, Customer> current = new HashMap<>();
+            em.createQuery("SELECT c FROM Customer c WHERE c.email IN :emails", Customer.class)
+                    .setParameter("emails", emails)
+                    .getResultList()
+                    .forEach(customer -> current.put(customer.getEmail(), customer));
+            for (Customer customer : chunk) {
+                Customer managed = current.get(customer.getEmail());
+                if (managed == null) {
+                    em.merge(customer);
+                } else {
+                    managed.setLastname(customer.getLastname());
+                    managed.setFirstname(customer.getFirstname());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void deleteAll(Collection<Customer> customers) {
+        inChunks(customers, (em, chunk) -> {
+            List<String> emails = new ArrayList<>();
+            chunk.forEach(customer -> emails.add(customer.getEmail()));
+            // one statement per chunk instead of loading and removing every customer
+            em.createQuery("DELETE FROM Customer c WHERE c.email IN :emails")
+                    .setParameter("emails", emails)
+                    .executeUpdate();
+        });
+    }
+
+    /**
+     * Runs the work with the shared entity manager, or in per-operation mode
+     * with a new one that is closed afterwards.
+     */
+    private <T> T withManager(Function<EntityManager, T> work) {
+        if (manager != null) {
+            return work.apply(manager);
+        }
+        EntityManager perOperation = factory.createEntityManager();
+        try {
+            return work.apply(perOperation);
+        } finally {
+            perOperation.close();
+        }
+    }
+
+    /**
+     * Reports a failed version check of the commit as StaleCustomerException.
+     */
+    private Customer inTransaction(Customer customer, Function<EntityManager, Customer> work) {
+        try {
+            return inTransaction(work);
+        } catch (RuntimeException e) {
+            throw staleOrSame(e, customer, List.of(customer));
+        }
+    }
+
+    /**
+     * @param customer the one written, or null if the failed version check should tell
+     * @param written  all customers of the transaction, if the failed version check does not tell
+     * @return a StaleCustomerException if a version check failed, otherwise e
+     */
+    private static RuntimeException staleOrSame(RuntimeException e, Customer customer, List<Customer> written) {
+        boolean stale = false;
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            // EclipseLink reports it with its own exception when the commit fails, flush with both
+            Object entity = null;
+            if (cause instanceof OptimisticLockException) {
+                stale = true;
+                entity = ((OptimisticLockException) cause).getEntity();
+            } else if (cause instanceof org.eclipse.persistence.exceptions.OptimisticLockException) {
+                stale = true;
+                org.eclipse.persistence.exceptions.OptimisticLockException failed =
+                        (org.eclipse.persistence.exceptions.OptimisticLockException) cause;
+                // getObject fails without the query, e.g. for a conflict found by merge
+                entity = failed.getQuery() == null ? null : failed.getObject();
+            }
+            if (customer == null && entity instanceof Customer) {
+                customer = (Customer) entity;
+            }
+        }
+        if (!stale) {
+            return e;
+        }
+        // batch writing only knows that one of the statements failed
+        return customer != null ? new StaleCustomerException(customer, e) : new StaleCustomerException(written, e);
+    }
+
+    /**
+     * @param work returns the customer it leaves managed, or null
+     */
+    private Customer inTransaction(Function<EntityManager, Customer> work) {
+        return withManager(em -> {
+            em.getTransaction().begin();
+            Customer managed;
+            try {
+                managed = work.apply(em);
+                em.getTransaction().commit();
+            } finally {
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+            }
+            // after the commit, so the shared cache already has the change
+            return detachIfRequired(em, managed);
+        });
+    }
+
+    private Customer detachIfRequired(EntityManager em, Customer customer) {
+        if (readConsistency == ReadConsistency.DETACH && customer != null) {
+            em.detach(customer);
+        }
+        return customer;
+    }
+
+    /**
+     * One transaction per chunk of {@code batchSize} customers. The persistence context is
+     * flushed and cleared after each chunk, so it does not grow with the number of customers.
+     * If a chunk fails, it is rolled back; chunks committed before stay in the database.
+     * In per-operation mode all chunks use the same entity manager.
+     */
+    private void inChunks(Collection<Customer> customers, BiConsumer<EntityManager, List<Customer>> work) {
+        withManager(em -> {
+            List<Customer> chunk = new ArrayList<>(Math.min(batchSize, customers.size()));
+            for (Customer customer : customers) {
+                chunk.add(customer);
+                if (chunk.size() == batchSize) {
+                    inTransaction(em, chunk, work);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                inTransaction(em, chunk, work);
+            }
+            return null;
+        });
+    }
+
+    private static void inTransaction(EntityManager em, List<Customer> chunk, BiConsumer<EntityManager, List<Customer>> work) {
+        em.getTransaction().begin();
+        try {
+            work.accept(em, chunk);
+            em.flush();
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            throw staleOrSame(e, null, chunk);
+        } finally {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.clear();
+        }
+    }
+
+    public ReadConsistency getReadConsistency() {
+        return readConsistency;
+    }
+
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        this.readConsistency = Objects.requireNonNull(readConsistency);
+    }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Closes the entity manager and the factory, the next repository
+     * deploys the persistence unit (and its tables) again.
+     * In per-operation mode the factory belongs to the caller and stays open.
+     */
+    @Override
+    public void close() {
+        if (manager != null && manager.isOpen()) {
+            manager.close();
+        }
+        if (ownsFactory && factory.isOpen()) {
+            factory.close();
+        }
     }
 }
@@ -0,0 +1,692 @@
+package at.campus02.dbp2.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent key-value store for customers: every create, update and delete is appended as a record
+ * to a memory-mapped log file, an index in memory maps each email to the offset of its latest record.
+ * <p>
+ * On startup the index is rebuilt by scanning the log. close (and every compaction) writes the index
+ * as checkpoint next to the log, then only the records appended after the checkpoint are scanned.
+ * A record that was only partly written when the process died fails its checksum, the log ends before it.
+ * <p>
+ * Writes end up in the page cache of the operating system and survive a crash of the JVM, but not
+ * necessarily one of the machine; {@link #flush()} forces them to the disk.
+ * <p>
+ * Outdated records stay in the log until it has more garbage than live data, then a background thread
+ * copies the live records into a new log that replaces the old one. If that fails, the old log stays in
+ * use and {@link #getCompactionFailure()} tells why. Thread-safe, all operations share one lock,
+ * the compaction only holds it at the start and to switch over.
+ */
+public class MappedLogRepository implements CustomerRepository, AutoCloseable {
+
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+
+    static final String LOG_FILE = "customers.log";
+    static final String CHECKPOINT_FILE = "customers.index";
+    static final String COMPACTED_FILE = "customers.log.compacted";
+
+    // the log is mapped in regions, a record never spans two of them
+    private static final int REGION_SIZE = 64 << 20;
+    // header: magic, generation (changes with every compaction, a checkpoint belongs to one generation)
+    private static final int MAGIC = 0xDB9C0001;
+    private static final int HEADER_SIZE = 12;
+    // record: int payload length, byte type, int CRC32 of type and payload, payload
+    // payload: 3 unsigned shorts with the byte length + 1 of email, firstname, lastname (0: null), then the bytes
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int END_OF_REGION = -1;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int MAX_FIELD_BYTES = 0xFFFF - 1;
+
+    private final Path directory;
+    private final long compactionThreshold;
+    // one compaction at a time, also when compact() is called directly
+    private final Object compactionLock = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MappedLogRepository compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Log log;
+    private Map<String, Long> index = new HashMap<>();
+    private long liveBytes;
+    private long garbageBytes;
+    private Future<?> compaction;
+    private RuntimeException compactionFailure;
+    // garbage when the last background compaction failed, the next one waits for another threshold
+    private long garbageAtFailure;
+    private boolean closed;
+
+    public MappedLogRepository(Path directory) {
+        this(directory, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param compactionThreshold garbage in bytes (and more than live data) that starts a compaction
+     */
+    public MappedLogRepository(Path directory, long compactionThreshold) {
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+        try {
+            Files.createDirectories(directory);
+            log = new Log(directory.resolve(LOG_FILE));
+            long scanFrom = loadCheckpoint() ? log.end : HEADER_SIZE;
+            log.end = scan(scanFrom);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open customer log in " + directory, e);
+        }
+    }
+
+    @Override
+    public synchronized void create(Customer customer) {
+        // email is primary key, same semantics as InMemoryRepository (last create wins)
+        put(customer);
+    }
+
+    @Override
+    public synchronized Customer read(String email) {
+        ensureOpen();
+        if (email == null) {
+            return null;
+        }
+        Long offset = index.get(email);
+        return offset == null ? null : log.read(offset);
+    }
+
+    @Override
+    public synchronized void update(Customer customer) {
+        // only replaces existing keys
+        if (index.containsKey(requireEmail(customer))) {
+            put(customer);
+        }
+    }
+
+    /**
+     * Like InMemoryRepository, only removes the customer if the stored one is still the same:
+     * a record has no identity, so the same here means the same firstname and lastname.
+     */
+    @Override
+    public synchronized void delete(Customer customer) {
+        ensureOpen();
+        Long offset = index.get(requireEmail(customer));
+        if (offset == null) {
+            return;
+        }
+        Customer stored = log.read(offset);
+        if (Objects.equals(stored.getFirstname(), customer.getFirstname())
+                && Objects.equals(stored.getLastname(), customer.getLastname())) {
+            long tombstone = log.append(DELETE, payload(customer.getEmail(), null, null));
+            index.remove(customer.getEmail());
+            discard(offset);
+            garbageBytes += log.recordSize(tombstone);
+            compactIfRequired();
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Forces the written records to the disk.
+     */
+    public synchronized void flush() {
+        ensureOpen();
+        log.force();
+    }
+
+    private void put(Customer customer) {
+        ensureOpen();
+        String email = requireEmail(customer);
+        long offset = log.append(PUT, payload(email, customer.getFirstname(), customer.getLastname()));
+        Long previous = index.put(email, offset);
+        liveBytes += log.recordSize(offset);
+        if (previous != null) {
+            discard(previous);
+        }
+        compactIfRequired();
+    }
+
+    private void discard(long offset) {
+        int recordSize = log.recordSize(offset);
+        liveBytes -= recordSize;
+        garbageBytes += recordSize;
+    }
+
+    //#region startup
+
+    /**
+     * Scans the log from the given offset and applies its records to the index.
+     *
+     * @return the end of the log: the first offset without a complete, valid record
+     */
+    private long scan(long offset) {
+        while (true) {
+            if (offset >= log.size()) {
+                return offset;
+            }
+            if (!log.hasRecordHeader(offset)) {
+                offset = log.nextRegion(offset);
+                continue;
+            }
+            int length = log.buffer(offset).getInt(Log.position(offset));
+            if (length == END_OF_REGION) {
+                offset = log.nextRegion(offset);
+                continue;
+            }
+            if (!log.isValid(offset, length)) {
+                // end of the log, or a record that was only partly written: nothing after it counts
+                log.clear(offset);
+                return offset;
+            }
+            Customer customer = log.read(offset);
+            Long previous = log.type(offset) == PUT
+                    ? index.put(customer.getEmail(), offset)
+                    : index.remove(customer.getEmail());
+            if (previous != null) {
+                discard(previous);
+            }
+            if (log.type(offset) == PUT) {
+                liveBytes += log.recordSize(offset);
+            } else {
+                garbageBytes += log.recordSize(offset);
+            }
+            offset += log.recordSize(offset);
+        }
+    }
+
+    /**
+     * checkpoint: generation, end of the log, live and garbage bytes, count, (email, offset) * count, CRC32
+     *
+     * @return true if the index was loaded from a checkpoint of the current log
+     */
+    private boolean loadCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            DataInputStream data = new DataInputStream(checked);
+            long generation = data.readLong();
+            long end = data.readLong();
+            long live = data.readLong();
+            long garbage = data.readLong();
+            int count = data.readInt();
+            if (generation != log.generation || end < HEADER_SIZE || end > log.size()) {
+                return false;
+            }
+            Map<String, Long> loaded = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                loaded.put(data.readUTF(), data.readLong());
+            }
+            long checksum = checked.getChecksum().getValue();
+            if (data.readLong() != checksum) {
+                return false;
+            }
+            index = loaded;
+            liveBytes = live;
+            garbageBytes = garbage;
+            log.end = end;
+            return true;
+        } catch (IOException e) {
+            // truncated or unreadable, the log has everything
+            return false;
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+            DataOutputStream data = new DataOutputStream(checked);
+            data.writeLong(log.generation);
+            data.writeLong(log.end);
+            data.writeLong(liveBytes);
+            data.writeLong(garbageBytes);
+            data.writeInt(index.size());
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                data.writeUTF(entry.getKey());
+                data.writeLong(entry.getValue());
+            }
+            data.flush();
+            data.writeLong(checked.getChecksum().getValue());
+            data.flush();
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //#endregion
+
+    //#region compaction
+
+    private void compactIfRequired() {
+        if (garbageBytes - garbageAtFailure > compactionThreshold && garbageBytes > liveBytes
+                && (compaction == null || compaction.isDone())) {
+            compaction = compactor.submit(this::compactInBackground);
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                compactionFailure = e;
+                garbageAtFailure = garbageBytes;
+            }
+        }
+    }
+
+    /**
+     * @return why the last background compaction failed, null if none failed since the last successful one.
+     * The old log stays in use, the next background compaction starts once the garbage has grown
+     * by another compaction threshold.
+     */
+    public synchronized RuntimeException getCompactionFailure() {
+        return compactionFailure;
+    }
+
+    /**
+     * Copies the live records into a new log and replaces the old one with it. Runs in the background
+     * when there is enough garbage, can also be called directly.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            compactLocked();
+        }
+    }
+
+    private void compactLocked() {
+        Log source;
+        List<MappedByteBuffer> regions;
+        Map<String, Long> live;
+        long copiedUntil;
+        synchronized (this) {
+            ensureOpen();
+            source = log;
+            // writes keep mapping regions into the source, the copy without the lock only reads these
+            regions = source.regions();
+            live = new HashMap<>(index);
+            copiedUntil = log.end;
+        }
+        Path file = directory.resolve(COMPACTED_FILE);
+        Log target = null;
+        boolean replaced = false;
+        try {
+            // records before copiedUntil never change, they are copied without the lock
+            Files.deleteIfExists(file);
+            target = new Log(file);
+            Map<String, Long> compacted = new HashMap<>(live.size() * 4 / 3 + 1);
+            long copiedLive = 0;
+            for (Map.Entry<String, Long> entry : live.entrySet()) {
+                long offset = target.copy(regions, entry.getValue());
+                compacted.put(entry.getKey(), offset);
+                copiedLive += target.recordSize(offset);
+            }
+
+            synchronized (this) {
+                if (closed || log != source) {
+                    return;
+                }
+                // what was written in the meantime
+                regions = source.regions();
+                long live2 = copiedLive;
+                long garbage = 0;
+                for (long offset = copiedUntil; offset < source.end; ) {
+                    if (!source.hasRecordHeader(offset)
+                            || source.buffer(offset).getInt(Log.position(offset)) == END_OF_REGION) {
+                        offset = source.nextRegion(offset);
+                        continue;
+                    }
+                    long copy = target.copy(regions, offset);
+                    String email = source.read(offset).getEmail();
+                    Long previous = source.type(offset) == PUT ? compacted.put(email, copy) : compacted.remove(email);
+                    if (previous != null) {
+                        live2 -= target.recordSize(previous);
+                        garbage += target.recordSize(previous);
+                    }
+                    if (source.type(offset) == PUT) {
+                        live2 += target.recordSize(copy);
+                    } else {
+                        garbage += target.recordSize(copy);
+                    }
+                    offset += source.recordSize(offset);
+                }
+                target.force();
+                // until the move succeeds the old log stays in use; the new one keeps its channel
+                // and mappings, the move only renames its file
+                Files.move(file, directory.resolve(LOG_FILE),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+                log = target;
+                index = compacted;
+                liveBytes = live2;
+                garbageBytes = garbage;
+                compactionFailure = null;
+                garbageAtFailure = 0;
+                source.close();
+                writeCheckpoint();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Compaction of customer log in " + directory + " failed", e);
+        } finally {
+            if (target != null && !replaced) {
+                abandon(target, file);
+            }
+        }
+    }
+
+    private static void abandon(Log target, Path file) {
+        try {
+            target.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // the next compaction deletes it
+        }
+    }
+
+    //#endregion
+
+    /**
+     * Waits for a running compaction, writes the checkpoint and closes the log.
+     */
+    @Override
+    public void close() {
+        Future<?> running;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            running = compaction;
+        }
+        if (running != null) {
+            try {
+                running.get();
+            } catch (Exception e) {
+                // the old log is still complete, the next start scans it
+            }
+        }
+        compactor.shutdown();
+        synchronized (this) {
+            closed = true;
+            try {
+                log.force();
+                writeCheckpoint();
+                log.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot close customer log in " + directory, e);
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Repository is closed");
+        }
+    }
+
+    private static String requireEmail(Customer customer) {
+        if (customer.getEmail() == null) {
+            throw new IllegalArgumentException("Customer without email cannot be stored");
+        }
+        return customer.getEmail();
+    }
+
+    private static byte[] payload(String email, String firstname, String lastname) {
+        byte[][] fields = {encode(email), encode(firstname), encode(lastname)};
+        int size = 6;
+        for (byte[] field : fields) {
+            size += field == null ? 0 : field.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        for (byte[] field : fields) {
+            payload.putShort((short) (field == null ? 0 : field.length + 1));
+        }
+        for (byte[] field : fields) {
+            if (field != null) {
+                payload.put(field);
+            }
+        }
+        return payload.array();
+    }
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException("Value too long to be stored: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * One log file, mapped region by region. Offsets are positions in the file.
+     */
+    private static class Log {
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> regions = new ArrayList<>();
+        private final long generation;
+        // offset of the next record
+        private long end = HEADER_SIZE;
+
+        Log(Path file) throws IOException {
+            channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean created = channel.size() == 0;
+            long regionCount = Math.max(1, (channel.size() + REGION_SIZE - 1) / REGION_SIZE);
+            for (int i = 0; i < regionCount; i++) {
+                map();
+            }
+            MappedByteBuffer first = regions.get(0);
+            if (created) {
+                generation = ThreadLocalRandom.current().nextLong();
+                first.putInt(0, MAGIC);
+                first.putLong(4, generation);
+            } else if (first.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException(file + " is not a customer log");
+            } else {
+                generation = first.getLong(4);
+            }
+        }
+
+        private void map() throws IOException {
+            // mapping beyond the end of the file extends it
+            regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_SIZE, REGION_SIZE));
+        }
+
+        long size() {
+            return (long) regions.size() * REGION_SIZE;
+        }
+
+        static int position(long offset) {
+            return (int) (offset % REGION_SIZE);
+        }
+
+        /**
+         * @return the regions mapped so far, map() adds to the list while appending
+         */
+        List<MappedByteBuffer> regions() {
+            return new ArrayList<>(regions);
+        }
+
+        ByteBuffer buffer(long offset) {
+            return regions.get((int) (offset / REGION_SIZE));
+        }
+
+        boolean hasRecordHeader(long offset) {
+            return position(offset) + RECORD_HEADER_SIZE <= REGION_SIZE;
+        }
+
+        long nextRegion(long offset) {
+            return (offset / REGION_SIZE + 1) * REGION_SIZE;
+        }
+
+        byte type(long offset) {
+            return buffer(offset).get(position(offset) + 4);
+        }
+
+        int recordSize(long offset) {
+            return RECORD_HEADER_SIZE + buffer(offset).getInt(position(offset));
+        }
+
+        boolean isValid(long offset, int length) {
+            if (offset >= size()) {
+                return false;
+            }
+            int position = position(offset);
+            if (length < 6 || position + RECORD_HEADER_SIZE + length > REGION_SIZE) {
+                return false;
+            }
+            ByteBuffer buffer = buffer(offset);
+            byte type = buffer.get(position + 4);
+            if (type != PUT && type != DELETE) {
+                return false;
+            }
+            return buffer.getInt(position + 5) == checksum(buffer, position, length);
+        }
+
+        private static int checksum(ByteBuffer buffer, int position, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(buffer.get(position + 4));
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+            crc.update(payload);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Zeroes everything from the offset to the end of the file, so nothing written there
+         * before a crash (pages are not written back in order) can later be mistaken for a record.
+         */
+        void clear(long offset) {
+            for (long region = offset; region < size(); region = nextRegion(region)) {
+                ByteBuffer buffer = buffer(region);
+                int position = position(region);
+                for (; position < REGION_SIZE && position % 8 != 0; position++) {
+                    buffer.put(position, (byte) 0);
+                }
+                // REGION_SIZE is a multiple of 8, mostly there is nothing to overwrite
+                for (; position < REGION_SIZE; position += 8) {
+                    if (buffer.getLong(position) != 0) {
+                        buffer.putLong(position, 0);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the offset of the new record
+         */
+        long append(byte type, byte[] payload) {
+            int recordSize = RECORD_HEADER_SIZE + payload.length;
+            if (position(end) + recordSize > REGION_SIZE) {
+                if (hasRecordHeader(end)) {
+                    buffer(end).putInt(position(end), END_OF_REGION);
+                }
+                end = nextRegion(end);
+            }
+            try {
+                while (end + recordSize > size()) {
+                    map();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot extend customer log", e);
+            }
+            ByteBuffer buffer = buffer(end);
+            int position = position(end);
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            record.put(type);
+            record.position(position + RECORD_HEADER_SIZE);
+            record.put(payload);
+            buffer.putInt(position + 5, checksum(buffer, position, payload.length));
+            // the length last: a record without it is the end of the log
+            buffer.putInt(position, payload.length);
+            long offset = end;
+            end += recordSize;
+            return offset;
+        }
+
+        long copy(List<MappedByteBuffer> source, long offset) {
+            ByteBuffer from = source.get((int) (offset / REGION_SIZE));
+            int position = position(offset);
+            int length = from.getInt(position);
+            byte[] payload = new byte[length];
+            ByteBuffer slice = from.duplicate();
+            slice.position(position + RECORD_HEADER_SIZE);
+            slice.get(payload);
+            return append(from.get(position + 4), payload);
+        }
+
+        Customer read(long offset) {
+            ByteBuffer buffer = buffer(offset);
+            int lengths = position(offset) + RECORD_HEADER_SIZE;
+            int position = lengths + 6;
+            Customer customer = new Customer();
+            customer.setEmail(string(buffer, lengths, position));
+            position += fieldLength(buffer, lengths);
+            customer.setFirstname(string(buffer, lengths + 2, position));
+            position += fieldLength(buffer, lengths + 2);
+            customer.setLastname(string(buffer, lengths + 4, position));
+            return customer;
+        }
+
+        private static int fieldLength(ByteBuffer buffer, int position) {
+            return Math.max(0, Short.toUnsignedInt(buffer.getShort(position)) - 1);
+        }
+
+        private static String string(ByteBuffer buffer, int lengthPosition, int position) {
+            int length = Short.toUnsignedInt(buffer.getShort(lengthPosition));
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length - 1];
+            ByteBuffer field = buffer.duplicate();
+            field.position(position);
+            field.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void force() {
+            regions.forEach(MappedByteBuffer::force);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package at.campus02.dbp2.repository;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps the customers outside of the Java heap, for millions of customers without
+ * gigabytes of Customer and String objects for the garbage collector to trace.
+ * <p>
+ * Email, firstname and lastname of a customer are stored as one UTF-8 record in chunks of direct
+ * memory, appended one after the other. An open-addressing hash table (linear probing), also in direct
+ * memory, maps the email to the address of its record. read builds a new Customer from the record every
+ * time, changes to it only end up in the repository with update. The version is not stored.
+ * <p>
+ * update and delete leave the old record behind; once there is more garbage than live data, the
+ * records are copied into new chunks. Direct memory is not part of the heap, it is limited by
+ * {@code -XX:MaxDirectMemorySize} (default: the maximum heap size) and only returned to the operating
+ * system when the garbage collector collects the buffers of a repository that is no longer used.
+ * <p>
+ * Same semantics as {@link InMemoryRepository}, and like it not thread-safe.
+ */
+public class OffHeapRepository implements CustomerRepository {
+
+    // records never span two chunks, a record is at most 6 + 3 * MAX_FIELD_BYTES bytes
+    private static final int CHUNK_BITS = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_FIELD_BYTES = 0xFFFF - 1;
+
+    // slot: int hash of the email, long address of the record + 1 (0: empty, -1: deleted)
+    private static final int SLOT_SIZE = 12;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    // a ByteBuffer has at most 2 GB
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final double MAX_LOAD = 0.7;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer index;
+    private int capacity;
+    private int size;
+    // live and deleted slots, the probing needs at least one empty slot
+    private int used;
+    private long liveBytes;
+    private long garbageBytes;
+
+    public OffHeapRepository() {
+        this(1024);
+    }
+
+    public OffHeapRepository(int expectedSize) {
+        capacity = Integer.highestOneBit((int) Math.min(MAX_CAPACITY, Math.max(16, expectedSize / MAX_LOAD)) * 2 - 1);
+        index = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+    }
+
+    @Override
+    public void create(Customer customer) {
+        // email is primary key, same semantics as InMemoryRepository (last create wins)
+        byte[] email = encode(requireEmail(customer));
+        int hash = hash(email);
+        int slot = probe(email, hash);
+        if (slot >= 0) {
+            replace(slot, email, customer);
+            return;
+        }
+        long address = append(email, customer);
+        int free = -slot - 1;
+        if (getAddress(free) == EMPTY) {
+            used++;
+        }
+        setSlot(free, hash, address);
+        size++;
+        if (used > capacity * MAX_LOAD) {
+            resize();
+        }
+    }
+
+    @Override
+    public Customer read(String email) {
+        if (email == null) {
+            return null;
+        }
+        byte[] key = encode(email);
+        int slot = probe(key, hash(key));
+        return slot < 0 ? null : decode(getAddress(slot) - 1);
+    }
+
+    @Override
+    public void update(Customer customer) {
+        // only replaces existing keys
+        byte[] email = encode(requireEmail(customer));
+        int slot = probe(email, hash(email));
+        if (slot >= 0) {
+            replace(slot, email, customer);
+        }
+    }
+
+    /**
+     * Like InMemoryRepository, only removes the customer if the stored one is still the same:
+     * a record has no identity, so the same here means the same firstname and lastname.
+     */
+    @Override
+    public void delete(Customer customer) {
+        byte[] email = encode(requireEmail(customer));
+        int slot = probe(email, hash(email));
+        if (slot < 0) {
+            return;
+        }
+        long address = getAddress(slot) - 1;
+        Customer stored = decode(address);
+        if (Objects.equals(stored.getFirstname(), customer.getFirstname())
+                && Objects.equals(stored.getLastname(), customer.getLastname())) {
+            index.putLong(slot * SLOT_SIZE + 4, DELETED);
+            discard(address);
+            size--;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Direct memory allocated by the repository (records and hash table), including garbage and free space.
+     */
+    public long offHeapBytes() {
+        return (long) chunks.size() * CHUNK_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    //#region hash table
+
+    private static int hash(byte[] email) {
+        int h = Arrays.hashCode(email) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of the email, or (-slot - 1) of the slot to insert it into
+     */
+    private int probe(byte[] email, int hash) {
+        int mask = capacity - 1;
+        int insertAt = -1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long address = getAddress(slot);
+            if (address == EMPTY) {
+                return -(insertAt >= 0 ? insertAt : slot) - 1;
+            }
+            if (address == DELETED) {
+                if (insertAt < 0) {
+                    insertAt = slot;
+                }
+            } else if (index.getInt(slot * SLOT_SIZE) == hash && emailEquals(address - 1, email)) {
+                return slot;
+            }
+        }
+    }
+
+    private long getAddress(int slot) {
+        return index.getLong(slot * SLOT_SIZE + 4);
+    }
+
+    private void setSlot(int slot, int hash, long address) {
+        index.putInt(slot * SLOT_SIZE, hash);
+        index.putLong(slot * SLOT_SIZE + 4, address + 1);
+    }
+
+    /**
+     * Doubles the table (if it is not only full of deleted slots) and inserts the live slots again.
+     */
+    private void resize() {
+        int newCapacity = size > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity;
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException("OffHeapRepository is full: " + size + " customers");
+        }
+        ByteBuffer old = index;
+        int oldCapacity = capacity;
+        index = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        int mask = capacity - 1;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long address = old.getLong(slot * SLOT_SIZE + 4);
+            if (address != EMPTY && address != DELETED) {
+                int hash = old.getInt(slot * SLOT_SIZE);
+                int free = hash & mask;
+                while (getAddress(free) != EMPTY) {
+                    free = (free + 1) & mask;
+                }
+                setSlot(free, hash, address - 1);
+            }
+        }
+        used = size;
+    }
+
+    //#endregion
+
+    //#region records
+
+    // record: 3 unsigned shorts with the byte length + 1 of email, firstname, lastname (0: null), then the bytes
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException("Value too long to be stored: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks.get((int) (address >>> CHUNK_BITS));
+    }
+
+    private static int offset(long address) {
+        return (int) (address & (CHUNK_SIZE - 1));
+    }
+
+    private int recordSize(long address) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        return 6 + fieldLength(chunk, offset) + fieldLength(chunk, offset + 2) + fieldLength(chunk, offset + 4);
+    }
+
+    private static int fieldLength(ByteBuffer chunk, int position) {
+        return Math.max(0, Short.toUnsignedInt(chunk.getShort(position)) - 1);
+    }
+
+    private long append(byte[] email, Customer customer) {
+        byte[] firstname = encode(customer.getFirstname());
+        byte[] lastname = encode(customer.getLastname());
+        int recordSize = 6 + email.length + length(firstname) + length(lastname);
+
+        ByteBuffer chunk = chunks.get(chunks.size() - 1);
+        if (chunk.remaining() < recordSize) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            chunks.add(chunk);
+        }
+        long address = ((long) (chunks.size() - 1) << CHUNK_BITS) | chunk.position();
+        chunk.putShort((short) (email.length + 1));
+        chunk.putShort((short) (firstname == null ? 0 : firstname.length + 1));
+        chunk.putShort((short) (lastname == null ? 0 : lastname.length + 1));
+        chunk.put(email);
+        if (firstname != null) {
+            chunk.put(firstname);
+        }
+        if (lastname != null) {
+            chunk.put(lastname);
+        }
+        liveBytes += recordSize;
+        return address;
+    }
+
+    private void replace(int slot, byte[] email, Customer customer) {
+        long old = getAddress(slot) - 1;
+        // append first: a too long value must not lose the old record
+        long address = append(email, customer);
+        index.putLong(slot * SLOT_SIZE + 4, address + 1);
+        discard(old);
+    }
+
+    private void discard(long address) {
+        int recordSize = recordSize(address);
+        liveBytes -= recordSize;
+        garbageBytes += recordSize;
+        if (garbageBytes > liveBytes && garbageBytes > CHUNK_SIZE) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies the live records into new chunks, the old ones are left to the garbage collector.
+     */
+    private void compact() {
+        List<ByteBuffer> old = new ArrayList<>(chunks);
+        chunks.clear();
+        chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+        for (int slot = 0; slot < capacity; slot++) {
+            long address = getAddress(slot);
+            if (address == EMPTY || address == DELETED) {
+                continue;
+            }
+            ByteBuffer from = old.get((int) ((address - 1) >>> CHUNK_BITS));
+            int offset = offset(address - 1);
+            int recordSize = 6 + fieldLength(from, offset) + fieldLength(from, offset + 2) + fieldLength(from, offset + 4);
+
+            ByteBuffer to = chunks.get(chunks.size() - 1);
+            if (to.remaining() < recordSize) {
+                to = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                chunks.add(to);
+            }
+            long newAddress = ((long) (chunks.size() - 1) << CHUNK_BITS) | to.position();
+            to.put(from.duplicate().position(offset).limit(offset + recordSize));
+            index.putLong(slot * SLOT_SIZE + 4, newAddress + 1);
+        }
+        garbageBytes = 0;
+    }
+
+    private boolean emailEquals(long address, byte[] email) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        if (fieldLength(chunk, offset) != email.length) {
+            return false;
+        }
+        int start = offset + 6;
+        for (int i = 0; i < email.length; i++) {
+            if (chunk.get(start + i) != email[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Customer decode(long address) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        int position = offset + 6;
+        Customer customer = new Customer();
+        customer.setEmail(string(chunk, offset, position));
+        position += fieldLength(chunk, offset);
+        customer.setFirstname(string(chunk, offset + 2, position));
+        position += fieldLength(chunk, offset + 2);
+        customer.setLastname(string(chunk, offset + 4, position));
+        return customer;
+    }
+
+    private static String string(ByteBuffer chunk, int lengthPosition, int position) {
+        int length = Short.toUnsignedInt(chunk.getShort(lengthPosition));
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        chunk.duplicate().position(position).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //#endregion
+
+    private static String requireEmail(Customer customer) {
+        if (customer.getEmail() == null) {
+            throw new IllegalArgumentException("Customer without email cannot be stored");
+        }
+        return customer.getEmail();
+    }
+}
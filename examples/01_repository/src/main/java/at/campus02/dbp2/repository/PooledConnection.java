@@ -0,0 +1,70 @@
+package at.campus02.dbp2.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link Connection} borrowed from a {@link ConnectionPool}, together with its
+ * cached statements. {@link #close()} hands it back to the pool.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final StatementCache statements;
+
+    // maintained by the pool, nanoTime of the last release
+    long lastUsed;
+    // set by the pool when it hands the connection out, close gives it back only once
+    private final AtomicBoolean borrowed = new AtomicBoolean();
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statements = new StatementCache(connection);
+        this.lastUsed = System.nanoTime();
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public StatementCache getStatements() {
+        return statements;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        return statements.prepare(sql);
+    }
+
+    void markBorrowed() {
+        borrowed.set(true);
+    }
+
+    /**
+     * Returns the connection to the pool, it stays open. Closing it again does nothing.
+     */
+    @Override
+    public void close() {
+        if (borrowed.compareAndSet(true, false)) {
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Closes statements and the physical connection.
+     */
+    void discard() {
+        try {
+            try {
+                statements.close();
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            // connection is thrown away anyway
+        }
+    }
+}
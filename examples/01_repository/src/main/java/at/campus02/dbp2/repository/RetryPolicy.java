@@ -0,0 +1,87 @@
+package at.campus02.dbp2.repository;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a read-modify-write unit of work again when it fails with a {@link StaleCustomerException}.
+ * Retrying only the update would fail again with the same old version, so the unit of work has to
+ * read the customer itself:
+ * <pre>
+ * retryPolicy.run(() -&gt; {
+ *     Customer customer = repository.read(email);
+ *     customer.setFirstname("Conrad");
+ *     repository.update(customer);
+ * });
+ * </pre>
+ * Between two attempts it waits a random time of up to attempt x backoff, so that writers of the
+ * same customer do not collide again right away. Thread-safe, one policy can be shared.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param maxAttempts   attempts including the first one, after that the exception is rethrown
+     * @param backoffMillis 0 to retry immediately
+     */
+    public RetryPolicy(int maxAttempts, long backoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required");
+        }
+        if (backoffMillis < 0) {
+            throw new IllegalArgumentException("Backoff must not be negative");
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    public void run(Runnable unitOfWork) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                unitOfWork.run();
+                return;
+            } catch (StaleCustomerException e) {
+                if (attempt == maxAttempts) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                retries.incrementAndGet();
+                backoff(attempt, e);
+            }
+        }
+    }
+
+    private void backoff(int attempt, StaleCustomerException conflict) {
+        if (backoffMillis == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis * attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw conflict;
+        }
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Number of conflicts that were retried.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of units of work that still had a conflict after the last attempt.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,28 @@
+package at.campus02.dbp2.repository;
+
+import java.util.List;
+
+/**
+ * The customer was changed or deleted by someone else since it was read, see {@link Customer#getVersion()}.
+ * Read it again, apply the change again and retry, e.g. with a {@link RetryPolicy}.
+ */
+public class StaleCustomerException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public StaleCustomerException(Customer customer) {
+        this(customer, null);
+    }
+
+    public StaleCustomerException(Customer customer, Throwable cause) {
+        super("Customer " + customer.getEmail() + " was changed by someone else since version " + customer.getVersion(), cause);
+    }
+
+    /**
+     * For batch writes, they cannot tell which customer failed the version check.
+     */
+    public StaleCustomerException(List<Customer> customers, Throwable cause) {
+        super("One of the " + customers.size() + " customers starting with " + customers.get(0).getEmail()
+                + " was changed by someone else while they were written", cause);
+    }
+}
@@ -0,0 +1,571 @@
+package at.campus02.dbp2.repository;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorator that returns from create, update and delete right away and writes to the underlying
+ * repository in the background, with its batch operations (createAll, updateAll, deleteAll).
+ * <ul>
+ *     <li>writes of the same email wait as one: a later create or update replaces the customer of an earlier
+ *     create or update (a create after an update is written as create), a delete replaces a create or
+ *     update that was not written yet (the customer may exist underneath, so the delete is still written)</li>
+ *     <li>a background thread writes everything that is waiting once {@code capacity / 2} emails
+ *     are waiting, or after at most {@code maxDelayMillis}</li>
+ *     <li>back-pressure: a write of another email waits while {@code capacity} emails are waiting</li>
+ *     <li>read returns the waiting (or just being written) state of an email before asking the underlying repository</li>
+ *     <li>{@link #flush()} and {@link #close()} wait until everything is written</li>
+ * </ul>
+ * If a batch operation fails in the background, its customers are written again one by one, so one bad
+ * write does not take the others of the batch with it. Only the writes that fail on their own are lost,
+ * the next flush or close throws an IllegalStateException that names their emails.
+ * The underlying repository is only used by one thread at a time and closed with this one.
+ */
+public class WriteBehindRepository implements CustomerRepository, AutoCloseable {
+
+    private enum Kind { CREATE, UPDATE, DELETE }
+
+    /**
+     * What is waiting for one email. deleteFirst: a delete followed by a create, both are written.
+     */
+    private static class Write {
+        private Kind kind;
+        private Customer customer;
+        private boolean deleteFirst;
+        private Customer deleted;
+
+        Write(Kind kind, Customer customer) {
+            this.kind = kind;
+            this.customer = customer;
+        }
+    }
+
+    private final CustomerRepository delegate;
+    private final int capacity;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private final Condition flushRequired = lock.newCondition();
+    // the underlying repository is not thread-safe in general, reads of other emails share it with the flusher
+    private final ReentrantLock delegateLock = new ReentrantLock();
+    // in the order of the first write of an email
+    private Map<String, Write> waiting = new LinkedHashMap<>();
+    private Map<String, Write> inFlight = Map.of();
+    private long oldestWaitingNanos;
+    private long flushesStarted;
+    private long flushesCompleted;
+    private boolean flushRequested;
+    private boolean closed;
+    // the first failure and the emails of all failed writes since the last flush
+    private RuntimeException failure;
+    private final Set<String> failedEmails = new LinkedHashSet<>();
+
+    //#region statistics, guarded by lock
+    private long writeCount;
+    private long mergedCount;
+    private long blockedCount;
+    private long failedFlushCount;
+    private long writtenCount;
+    private long totalFlushNanos;
+    private long maxFlushNanos;
+    //#endregion
+
+    public WriteBehindRepository(CustomerRepository delegate) {
+        this(delegate, 10_000, 100);
+    }
+
+    public WriteBehindRepository(CustomerRepository delegate, int capacity, long maxDelayMillis) {
+        if (capacity < 2 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + " or delay " + maxDelayMillis);
+        }
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        flusher = new Thread(this::flushLoop, "WriteBehindRepository flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void create(Customer customer) {
+        enqueue(Kind.CREATE, customer);
+    }
+
+    @Override
+    public void update(Customer customer) {
+        enqueue(Kind.UPDATE, customer);
+    }
+
+    @Override
+    public void delete(Customer customer) {
+        enqueue(Kind.DELETE, customer);
+    }
+
+    @Override
+    public Customer read(String email) {
+        lock.lock();
+        try {
+            Write write = waiting.get(email);
+            if (write == null) {
+                write = inFlight.get(email);
+            }
+            if (write != null) {
+                return write.kind == Kind.DELETE ? null : write.customer;
+            }
+        } finally {
+            lock.unlock();
+        }
+        delegateLock.lock();
+        try {
+            // written in the meantime: the underlying repository has it now
+            return delegate.read(email);
+        } finally {
+            delegateLock.unlock();
+        }
+    }
+
+    private void enqueue(Kind kind, Customer customer) {
+        String email = customer.getEmail();
+        if (email == null) {
+            throw new IllegalArgumentException("Customer without email cannot be stored");
+        }
+        lock.lock();
+        try {
+            ensureOpen();
+            Write write = waiting.get(email);
+            while (write == null && waiting.size() >= capacity) {
+                blockedCount++;
+                flushRequired.signal();
+                notFull.awaitUninterruptibly();
+                ensureOpen();
+                write = waiting.get(email);
+            }
+            writeCount++;
+            if (write == null) {
+                if (waiting.isEmpty()) {
+                    oldestWaitingNanos = System.nanoTime();
+                }
+                Write added = new Write(kind, customer);
+                if (kind == Kind.DELETE) {
+                    added.deleted = customer;
+                }
+                waiting.put(email, added);
+                if (waiting.size() >= capacity / 2) {
+                    flushRequired.signal();
+                }
+                return;
+            }
+            mergedCount++;
+            merge(write, kind, customer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void merge(Write write, Kind kind, Customer customer) {
+        switch (kind) {
+            case CREATE:
+                if (write.kind == Kind.DELETE) {
+                    write.deleteFirst = true;
+                }
+                // an update before might not have found the customer, the create must insert it
+                write.kind = Kind.CREATE;
+                write.customer = customer;
+                break;
+            case UPDATE:
+                // an update of a deleted customer changes nothing
+                if (write.kind != Kind.DELETE) {
+                    write.customer = customer;
+                }
+                break;
+            default:
+                // also after a create that was not written yet: it would have failed if the customer existed
+                if (write.deleted == null) {
+                    write.deleted = customer;
+                }
+                write.kind = Kind.DELETE;
+                write.customer = null;
+        }
+    }
+
+    /**
+     * Waits until everything written before is written to the underlying repository.
+     *
+     * @throws IllegalStateException if a background write failed since the last flush
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            awaitWritten();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitWritten() {
+        long target = waiting.isEmpty() ? flushesStarted : flushesStarted + 1;
+        if (target > flushesStarted) {
+            flushRequested = true;
+            flushRequired.signal();
+        }
+        while (flushesCompleted < target) {
+            written.awaitUninterruptibly();
+        }
+        if (failure != null) {
+            throw takeFailure();
+        }
+    }
+
+    private IllegalStateException takeFailure() {
+        IllegalStateException e = new IllegalStateException("Write behind failed for " + failedEmails, failure);
+        failure = null;
+        failedEmails.clear();
+        return e;
+    }
+
+    //#region background writes
+
+    private void flushLoop() {
+        while (true) {
+            Map<String, Write> batch;
+            lock.lock();
+            try {
+                while (!closed && !isFlushDue()) {
+                    if (waiting.isEmpty()) {
+                        flushRequired.awaitUninterruptibly();
+                    } else {
+                        long remaining = maxDelayNanos - (System.nanoTime() - oldestWaitingNanos);
+                        try {
+                            flushRequired.awaitNanos(Math.max(1, remaining));
+                        } catch (InterruptedException e) {
+                            // nobody interrupts the flusher, close signals flushRequired
+                        }
+                    }
+                }
+                if (waiting.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch = waiting;
+                inFlight = batch;
+                waiting = new LinkedHashMap<>();
+                flushRequested = false;
+                flushesStarted++;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            writeBatch(batch);
+        }
+    }
+
+    private boolean isFlushDue() {
+        return !waiting.isEmpty() && (flushRequested
+                || waiting.size() >= capacity / 2
+                || lock.hasWaiters(notFull)
+                || System.nanoTime() - oldestWaitingNanos >= maxDelayNanos);
+    }
+
+    private void writeBatch(Map<String, Write> batch) {
+        List<Customer> deletes = new ArrayList<>();
+        List<Customer> creates = new ArrayList<>();
+        List<Customer> updates = new ArrayList<>();
+        for (Write write : batch.values()) {
+            if (write.kind == Kind.DELETE || write.deleteFirst) {
+                deletes.add(write.deleted);
+            }
+            if (write.kind == Kind.CREATE) {
+                creates.add(write.customer);
+            } else if (write.kind == Kind.UPDATE) {
+                updates.add(write.customer);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<String> failed = new ArrayList<>();
+        List<RuntimeException> failures = new ArrayList<>();
+        delegateLock.lock();
+        try {
+            // every email appears once, only a delete and a create of the same email depend on each other
+            writeAll(Kind.DELETE, deletes, failed, failures);
+            // a create after a failed delete of its email would fail as well
+            creates.removeIf(customer -> failed.contains(customer.getEmail()));
+            writeAll(Kind.CREATE, creates, failed, failures);
+            writeAll(Kind.UPDATE, updates, failed, failures);
+        } finally {
+            delegateLock.unlock();
+        }
+        long duration = System.nanoTime() - start;
+
+        lock.lock();
+        try {
+            inFlight = Map.of();
+            flushesCompleted++;
+            totalFlushNanos += duration;
+            maxFlushNanos = Math.max(maxFlushNanos, duration);
+            writtenCount += batch.size() - failed.size();
+            if (!failures.isEmpty()) {
+                failedFlushCount++;
+                if (failure == null) {
+                    failure = failures.get(0);
+                }
+                failedEmails.addAll(failed);
+            }
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One batch operation of the underlying repository. If it fails, the chunks it committed before stay
+     * written, so each customer is written again on its own with the same operation, unless the underlying
+     * repository already has it in the new state.
+     *
+     * @param failed   gets the emails that could not be written
+     * @param failures gets the exceptions of the customers that could not be written
+     */
+    private void writeAll(Kind kind, List<Customer> customers, List<String> failed, List<RuntimeException> failures) {
+        if (customers.isEmpty()) {
+            return;
+        }
+        try {
+            write(kind, customers);
+        } catch (RuntimeException batchFailure) {
+            for (Customer customer : customers) {
+                try {
+                    if (!isWritten(kind, customer)) {
+                        write(kind, List.of(customer));
+                    }
+                } catch (RuntimeException e) {
+                    failed.add(customer.getEmail());
+                    failures.add(e);
+                }
+            }
+        }
+    }
+
+    private void write(Kind kind, List<Customer> customers) {
+        switch (kind) {
+            case CREATE:
+                delegate.createAll(customers);
+                break;
+            case UPDATE:
+                delegate.updateAll(customers);
+                break;
+            default:
+                delegate.deleteAll(customers);
+        }
+    }
+
+    private boolean isWritten(Kind kind, Customer customer) {
+        Customer stored = delegate.read(customer.getEmail());
+        if (kind == Kind.DELETE) {
+            return stored == null;
+        }
+        return stored != null
+                && Objects.equals(stored.getLastname(), customer.getLastname())
+                && Objects.equals(stored.getFirstname(), customer.getFirstname());
+    }
+
+    //#endregion
+
+    /**
+     * Writes everything that is waiting, stops the background thread and closes the underlying repository.
+     *
+     * @throws IllegalStateException if a background write failed since the last flush,
+     *                               or the underlying repository could not be closed
+     */
+    @Override
+    public void close() {
+        IllegalStateException failed = null;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                awaitWritten();
+            } catch (IllegalStateException e) {
+                failed = e;
+            }
+            closed = true;
+            // writes accepted while waiting are still written by the flusher before it stops
+            flushRequired.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        joinFlusher();
+        lock.lock();
+        try {
+            if (failed == null && failure != null) {
+                failed = takeFailure();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            closeDelegate();
+        } catch (RuntimeException e) {
+            if (failed == null) {
+                throw e;
+            }
+            failed.addSuppressed(e);
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    /**
+     * Like the other waits of this class, an interrupt does not stop it but stays set.
+     */
+    private void joinFlusher() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                flusher.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeDelegate() {
+        if (!(delegate instanceof AutoCloseable)) {
+            return;
+        }
+        try {
+            ((AutoCloseable) delegate).close();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not close the underlying repository", e);
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Repository is closed");
+        }
+    }
+
+    //#region statistics
+
+    /**
+     * Emails waiting to be written, not counting the ones being written.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getWriteCount() {
+        lock.lock();
+        try {
+            return writeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes that were merged into an earlier write of the same email.
+     */
+    public long getMergedCount() {
+        lock.lock();
+        try {
+            return mergedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How often a write had to wait because the queue was full.
+     */
+    public long getBlockedCount() {
+        lock.lock();
+        try {
+            return blockedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Emails written to the underlying repository.
+     */
+    public long getWrittenCount() {
+        lock.lock();
+        try {
+            return writtenCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFlushCount() {
+        lock.lock();
+        try {
+            return flushesCompleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailedFlushCount() {
+        lock.lock();
+        try {
+            return failedFlushCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getAverageFlushMillis() {
+        lock.lock();
+        try {
+            return flushesCompleted == 0 ? 0 : totalFlushNanos / 1_000_000.0 / flushesCompleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getMaxFlushMillis() {
+        lock.lock();
+        try {
+            return maxFlushNanos / 1_000_000.0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //#endregion
+}
@@ -0,0 +1,349 @@
+package at.campus02.dbp2.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncCustomerRepositorySpec {
+
+    private static final String JDBC_URL = "jdbc:derby:memory:asyncCustomerRepositorySpec";
+
+    private AsyncCustomerRepository repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        repository = new AsyncCustomerRepository(
+                new JDBCRepository(new ConnectionPool(JDBC_URL + ";create=true", 4)), 4);
+    }
+
+    @AfterEach
+    public void afterEach() throws Exception {
+        repository.close();
+        JDBCRepositorySpec.dropDatabase(JDBC_URL);
+    }
+
+    //#region CRUD
+
+    @Test
+    public void createReadUpdateAndDeleteComplete() throws Exception {
+        // when
+        repository.create(customer("carlo@mail.com", "Carlo")).get(5, TimeUnit.SECONDS);
+        Customer read = repository.read("carlo@mail.com").get(5, TimeUnit.SECONDS);
+
+        // then
+        assertEquals("Carlo", read.getFirstname());
+
+        // and when
+        read.setFirstname("Conrad");
+        Customer updated = repository.update(read)
+                .thenCompose(ignored -> repository.read("carlo@mail.com"))
+                .get(5, TimeUnit.SECONDS);
+
+        // then
+        assertEquals("Conrad", updated.getFirstname());
+
+        // and when
+        Customer deleted = repository.delete(updated)
+                .thenCompose(ignored -> repository.read("carlo@mail.com"))
+                .get(5, TimeUnit.SECONDS);
+
+        // then
+        assertNull(deleted);
+    }
+
+    @Test
+    public void bulkOperationsComplete() throws Exception {
+        // given
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            customers.add(customer(i + "@mail.com", "Carlo"));
+        }
+
+        // when
+        repository.createAll(customers).get(5, TimeUnit.SECONDS);
+        customers.forEach(customer -> customer.setFirstname("Conrad"));
+        repository.updateAll(customers).get(5, TimeUnit.SECONDS);
+
+        // then
+        assertEquals("Conrad", repository.read("99@mail.com").get(5, TimeUnit.SECONDS).getFirstname());
+
+        // and when
+        repository.deleteAll(customers).get(5, TimeUnit.SECONDS);
+
+        // then
+        assertNull(repository.read("0@mail.com").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedCallCompletesExceptionally() throws Exception {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo")).get(5, TimeUnit.SECONDS);
+
+        // when: the email exists already
+        CompletableFuture<Void> duplicate = repository.create(customer("carlo@mail.com", "Conrad"));
+
+        // then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> duplicate.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RuntimeException, "cause: " + e.getCause());
+    }
+
+    @Test
+    public void callAfterCloseCompletesExceptionallyWithIllegalStateException() throws Exception {
+        // given
+        repository.close();
+
+        // when
+        CompletableFuture<Customer> read = repository.read("carlo@mail.com");
+
+        // then: no exception on the calling thread, the future fails
+        ExecutionException e = assertThrows(ExecutionException.class, () -> read.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException, "cause: " + e.getCause());
+        assertEquals("Repository is closed", e.getCause().getMessage());
+    }
+
+    //#endregion
+
+    //#region concurrency
+
+    /**
+     * Blocks every read until the latch opens.
+     */
+    private static class BlockingRepository extends InMemoryRepository implements AutoCloseable {
+        final CountDownLatch open = new CountDownLatch(1);
+        boolean closed;
+
+        @Override
+        public Customer read(String email) {
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.read(email);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void noMoreThanMaxConcurrentCallsRunAtOnce() throws Exception {
+        // given
+        BlockingRepository blocking = new BlockingRepository();
+        blocking.create(customer("carlo@mail.com", "Carlo"));
+        try (AsyncCustomerRepository limited = new AsyncCustomerRepository(blocking, 3)) {
+            List<CompletableFuture<Customer>> reads = new ArrayList<>();
+
+            // when
+            for (int i = 0; i < 20; i++) {
+                reads.add(limited.read("carlo@mail.com"));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (limited.getRunningCount() < 3 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+
+            // then
+            assertEquals(3, limited.getRunningCount());
+            assertTrue(reads.stream().noneMatch(CompletableFuture::isDone));
+
+            // and when
+            blocking.open.countDown();
+
+            // then
+            for (CompletableFuture<Customer> read : reads) {
+                assertEquals("Carlo", read.get(5, TimeUnit.SECONDS).getFirstname());
+            }
+            assertEquals(3, limited.getPeakRunningCount());
+        }
+        assertTrue(blocking.closed);
+    }
+
+    @Test
+    public void closeWaitsForSubmittedCalls() throws Exception {
+        // given
+        BlockingRepository blocking = new BlockingRepository();
+        blocking.create(customer("carlo@mail.com", "Carlo"));
+        AsyncCustomerRepository async = new AsyncCustomerRepository(blocking, 2);
+        CompletableFuture<Customer> read = async.read("carlo@mail.com");
+
+        // when
+        ExecutorService closer = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+                try {
+                    async.close();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, closer);
+            Thread.sleep(50);
+
+            // then
+            assertFalse(closed.isDone());
+            blocking.open.countDown();
+            closed.get(5, TimeUnit.SECONDS);
+            assertEquals("Carlo", read.getNow(null).getFirstname());
+        } finally {
+            closer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void usesVirtualThreadsWhenTheJavaVersionHasThem() {
+        assertEquals(Runtime.version().feature() >= 21, repository.isVirtual());
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Many simulated clients, each sends a few requests with think time in between: reads of random
+     * customers, every 10th request also an update. Blocking: every client runs on a thread of a pool of
+     * {@code benchmark.threads} platform threads (like a servlet container) and keeps it while thinking.
+     * Async: clients are chains of futures, they wait without a thread and share maxConcurrent database calls.
+     * <p>
+     * {@code gradle benchmark --tests '*AsyncCustomerRepositorySpec*' -Dbenchmark.clients=10000 -Dbenchmark.threads=200}
+     */
+    @Test
+    @Tag("benchmark")
+    public void manyClientsComparedToTheBlockingApi() throws Exception {
+        int clients = Integer.getInteger("benchmark.clients", 10_000);
+        int threads = Integer.getInteger("benchmark.threads", 200);
+        int requests = 5;
+        long thinkMillis = 20;
+        int connections = 8;
+        int customers = 10_000;
+
+        String jdbcUrl = "jdbc:derby:" + directory.resolve("derby").toAbsolutePath() + ";create=true";
+        JDBCRepository jdbc = new JDBCRepository(new ConnectionPool(jdbcUrl, connections));
+        List<Customer> all = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            all.add(customer(i + "@mail.com", "Carlo"));
+        }
+        jdbc.createAll(all);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        System.out.printf("%,d clients x %d requests, %d ms think time, %d connections, Java %d%n",
+                clients, requests, thinkMillis, connections, Runtime.version().feature());
+
+        // blocking
+        long[] sessionNanos = new long[clients];
+        threadBean.resetPeakThreadCount();
+        int threadsBefore = threadBean.getThreadCount();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<?>> sessions = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            long sessionStart = System.nanoTime();
+            sessions.add(pool.submit(() -> {
+                for (int request = 0; request < requests; request++) {
+                    Thread.sleep(thinkMillis);
+                    request(jdbc, customers);
+                }
+                sessionNanos[client] = System.nanoTime() - sessionStart;
+                return null;
+            }));
+        }
+        for (Future<?> session : sessions) {
+            session.get();
+        }
+        long blockingNanos = System.nanoTime() - start;
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        print("blocking, " + threads + " threads", clients * requests, blockingNanos, sessionNanos,
+                threadBean.getPeakThreadCount() - threadsBefore);
+
+        // async
+        threadBean.resetPeakThreadCount();
+        threadsBefore = threadBean.getThreadCount();
+        try (AsyncCustomerRepository async = new AsyncCustomerRepository(jdbc, connections)) {
+            // runs the next request on the timer thread: the default async pool would start a thread
+            // per task on a machine with 1 CPU
+            Executor think = CompletableFuture.delayedExecutor(thinkMillis, TimeUnit.MILLISECONDS, Runnable::run);
+            start = System.nanoTime();
+            CompletableFuture<?>[] asyncSessions = new CompletableFuture<?>[clients];
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                long sessionStart = System.nanoTime();
+                asyncSessions[c] = session(async, customers, requests, think)
+                        .thenRun(() -> sessionNanos[client] = System.nanoTime() - sessionStart);
+            }
+            CompletableFuture.allOf(asyncSessions).get();
+            long asyncNanos = System.nanoTime() - start;
+            print("async, " + (async.isVirtual() ? "virtual threads" : connections + " platform threads"),
+                    clients * requests, asyncNanos, sessionNanos, threadBean.getPeakThreadCount() - threadsBefore);
+        }
+    }
+
+    private static void request(CustomerRepository repository, int customers) {
+        Customer customer = repository.read(ThreadLocalRandom.current().nextInt(customers) + "@mail.com");
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            customer.setFirstname("Conrad");
+            // without version: overwrites, clients updating the same customer do not conflict
+            customer.setVersion(null);
+            repository.update(customer);
+        }
+    }
+
+    private static CompletableFuture<Void> session(AsyncCustomerRepository async, int customers, int requests,
+                                                   Executor think) {
+        if (requests == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> { }, think)
+                .thenCompose(thought -> async.read(ThreadLocalRandom.current().nextInt(customers) + "@mail.com"))
+                .thenCompose(customer -> {
+                    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                        customer.setFirstname("Conrad");
+                        customer.setVersion(null);
+                        return async.update(customer);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                })
+                .thenCompose(done -> session(async, customers, requests - 1, think));
+    }
+
+    /**
+     * sessionNanos: per client, from its start until its last request is answered, think time included.
+     */
+    private static void print(String name, int requests, long nanos, long[] sessionNanos, int extraThreads) {
+        long[] sorted = sessionNanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-32s %,8.0f requests/s  total %,6d ms  client session p50 %,6d ms  p99 %,6d ms  "
+                        + "peak threads +%,d%n",
+                name, requests / (nanos / 1e9), TimeUnit.NANOSECONDS.toMillis(nanos),
+                TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length / 2]),
+                TimeUnit.NANOSECONDS.toMillis(sorted[(int) (sorted.length * 0.99)]), extraThreads);
+    }
+
+    //#endregion
+}
@@ -0,0 +1,260 @@
+package at.campus02.dbp2.repository;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static at.campus02.dbp2.repository.ConcurrentTestSupport.runConcurrently;
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentInMemoryRepositorySpec {
+
+    private static final int THREADS = 8;
+
+    private ConcurrentInMemoryRepository repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        repository = new ConcurrentInMemoryRepository();
+    }
+
+    //#region CRUD
+
+    @Test
+    public void createStoresCustomerAndReadReturnsIt() {
+        // given
+        Customer carlo = customer("carlo@mail.com", "Carlo");
+
+        // when
+        repository.create(carlo);
+
+        // then
+        assertSame(carlo, repository.read("carlo@mail.com"));
+    }
+
+    @Test
+    public void readWithNullAsEmailReturnsNull() {
+        assertNull(repository.read(null));
+    }
+
+    @Test
+    public void createCustomerWithoutEmailThrowsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> repository.create(customer(null, "Nobody")));
+    }
+
+    @Test
+    public void updateDoesNotInsertNotExistingCustomer() {
+        // when
+        repository.update(customer("carlo@mail.com", "Carlo"));
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+    }
+
+    @Test
+    public void updateReplacesExistingCustomer() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        Customer conrad = customer("carlo@mail.com", "Conrad");
+
+        // when
+        repository.update(conrad);
+
+        // then
+        assertSame(conrad, repository.read("carlo@mail.com"));
+    }
+
+    @Test
+    public void deleteOnlyRemovesTheSameCustomer() {
+        // given
+        Customer stored = customer("carlo@mail.com", "Carlo");
+        repository.create(stored);
+
+        // when: another instance with the same email is not removed
+        repository.delete(customer("carlo@mail.com", "Carlo"));
+
+        // then
+        assertSame(stored, repository.read("carlo@mail.com"));
+
+        // and when
+        repository.delete(stored);
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+    }
+
+    //#endregion
+
+    //#region concurrency
+
+    @Test
+    public void concurrentCreatesOfDistinctCustomersAreAllStored() throws Exception {
+        // given
+        int perThread = 10_000;
+
+        // when
+        runConcurrently(THREADS, thread -> {
+            for (int i = 0; i < perThread; i++) {
+                repository.create(customer(thread + "-" + i + "@mail.com", "Carlo"));
+            }
+        });
+
+        // then
+        assertEquals(THREADS * perThread, repository.size());
+    }
+
+    @Test
+    public void concurrentUpdatesAndDeletesNeverResurrectCustomers() throws Exception {
+        // given: half of the threads delete, the other half update the same keys
+        int keys = 5_000;
+        List<Customer> originals = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            Customer original = customer(i + "@mail.com", "Original");
+            originals.add(original);
+            repository.create(original);
+        }
+
+        // when
+        runConcurrently(THREADS, thread -> {
+            for (int i = 0; i < keys; i++) {
+                if (thread % 2 == 0) {
+                    repository.delete(originals.get(i));
+                } else {
+                    repository.update(customer(i + "@mail.com", "Updated-" + thread));
+                }
+            }
+        });
+
+        // then: every key is either gone or holds an update, never an insert from update()
+        for (int i = 0; i < keys; i++) {
+            Customer current = repository.read(i + "@mail.com");
+            if (current != null) {
+                assertTrue(current == originals.get(i) || current.getFirstname().startsWith("Updated-"));
+            }
+        }
+        // deletes of the original instances and updates of the same key race,
+        // so the repository can never hold more than the initial keys
+        assertTrue(repository.size() <= keys);
+    }
+
+    @Test
+    public void concurrentReadsAlwaysSeeCompleteCustomers() throws Exception {
+        // given
+        int keys = 1_000;
+        for (int i = 0; i < keys; i++) {
+            repository.create(customer(i + "@mail.com", "Carlo"));
+        }
+
+        // when: writers replace customers while readers read them
+        runConcurrently(THREADS, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 50_000; i++) {
+                String email = random.nextInt(keys) + "@mail.com";
+                if (thread == 0) {
+                    repository.update(customer(email, "Conrad"));
+                } else {
+                    Customer read = repository.read(email);
+                    // then
+                    assertNotNull(read);
+                    assertEquals(email, read.getEmail());
+                }
+            }
+        });
+        assertEquals(keys, repository.size());
+    }
+
+    //#endregion
+
+    //#region throughput
+
+    @Test
+    @Tag("benchmark")
+    public void throughputComparedToSingleLockHashMap() throws Exception {
+        int keys = 100_000;
+        int operationsPerThread = 2_000_000;
+
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            CustomerRepository locked = new SingleLockRepository(new InMemoryRepository());
+            CustomerRepository concurrent = new ConcurrentInMemoryRepository(keys);
+
+            // warm up both, the measured run follows directly
+            measureThroughput(locked, threads, keys, operationsPerThread / 10);
+            measureThroughput(concurrent, threads, keys, operationsPerThread / 10);
+
+            double lockedOps = measureThroughput(locked, threads, keys, operationsPerThread);
+            double concurrentOps = measureThroughput(concurrent, threads, keys, operationsPerThread);
+
+            System.out.printf("threads: %d  HashMap + single lock: %,.0f ops/s  ConcurrentInMemoryRepository: %,.0f ops/s  (x%.1f)%n",
+                    threads, lockedOps, concurrentOps, concurrentOps / lockedOps);
+        }
+    }
+
+    /**
+     * 90% reads, 10% updates on a fixed key set, returns operations per second.
+     */
+    private static double measureThroughput(CustomerRepository repository, int threads, int keys, int operationsPerThread) throws Exception {
+        Customer[] customers = new Customer[keys];
+        for (int i = 0; i < keys; i++) {
+            customers[i] = customer(i + "@mail.com", "Carlo");
+            repository.create(customers[i]);
+        }
+
+        long start = System.nanoTime();
+        runConcurrently(threads, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < operationsPerThread; i++) {
+                int key = random.nextInt(keys);
+                if (random.nextInt(10) == 0) {
+                    repository.update(customers[key]);
+                } else {
+                    repository.read(customers[key].getEmail());
+                }
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        return (double) threads * operationsPerThread / elapsed * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    //#endregion
+
+    //#region helpers
+
+    /**
+     * The baseline: InMemoryRepository behind one global lock.
+     */
+    private static class SingleLockRepository implements CustomerRepository {
+        private final CustomerRepository delegate;
+
+        SingleLockRepository(CustomerRepository delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void create(Customer customer) {
+            delegate.create(customer);
+        }
+
+        @Override
+        public synchronized Customer read(String email) {
+            return delegate.read(email);
+        }
+
+        @Override
+        public synchronized void update(Customer customer) {
+            delegate.update(customer);
+        }
+
+        @Override
+        public synchronized void delete(Customer customer) {
+            delegate.delete(customer);
+        }
+    }
+
+    //#endregion
+}
@@ -0,0 +1,246 @@
+package at.campus02.dbp2.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static at.campus02.dbp2.repository.ConcurrentTestSupport.runConcurrently;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectionPoolSpec {
+
+    private static final String JDBC_URL = "jdbc:derby:memory:connectionPoolSpec";
+
+    private ConnectionPool pool;
+
+    @BeforeEach
+    public void beforeEach() {
+        pool = new ConnectionPool(JDBC_URL + ";create=true", 1, 3, 200, 50);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        pool.close();
+        JDBCRepositorySpec.dropDatabase(JDBC_URL);
+    }
+
+    //#region borrow / release
+
+    @Test
+    public void minSizeConnectionsAreOpenedUpFront() {
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, pool.getActiveCount());
+    }
+
+    @Test
+    public void releasedConnectionIsReused() throws SQLException {
+        // given
+        PooledConnection first = pool.borrow();
+        first.close();
+
+        // when
+        PooledConnection second = pool.borrow();
+
+        // then
+        assertSame(first, second);
+        assertFalse(second.getConnection().isClosed());
+        assertEquals(1, pool.getCreatedCount());
+        second.close();
+    }
+
+    @Test
+    public void borrowWaitsForReleasedConnection() throws Exception {
+        // given
+        PooledConnection first = pool.borrow();
+        PooledConnection second = pool.borrow();
+        PooledConnection third = pool.borrow();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // when
+            Future<PooledConnection> waiting = executor.submit(() -> pool.borrow());
+            Thread.sleep(50);
+            assertFalse(waiting.isDone());
+            second.close();
+
+            // then
+            assertSame(second, waiting.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        first.close();
+        third.close();
+    }
+
+    @Test
+    public void closingTwiceReleasesOnce() {
+        // given
+        PooledConnection first = pool.borrow();
+
+        // when
+        first.close();
+        first.close();
+
+        // then: two borrowers get two connections
+        PooledConnection second = pool.borrow();
+        PooledConnection third = pool.borrow();
+        assertNotSame(second, third);
+        assertEquals(2, pool.getActiveCount());
+        second.close();
+        third.close();
+    }
+
+    @Test
+    public void borrowOnExhaustedPoolTimesOut() {
+        // given
+        for (int i = 0; i < pool.getMaxSize(); i++) {
+            pool.borrow();
+        }
+
+        // when / then
+        assertThrows(IllegalStateException.class, () -> pool.borrow());
+        assertEquals(3, pool.getTotalCount());
+        assertEquals(1, pool.getTimeoutCount());
+        assertEquals(1.0, pool.getUtilisation());
+    }
+
+    @Test
+    public void invalidIdleConnectionIsReplacedOnBorrow() throws SQLException {
+        // given: the idle connection breaks while it is in the pool
+        PooledConnection broken = pool.borrow();
+        broken.close();
+        broken.getConnection().close();
+
+        // when
+        PooledConnection borrowed = pool.borrow();
+
+        // then
+        assertNotSame(broken, borrowed);
+        assertTrue(borrowed.getConnection().isValid(1));
+        assertEquals(1, pool.getDiscardedCount());
+        assertEquals(1, pool.getTotalCount());
+        borrowed.close();
+    }
+
+    @Test
+    public void idleConnectionsAreEvictedDownToMinSize() throws InterruptedException {
+        // given
+        List<PooledConnection> borrowed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            borrowed.add(pool.borrow());
+        }
+        borrowed.forEach(PooledConnection::close);
+        assertEquals(3, pool.getIdleCount());
+
+        // when
+        Thread.sleep(100);
+        pool.evictIdleConnections();
+
+        // then
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(2, pool.getDiscardedCount());
+    }
+
+    @Test
+    public void closedPoolRejectsBorrow() {
+        // when
+        pool.close();
+
+        // then
+        assertEquals(0, pool.getTotalCount());
+        assertThrows(IllegalStateException.class, () -> pool.borrow());
+    }
+
+    @Test
+    public void connectionReleasedAfterCloseIsClosed() throws SQLException {
+        // given
+        PooledConnection borrowed = pool.borrow();
+
+        // when
+        pool.close();
+        borrowed.close();
+
+        // then
+        assertTrue(borrowed.getConnection().isClosed());
+        assertEquals(0, pool.getTotalCount());
+    }
+
+    //#endregion
+
+    //#region repository
+
+    @Test
+    public void pooledRepositoryCanBeUsedByManyThreads() throws Exception {
+        // given: more threads than connections, generous timeout for slow build machines
+        ConnectionPool shared = new ConnectionPool(JDBC_URL, 1, 4, 30_000, 60_000);
+        JDBCRepository repository = new JDBCRepository(shared);
+        int threads = 8;
+        int perThread = 100;
+
+        // when
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < perThread; i++) {
+                Customer customer = new Customer();
+                customer.setEmail(thread + "-" + i + "@mail.com");
+                customer.setFirstname("Carlo");
+                customer.setLastname("Customer");
+                repository.create(customer);
+                assertEquals("Carlo", repository.read(customer.getEmail()).getFirstname());
+            }
+        });
+
+        // then
+        for (int thread = 0; thread < threads; thread++) {
+            for (int i = 0; i < perThread; i++) {
+                assertNotNull(repository.read(thread + "-" + i + "@mail.com"));
+            }
+        }
+        assertTrue(shared.getPeakActiveCount() <= shared.getMaxSize());
+        assertEquals(0, shared.getActiveCount());
+        // table check + create + read per customer + final reads
+        assertEquals(1 + 2 * threads * perThread + threads * perThread, shared.getBorrowCount());
+        repository.close();
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void waitTimeAndUtilisationForDifferentPoolSizes() throws Exception {
+        int threads = 16;
+        int perThread = 2_000;
+
+        for (int maxSize : new int[]{1, 2, 4, 8, 16}) {
+            ConnectionPool measured = new ConnectionPool(JDBC_URL, maxSize, maxSize, 60_000, 60_000);
+            JDBCRepository repository = new JDBCRepository(measured);
+            long start = System.nanoTime();
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < perThread; i++) {
+                    Customer customer = new Customer();
+                    customer.setEmail(maxSize + "-" + thread + "-" + i + "@mail.com");
+                    repository.create(customer);
+                    repository.read(customer.getEmail());
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("pool size %2d: %,8.0f ops/s  avg wait %6.3f ms  max wait %7.2f ms  peak active %2d%n",
+                    maxSize,
+                    2.0 * threads * perThread / elapsed * TimeUnit.SECONDS.toNanos(1),
+                    measured.getAverageWaitMillis(),
+                    measured.getMaxWaitMillis(),
+                    measured.getPeakActiveCount());
+            repository.close();
+        }
+    }
+
+    //#endregion
+}
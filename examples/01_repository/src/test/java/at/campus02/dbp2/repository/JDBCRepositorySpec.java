@@ -0,0 +1,520 @@
+package at.campus02.dbp2.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static at.campus02.dbp2.repository.ConcurrentTestSupport.runConcurrently;
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JDBCRepositorySpec {
+
+    // in-memory derby database, no files in the project folder
+    private static final String JDBC_URL = "jdbc:derby:memory:jdbcRepositorySpec";
+
+    private JDBCRepository repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        repository = new JDBCRepository(JDBC_URL + ";create=true");
+    }
+
+    @AfterEach
+    public void afterEach() {
+        repository.close();
+        dropDatabase(JDBC_URL);
+    }
+
+    static void dropDatabase(String jdbcUrl) {
+        try {
+            DriverManager.getConnection(jdbcUrl + ";drop=true").close();
+        } catch (SQLException e) {
+            // derby always reports a successful drop as SQLException with state 08006
+            if (!"08006".equals(e.getSQLState())) {
+                throw new IllegalStateException("Could not drop database", e);
+            }
+        }
+    }
+
+    //#region CRUD
+
+    @Test
+    public void createAndReadCustomer() {
+        // given
+        Customer carlo = customer("carlo@mail.com");
+
+        // when
+        repository.create(carlo);
+        Customer fromDb = repository.read(carlo.getEmail());
+
+        // then
+        assertEquals("carlo@mail.com", fromDb.getEmail());
+        assertEquals("Carlo", fromDb.getFirstname());
+        assertEquals("Customer", fromDb.getLastname());
+    }
+
+    @Test
+    public void readNotExistingCustomerReturnsNull() {
+        assertNull(repository.read("nobody@mail.com"));
+    }
+
+    @Test
+    public void updateChangesCustomerInDatabase() {
+        // given
+        Customer carlo = customer("carlo@mail.com");
+        repository.create(carlo);
+
+        // when
+        carlo.setFirstname("Conrad");
+        repository.update(carlo);
+
+        // then
+        assertEquals("Conrad", repository.read(carlo.getEmail()).getFirstname());
+    }
+
+    @Test
+    public void deleteRemovesCustomerFromDatabase() {
+        // given
+        Customer carlo = customer("carlo@mail.com");
+        repository.create(carlo);
+
+        // when
+        repository.delete(carlo);
+
+        // then
+        assertNull(repository.read(carlo.getEmail()));
+    }
+
+    @Test
+    public void createExistingCustomerThrowsIllegalStateException() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+
+        // when / then
+        assertThrows(IllegalStateException.class, () -> repository.create(customer("carlo@mail.com")));
+
+        // the cached statement can still be used afterwards
+        repository.create(customer("conrad@mail.com"));
+        assertNotNull(repository.read("conrad@mail.com"));
+    }
+
+    //#endregion
+
+    //#region optimistic locking
+
+    @Test
+    public void createAndUpdateSetTheVersion() {
+        // given
+        Customer carlo = customer("carlo@mail.com");
+
+        // when
+        repository.create(carlo);
+        Long created = carlo.getVersion();
+        carlo.setFirstname("Conrad");
+        repository.update(carlo);
+
+        // then
+        assertEquals(1L, created);
+        assertEquals(2L, carlo.getVersion());
+        assertEquals(2L, repository.read("carlo@mail.com").getVersion());
+    }
+
+    @Test
+    public void updateOfOutdatedVersionThrowsStaleCustomerException() {
+        // given: two writers read the same version
+        repository.create(customer("carlo@mail.com"));
+        Customer first = repository.read("carlo@mail.com");
+        Customer second = repository.read("carlo@mail.com");
+        first.setFirstname("First");
+        repository.update(first);
+
+        // when / then
+        second.setFirstname("Second");
+        assertThrows(StaleCustomerException.class, () -> repository.update(second));
+        assertEquals("First", repository.read("carlo@mail.com").getFirstname());
+    }
+
+    @Test
+    public void deleteOfOutdatedVersionThrowsStaleCustomerException() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+        Customer first = repository.read("carlo@mail.com");
+        Customer second = repository.read("carlo@mail.com");
+        repository.update(first);
+
+        // when / then
+        assertThrows(StaleCustomerException.class, () -> repository.delete(second));
+        assertNotNull(repository.read("carlo@mail.com"));
+    }
+
+    @Test
+    public void updateOfDeletedCustomerThrowsStaleCustomerException() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+        Customer read = repository.read("carlo@mail.com");
+        repository.delete(repository.read("carlo@mail.com"));
+
+        // when / then
+        assertThrows(StaleCustomerException.class, () -> repository.update(read));
+    }
+
+    @Test
+    public void customerWithoutVersionOverwritesAndIncrementsTheVersion() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+        Customer read = repository.read("carlo@mail.com");
+
+        // when
+        Customer unversioned = customer("carlo@mail.com");
+        unversioned.setFirstname("Conrad");
+        repository.update(unversioned);
+
+        // then
+        assertNull(unversioned.getVersion());
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+        assertThrows(StaleCustomerException.class, () -> repository.update(read));
+    }
+
+    @Test
+    public void existingTableWithoutVersionGetsVersionColumn() throws Exception {
+        String url = "jdbc:derby:memory:jdbcRepositorySpecWithoutVersion";
+        try {
+            // given: the table as it was created before customers had a version
+            try (Connection connection = DriverManager.getConnection(url + ";create=true");
+                 Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE Customer (email varchar(50) PRIMARY KEY, lastname varchar(50), firstname varchar(50))");
+                statement.execute("INSERT INTO Customer VALUES ('carlo@mail.com', 'Customer', 'Carlo')");
+            }
+
+            // when
+            try (JDBCRepository migrated = new JDBCRepository(url)) {
+                Customer carlo = migrated.read("carlo@mail.com");
+
+                // then
+                assertEquals(1L, carlo.getVersion());
+                carlo.setFirstname("Conrad");
+                migrated.update(carlo);
+                assertEquals("Conrad", migrated.read("carlo@mail.com").getFirstname());
+            }
+        } finally {
+            dropDatabase(url);
+        }
+    }
+
+    @Test
+    public void updateLockedChangesCustomer() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+
+        // when
+        boolean updated = repository.updateLocked("carlo@mail.com", customer -> customer.setFirstname("Conrad"));
+        boolean missing = repository.updateLocked("nobody@mail.com", customer -> customer.setFirstname("Conrad"));
+
+        // then
+        assertTrue(updated);
+        assertFalse(missing);
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+        assertEquals(2L, repository.read("carlo@mail.com").getVersion());
+    }
+
+    @Test
+    public void repositoryCallWithinUpdateLockedTimesOutWithOneConnection() {
+        // given: one connection like the single connection mode, but a short acquire timeout
+        repository.create(customer("carlo@mail.com"));
+        try (JDBCRepository single = new JDBCRepository(new ConnectionPool(JDBC_URL, 1, 1, 200, Long.MAX_VALUE))) {
+
+            // when / then: the read waits for the connection updateLocked holds, instead of forever
+            assertThrows(IllegalStateException.class, () -> single.updateLocked("carlo@mail.com",
+                    customer -> single.read("nobody@mail.com")));
+            assertEquals(1L, single.read("carlo@mail.com").getVersion());
+        }
+    }
+
+    @Test
+    public void retryPolicyRunsTheUnitOfWorkAgainAfterAConflict() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+        RetryPolicy retryPolicy = new RetryPolicy(3, 0);
+        AtomicInteger attempts = new AtomicInteger();
+
+        // when: another writer changes the customer between read and update of the first attempt
+        retryPolicy.run(() -> {
+            Customer carlo = repository.read("carlo@mail.com");
+            if (attempts.incrementAndGet() == 1) {
+                repository.update(repository.read("carlo@mail.com"));
+            }
+            carlo.setFirstname("Conrad");
+            repository.update(carlo);
+        });
+
+        // then
+        assertEquals(2, attempts.get());
+        assertEquals(1, retryPolicy.getRetries());
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+    }
+
+    @Test
+    public void retryPolicyRethrowsConflictAfterTheLastAttempt() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+        RetryPolicy retryPolicy = new RetryPolicy(2, 0);
+
+        // when / then
+        assertThrows(StaleCustomerException.class, () -> retryPolicy.run(() -> {
+            Customer carlo = repository.read("carlo@mail.com");
+            repository.update(repository.read("carlo@mail.com"));
+            repository.update(carlo);
+        }));
+        assertEquals(1, retryPolicy.getRetries());
+        assertEquals(1, retryPolicy.getFailures());
+    }
+
+    @Test
+    public void concurrentIncrementsLoseNoUpdate() throws Exception {
+        // given: the firstname is used as counter
+        int threads = 4;
+        int incrementsPerThread = 50;
+        Customer counter = customer("counter@mail.com");
+        counter.setFirstname("0");
+        repository.create(counter);
+        Customer locked = customer("locked@mail.com");
+        locked.setFirstname("0");
+        repository.create(locked);
+        RetryPolicy retryPolicy = new RetryPolicy(1_000, 1);
+
+        // when
+        try (JDBCRepository pooled = new JDBCRepository(new ConnectionPool(JDBC_URL, 1, threads, 60_000, 60_000))) {
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < incrementsPerThread; i++) {
+                    retryPolicy.run(() -> {
+                        Customer customer = pooled.read("counter@mail.com");
+                        customer.setFirstname(String.valueOf(Integer.parseInt(customer.getFirstname()) + 1));
+                        pooled.update(customer);
+                    });
+                    pooled.updateLocked("locked@mail.com",
+                            customer -> customer.setFirstname(String.valueOf(Integer.parseInt(customer.getFirstname()) + 1)));
+                }
+            });
+        }
+
+        // then
+        assertEquals(String.valueOf(threads * incrementsPerThread), repository.read("counter@mail.com").getFirstname());
+        assertEquals(String.valueOf(threads * incrementsPerThread), repository.read("locked@mail.com").getFirstname());
+    }
+
+    //#endregion
+
+    //#region batch
+
+    private static List<Customer> customers(int count) {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            customers.add(customer(i + "@mail.com"));
+        }
+        return customers;
+    }
+
+    @Test
+    public void createAllUpdateAllDeleteAllInSeveralBatches() {
+        // given
+        repository.setBatchSize(7);
+        List<Customer> customers = customers(20);
+
+        // when
+        repository.createAll(customers);
+
+        // then
+        customers.forEach(customer -> assertNotNull(repository.read(customer.getEmail())));
+
+        // and when
+        customers.forEach(customer -> customer.setFirstname("Conrad"));
+        repository.updateAll(customers);
+
+        // then
+        customers.forEach(customer -> assertEquals("Conrad", repository.read(customer.getEmail()).getFirstname()));
+
+        // and when
+        repository.deleteAll(customers.subList(0, 15));
+
+        // then
+        customers.subList(0, 15).forEach(customer -> assertNull(repository.read(customer.getEmail())));
+        customers.subList(15, 20).forEach(customer -> assertNotNull(repository.read(customer.getEmail())));
+    }
+
+    @Test
+    public void failingBatchIsRolledBackCommittedBatchesStay() {
+        // given: the 10th customer (second batch) already exists
+        repository.setBatchSize(7);
+        repository.create(customer("9@mail.com"));
+        List<Customer> customers = customers(20);
+
+        // when
+        assertThrows(IllegalStateException.class, () -> repository.createAll(customers));
+
+        // then
+        assertNotNull(repository.read("0@mail.com"));
+        assertNotNull(repository.read("6@mail.com"));
+        assertNull(repository.read("7@mail.com"));
+        assertNull(repository.read("19@mail.com"));
+
+        // the connection is back in auto commit mode
+        repository.create(customer("conrad@mail.com"));
+        assertNotNull(repository.read("conrad@mail.com"));
+    }
+
+    //#endregion
+
+    //#region statement cache
+
+    @Test
+    public void statementsArePreparedOnlyOncePerConnection() {
+        // when
+        for (int i = 0; i < 10; i++) {
+            Customer customer = customer(i + "@mail.com");
+            repository.create(customer);
+            repository.read(customer.getEmail());
+            repository.update(customer);
+            repository.delete(customer);
+        }
+
+        // then: one miss per distinct statement, all other calls are hits
+        ConnectionPool pool = repository.getConnectionPool();
+        assertEquals(4, pool.getStatementMisses());
+        assertEquals(36, pool.getStatementHits());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void closeClosesStatementsAndConnection() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+
+        // when
+        repository.close();
+
+        // then
+        assertEquals(0, repository.getConnectionPool().getTotalCount());
+        assertThrows(IllegalStateException.class, () -> repository.read("carlo@mail.com"));
+
+        // afterEach closes again, must not fail
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    @Test
+    @Tag("benchmark")
+    public void latencyPerOperationWithAndWithoutStatementCache() throws Exception {
+        int customers = 20_000;
+        try (Connection connection = DriverManager.getConnection(JDBC_URL)) {
+            // warm up
+            runUncached(connection, "warmup-", customers / 4);
+            runCached("warmup-", customers / 4);
+
+            long[] uncached = runUncached(connection, "uncached-", customers);
+            long[] cached = runCached("cached-", customers);
+
+            String[] operations = {"create", "read", "update", "delete"};
+            for (int i = 0; i < operations.length; i++) {
+                System.out.printf("%-7s prepare per call: %6.1f µs/op  cached statement: %6.1f µs/op%n",
+                        operations[i],
+                        uncached[i] / 1_000.0 / customers,
+                        cached[i] / 1_000.0 / customers);
+            }
+        }
+    }
+
+    private long[] runCached(String prefix, int customers) {
+        long[] nanos = new long[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            repository.create(customer(prefix + i + "@mail.com"));
+        }
+        nanos[0] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            repository.read(prefix + i + "@mail.com");
+        }
+        nanos[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            repository.update(customer(prefix + i + "@mail.com"));
+        }
+        nanos[2] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            repository.delete(customer(prefix + i + "@mail.com"));
+        }
+        nanos[3] = System.nanoTime() - start;
+        return nanos;
+    }
+
+    /**
+     * The previous behaviour of JDBCRepository: prepare a new statement for every call
+     * (closed here, otherwise the benchmark would run out of cursors).
+     */
+    private static long[] runUncached(Connection connection, String prefix, int customers) throws SQLException {
+        long[] nanos = new long[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO Customer (email, lastname, firstname) VALUES(?,?,?)")) {
+                statement.setString(1, prefix + i + "@mail.com");
+                statement.setString(2, "Customer");
+                statement.setString(3, "Carlo");
+                statement.executeUpdate();
+            }
+        }
+        nanos[0] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM Customer WHERE Email = ?")) {
+                statement.setString(1, prefix + i + "@mail.com");
+                try (ResultSet rs = statement.executeQuery()) {
+                    rs.next();
+                }
+            }
+        }
+        nanos[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE Customer SET lastname = ?, firstname = ? WHERE email = ?")) {
+                statement.setString(1, "Customer");
+                statement.setString(2, "Carlo");
+                statement.setString(3, prefix + i + "@mail.com");
+                statement.executeUpdate();
+            }
+        }
+        nanos[2] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            try (PreparedStatement statement = connection.prepareStatement("DELETE from Customer WHERE email = ?")) {
+                statement.setString(1, prefix + i + "@mail.com");
+                statement.execute();
+            }
+        }
+        nanos[3] = System.nanoTime() - start;
+        return nanos;
+    }
+
+    //#endregion
+}
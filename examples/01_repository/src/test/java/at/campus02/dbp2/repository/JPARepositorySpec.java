@@ -0,0 +1,466 @@
+package at.campus02.dbp2.repository;
+
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static at.campus02.dbp2.repository.ConcurrentTestSupport.runConcurrently;
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JPARepositorySpec {
+
+    // every created customer of the throughput benchmark gets a new email, also across measurements
+    private static final AtomicInteger CREATED = new AtomicInteger();
+
+    private JPARepository repository;
+
+    private static List<Customer> customers(int count) {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            customers.add(customer(i + "@mail.com"));
+        }
+        return customers;
+    }
+
+    @BeforeEach
+    public void beforeEach() {
+        // the persistence unit drops and creates the tables
+        repository = new JPARepository();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        repository.close();
+    }
+
+    //#region CRUD
+
+    @Test
+    public void createReadUpdateDeleteCustomer() {
+        // given
+        Customer carlo = customer("carlo@mail.com");
+
+        // when
+        repository.create(carlo);
+
+        // then
+        assertEquals("Carlo", repository.read("carlo@mail.com").getFirstname());
+
+        // and when
+        Customer fromDb = repository.read("carlo@mail.com");
+        fromDb.setFirstname("Conrad");
+        repository.update(fromDb);
+
+        // then
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+
+        // and when
+        repository.delete(repository.read("carlo@mail.com"));
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+    }
+
+    //#endregion
+
+    //#region batch
+
+    @Test
+    public void createAllUpdateAllDeleteAllInSeveralChunks() {
+        // given
+        repository.setBatchSize(7);
+        List<Customer> customers = customers(20);
+
+        // when
+        repository.createAll(customers);
+
+        // then
+        customers.forEach(customer -> assertNotNull(repository.read(customer.getEmail())));
+
+        // and when
+        customers.forEach(customer -> customer.setFirstname("Conrad"));
+        repository.updateAll(customers);
+
+        // then
+        customers.forEach(customer -> assertEquals("Conrad", repository.read(customer.getEmail()).getFirstname()));
+
+        // and when
+        repository.deleteAll(customers.subList(0, 15));
+
+        // then
+        customers.subList(0, 15).forEach(customer -> assertNull(repository.read(customer.getEmail())));
+        customers.subList(15, 20).forEach(customer -> assertNotNull(repository.read(customer.getEmail())));
+    }
+
+    @Test
+    public void failingChunkIsRolledBackCommittedChunksStay() {
+        // given: the 10th customer (second chunk) already exists
+        repository.setBatchSize(7);
+        repository.create(customer("9@mail.com"));
+
+        // when
+        assertThrows(RuntimeException.class, () -> repository.createAll(customers(20)));
+
+        // then
+        assertNotNull(repository.read("0@mail.com"));
+        assertNotNull(repository.read("6@mail.com"));
+        assertNull(repository.read("7@mail.com"));
+        assertNull(repository.read("19@mail.com"));
+    }
+
+    @Test
+    public void setBatchSizeBelowOneThrowsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> repository.setBatchSize(0));
+    }
+
+    //#endregion
+
+    //#region read consistency
+
+    @Test
+    public void everyReadConsistencySeesChangesMadeThroughTheRepository() {
+        for (JPARepository.ReadConsistency consistency : JPARepository.ReadConsistency.values()) {
+            // given
+            repository.setReadConsistency(consistency);
+            String email = consistency + "@mail.com";
+            repository.create(customer(email));
+            Customer read = repository.read(email);
+
+            // when
+            Customer changed = customer(email);
+            changed.setFirstname("Conrad");
+            repository.update(changed);
+
+            // then
+            assertEquals("Conrad", repository.read(email).getFirstname(), consistency.name());
+            assertEquals("Conrad", repository.read(read.getEmail()).getFirstname(), consistency.name());
+        }
+    }
+
+    @Test
+    public void onlyRefreshKeepsTheCustomersOfThePersistenceContext() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+
+        // when / then
+        repository.setReadConsistency(JPARepository.ReadConsistency.CLEAR);
+        assertNotSame(repository.read("carlo@mail.com"), repository.read("carlo@mail.com"));
+        repository.setReadConsistency(JPARepository.ReadConsistency.DETACH);
+        assertNotSame(repository.read("carlo@mail.com"), repository.read("carlo@mail.com"));
+        repository.setReadConsistency(JPARepository.ReadConsistency.REFRESH);
+        assertSame(repository.read("carlo@mail.com"), repository.read("carlo@mail.com"));
+    }
+
+    @Test
+    public void refreshSeesChangesMadeOutsideTheFactory() throws Exception {
+        // given
+        repository.setReadConsistency(JPARepository.ReadConsistency.REFRESH);
+        repository.create(customer("carlo@mail.com"));
+        Customer read = repository.read("carlo@mail.com");
+
+        // when: the shared cache of the factory does not know about this change
+        try (Connection connection = DriverManager.getConnection("jdbc:derby:database");
+             PreparedStatement update = connection.prepareStatement("UPDATE CUSTOMER SET FIRSTNAME = ? WHERE EMAIL = ?")) {
+            update.setString(1, "Conrad");
+            update.setString(2, "carlo@mail.com");
+            update.executeUpdate();
+        }
+
+        // then
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+        assertEquals("Conrad", read.getFirstname());
+    }
+
+    @Test
+    public void setReadConsistencyToNullThrowsNullPointerException() {
+        assertThrows(NullPointerException.class, () -> repository.setReadConsistency(null));
+    }
+
+    //#endregion
+
+    //#region optimistic locking
+
+    @Test
+    public void createAndUpdateSetTheVersion() {
+        // given
+        Customer carlo = customer("carlo@mail.com");
+
+        // when
+        repository.create(carlo);
+        Long created = carlo.getVersion();
+        Customer read = repository.read("carlo@mail.com");
+        read.setFirstname("Conrad");
+        repository.update(read);
+
+        // then
+        assertEquals(1L, created);
+        assertEquals(2L, read.getVersion());
+        assertEquals(2L, repository.read("carlo@mail.com").getVersion());
+    }
+
+    @Test
+    public void updateOrDeleteOfOutdatedVersionThrowsStaleCustomerException() {
+        for (JPARepository.ReadConsistency consistency : JPARepository.ReadConsistency.values()) {
+            // given: two writers read the same version
+            repository.setReadConsistency(consistency);
+            String email = consistency + "@mail.com";
+            repository.create(customer(email));
+            Customer first = copy(repository.read(email));
+            Customer second = copy(repository.read(email));
+            first.setFirstname("First");
+            repository.update(first);
+
+            // when / then
+            second.setFirstname("Second");
+            assertThrows(StaleCustomerException.class, () -> repository.update(second), consistency.name());
+            assertThrows(StaleCustomerException.class, () -> repository.delete(second), consistency.name());
+            assertEquals("First", repository.read(email).getFirstname(), consistency.name());
+        }
+    }
+
+    @Test
+    public void updateOfManagedCustomerChangedByAnotherManagerThrowsStaleCustomerException() {
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory("nameOfJpaPersistenceUnit");
+        try {
+            // given: the single manager keeps the customer it read, another manager changes it
+            JPARepository other = new JPARepository(factory);
+            repository.setReadConsistency(JPARepository.ReadConsistency.REFRESH);
+            repository.create(customer("carlo@mail.com"));
+            Customer managed = repository.read("carlo@mail.com");
+            Customer changed = other.read("carlo@mail.com");
+            changed.setFirstname("Other");
+            other.update(changed);
+
+            // when / then
+            managed.setFirstname("Conrad");
+            assertThrows(StaleCustomerException.class, () -> repository.update(managed));
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void customerWithoutVersionOverwrites() {
+        // given
+        repository.create(customer("carlo@mail.com"));
+        Customer read = repository.read("carlo@mail.com");
+        read.setFirstname("Other");
+        repository.update(read);
+
+        // when
+        Customer unversioned = customer("carlo@mail.com");
+        unversioned.setFirstname("Conrad");
+        repository.update(unversioned);
+
+        // then
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+        assertEquals(3L, repository.read("carlo@mail.com").getVersion());
+    }
+
+    @Test
+    public void updateAllOverwritesWithoutVersionCheckLikeJdbc() {
+        // given: two writers read the same version
+        repository.create(customer("carlo@mail.com"));
+        Customer first = copy(repository.read("carlo@mail.com"));
+        Customer second = copy(repository.read("carlo@mail.com"));
+        first.setFirstname("First");
+        repository.update(first);
+
+        // when
+        second.setFirstname("Second");
+        repository.updateAll(List.of(second));
+
+        // then
+        assertEquals("Second", repository.read("carlo@mail.com").getFirstname());
+        assertEquals(3L, repository.read("carlo@mail.com").getVersion());
+        assertEquals(1L, second.getVersion());
+    }
+
+    @Test
+    public void changeWhileUpdateAllWritesTheChunkThrowsStaleCustomerException() {
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory("nameOfJpaPersistenceUnit");
+        try {
+            // given: someone else commits a change right before the UPDATE statement of updateAll
+            JPARepository perOperation = new JPARepository(factory);
+            perOperation.create(customer("carlo@mail.com"));
+            AtomicBoolean once = new AtomicBoolean(true);
+            JpaHelper.getServerSession(factory).getDescriptor(Customer.class).getEventManager()
+                    .addListener(new DescriptorEventAdapter() {
+                        @Override
+                        public void aboutToUpdate(DescriptorEvent event) {
+                            if (once.getAndSet(false)) {
+                                updateFirstnameWithJdbc("carlo@mail.com", "Other");
+                            }
+                        }
+                    });
+            Customer changed = customer("carlo@mail.com");
+            changed.setFirstname("Conrad");
+
+            // when / then
+            assertThrows(StaleCustomerException.class, () -> perOperation.updateAll(List.of(changed)));
+            // the shared cache does not know about the JDBC change
+            factory.getCache().evictAll();
+            assertEquals("Other", perOperation.read("carlo@mail.com").getFirstname());
+        } finally {
+            factory.close();
+        }
+    }
+
+    private static void updateFirstnameWithJdbc(String email, String firstname) {
+        try (Connection connection = DriverManager.getConnection("jdbc:derby:database");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE CUSTOMER SET FIRSTNAME = ?, VERSION = VERSION + 1 WHERE EMAIL = ?")) {
+            update.setString(1, firstname);
+            update.setString(2, email);
+            update.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A detached copy, like a customer that was read by another client.
+     */
+    private static Customer copy(Customer customer) {
+        Customer copy = customer(customer.getEmail());
+        copy.setFirstname(customer.getFirstname());
+        copy.setLastname(customer.getLastname());
+        copy.setVersion(customer.getVersion());
+        return copy;
+    }
+
+    //#endregion
+
+    //#region per-operation mode
+
+    @Test
+    public void perOperationRepositoryKeepsTheSharedFactoryOpen() {
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory("nameOfJpaPersistenceUnit");
+        try {
+            // given
+            JPARepository perOperation = new JPARepository(factory);
+            perOperation.create(customer("carlo@mail.com"));
+
+            // when
+            Customer fromDb = perOperation.read("carlo@mail.com");
+            fromDb.setFirstname("Conrad");
+            perOperation.update(fromDb);
+            perOperation.close();
+
+            // then
+            assertTrue(factory.isOpen());
+            JPARepository other = new JPARepository(factory);
+            assertEquals("Conrad", other.read("carlo@mail.com").getFirstname());
+
+            // and when: the detached customer of another repository can be deleted
+            other.delete(fromDb);
+
+            // then
+            assertNull(other.read("carlo@mail.com"));
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void perOperationRepositoryCanBeSharedByThreads() throws Exception {
+        // given
+        int threads = 8;
+        int customersPerThread = 25;
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory("nameOfJpaPersistenceUnit");
+        try {
+            JPARepository shared = new JPARepository(factory);
+
+            // when
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < customersPerThread; i++) {
+                    String email = thread + "-" + i + "@mail.com";
+                    shared.create(customer(email));
+                    Customer fromDb = shared.read(email);
+                    fromDb.setFirstname("Conrad" + thread);
+                    shared.update(fromDb);
+                }
+            });
+
+            // then
+            for (int thread = 0; thread < threads; thread++) {
+                for (int i = 0; i < customersPerThread; i++) {
+                    assertEquals("Conrad" + thread, shared.read(thread + "-" + i + "@mail.com").getFirstname());
+                }
+            }
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void throughputScalingWithPerOperationEntityManagers() throws Exception {
+        int keys = 1_000;
+        int operationsPerThread = Integer.getInteger("benchmark.operations", 5_000);
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory("nameOfJpaPersistenceUnit");
+        try {
+            JPARepository shared = new JPARepository(factory);
+            shared.createAll(customers(keys));
+
+            // warm up, the first measurement should not pay for class loading and JIT
+            measureThroughput(shared, 1, keys, operationsPerThread);
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                double ops = measureThroughput(shared, threads, keys, operationsPerThread);
+                if (threads == 1) {
+                    single = ops;
+                }
+                System.out.printf("threads: %2d (%d cores)  %,8.0f ops/s  (x%.1f)%n",
+                        threads, Runtime.getRuntime().availableProcessors(), ops, ops / single);
+            }
+        } finally {
+            factory.close();
+        }
+    }
+
+    /**
+     * 10% creates, 70% reads, 20% updates, returns operations per second.
+     */
+    private static double measureThroughput(JPARepository repository, int threads, int keys, int operationsPerThread) throws Exception {
+        long start = System.nanoTime();
+        runConcurrently(threads, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < operationsPerThread; i++) {
+                int operation = random.nextInt(10);
+                if (operation == 0) {
+                    repository.create(customer("new-" + CREATED.incrementAndGet() + "@mail.com"));
+                } else if (operation < 8) {
+                    repository.read(random.nextInt(keys) + "@mail.com");
+                } else {
+                    Customer customer = customer(random.nextInt(keys) + "@mail.com");
+                    customer.setFirstname("Conrad");
+                    repository.update(customer);
+                }
+            }
+        });
+        long elapsed = System.nanoTime() - start;
+        return (double) threads * operationsPerThread / elapsed * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    //#endregion
+}
@@ -0,0 +1,403 @@
+package at.campus02.dbp2.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static at.campus02.dbp2.repository.ConcurrentTestSupport.runConcurrently;
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedLogRepositorySpec {
+
+    @TempDir
+    Path directory;
+
+    private MappedLogRepository repository;
+
+    private MappedLogRepository reopen() {
+        repository.close();
+        repository = new MappedLogRepository(directory);
+        return repository;
+    }
+
+    @BeforeEach
+    public void beforeEach() {
+        repository = new MappedLogRepository(directory);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        repository.close();
+    }
+
+    //#region CRUD
+
+    @Test
+    public void createStoresCustomerAndReadReturnsACopy() {
+        // given
+        Customer carlo = customer("carlo@mail.com", "Carlo");
+
+        // when
+        repository.create(carlo);
+        Customer read = repository.read("carlo@mail.com");
+
+        // then
+        assertNotSame(carlo, read);
+        assertEquals("carlo@mail.com", read.getEmail());
+        assertEquals("Carlo", read.getFirstname());
+        assertEquals("Customer", read.getLastname());
+        assertNull(repository.read(null));
+        assertNull(repository.read("unknown@mail.com"));
+    }
+
+    @Test
+    public void createCustomerWithoutEmailThrowsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> repository.create(customer(null, "Nobody")));
+    }
+
+    @Test
+    public void updateOnlyReplacesExistingCustomers() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when
+        repository.update(customer("carlo@mail.com", "Conrad"));
+        repository.update(customer("clara@mail.com", "Clara"));
+
+        // then
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+        assertNull(repository.read("clara@mail.com"));
+        assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void deleteOnlyRemovesTheSameCustomer() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when: a customer with other values is not removed
+        repository.delete(customer("carlo@mail.com", "Conrad"));
+
+        // then
+        assertNotNull(repository.read("carlo@mail.com"));
+
+        // and when
+        repository.delete(repository.read("carlo@mail.com"));
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+        assertEquals(0, repository.size());
+    }
+
+    @Test
+    public void closedRepositoryThrowsIllegalStateException() {
+        // given
+        repository.close();
+
+        // when / then
+        assertThrows(IllegalStateException.class, () -> repository.read("carlo@mail.com"));
+        assertThrows(IllegalStateException.class, () -> repository.create(customer("carlo@mail.com", "Carlo")));
+    }
+
+    //#endregion
+
+    //#region restart
+
+    private void createUpdateAndDelete() {
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        repository.create(customer("clara@mail.com", "Clara"));
+        repository.create(customer("conrad@mail.com", "Conrad"));
+        repository.update(customer("carlo@mail.com", "Carlo 2"));
+        repository.delete(repository.read("clara@mail.com"));
+    }
+
+    private void assertStateAfterCreateUpdateAndDelete() {
+        assertEquals("Carlo 2", repository.read("carlo@mail.com").getFirstname());
+        assertNull(repository.read("clara@mail.com"));
+        assertEquals("Conrad", repository.read("conrad@mail.com").getFirstname());
+        assertEquals(2, repository.size());
+    }
+
+    @Test
+    public void restartLoadsTheCheckpoint() {
+        // given
+        createUpdateAndDelete();
+
+        // when
+        reopen();
+
+        // then
+        assertTrue(Files.exists(directory.resolve(MappedLogRepository.CHECKPOINT_FILE)));
+        assertStateAfterCreateUpdateAndDelete();
+    }
+
+    @Test
+    public void restartWithoutCheckpointScansTheLog() throws IOException {
+        // given
+        createUpdateAndDelete();
+        repository.close();
+        Files.delete(directory.resolve(MappedLogRepository.CHECKPOINT_FILE));
+
+        // when
+        repository = new MappedLogRepository(directory);
+
+        // then
+        assertStateAfterCreateUpdateAndDelete();
+    }
+
+    @Test
+    public void restartAfterCrashScansTheRecordsAfterTheCheckpoint() {
+        // given: checkpoint, then more changes and no close (the abandoned instance stands for a crashed JVM)
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        reopen();
+        repository.create(customer("clara@mail.com", "Clara"));
+        repository.delete(repository.read("carlo@mail.com"));
+        MappedLogRepository crashed = repository;
+
+        // when
+        repository = new MappedLogRepository(directory);
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+        assertEquals("Clara", repository.read("clara@mail.com").getFirstname());
+        assertNotNull(crashed);
+    }
+
+    @Test
+    public void partlyWrittenRecordEndsTheLog() throws IOException {
+        // given: the last record is damaged, as after a crash while writing it
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        repository.create(customer("clara@mail.com", "Clara"));
+        repository.close();
+        Files.delete(directory.resolve(MappedLogRepository.CHECKPOINT_FILE));
+        damage(directory.resolve(MappedLogRepository.LOG_FILE), "clara@mail.com");
+
+        // when
+        repository = new MappedLogRepository(directory);
+
+        // then
+        assertEquals("Carlo", repository.read("carlo@mail.com").getFirstname());
+        assertNull(repository.read("clara@mail.com"));
+
+        // and when: the next record replaces the damaged one
+        repository.create(customer("conrad@mail.com", "Conrad"));
+        reopen();
+
+        // then
+        assertEquals("Conrad", repository.read("conrad@mail.com").getFirstname());
+        assertEquals(2, repository.size());
+    }
+
+    private static void damage(Path file, String text) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer start = ByteBuffer.allocate(4096);
+            channel.read(start, 0);
+            int position = new String(start.array(), StandardCharsets.ISO_8859_1).indexOf(text);
+            assertTrue(position > 0, text + " not found in the log");
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), position);
+        }
+    }
+
+    //#endregion
+
+    //#region compaction
+
+    @Test
+    public void compactionKeepsTheLatestState() throws IOException {
+        // given
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 1_000; i++) {
+                repository.create(customer(i + "@mail.com", "Round " + round));
+            }
+        }
+        for (int i = 0; i < 1_000; i += 2) {
+            repository.delete(repository.read(i + "@mail.com"));
+        }
+
+        // when
+        repository.compact();
+
+        // then, also after a restart from the checkpoint or from the compacted log alone
+        for (int restart = 0; restart < 3; restart++) {
+            assertEquals(500, repository.size());
+            for (int i = 0; i < 1_000; i++) {
+                Customer customer = repository.read(i + "@mail.com");
+                if (i % 2 == 0) {
+                    assertNull(customer);
+                } else {
+                    assertEquals("Round 9", customer.getFirstname());
+                }
+            }
+            reopen();
+            if (restart == 1) {
+                repository.close();
+                Files.delete(directory.resolve(MappedLogRepository.CHECKPOINT_FILE));
+                repository = new MappedLogRepository(directory);
+            }
+        }
+    }
+
+    @Test
+    public void backgroundCompactionDoesNotLoseConcurrentWrites() throws Exception {
+        // given: compacts as soon as there is more garbage than live data
+        repository.close();
+        repository = new MappedLogRepository(directory, 1);
+        int threads = 4;
+        int keys = 500;
+
+        // when: every thread writes its own keys, many times
+        runConcurrently(threads, thread -> {
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < keys; i++) {
+                    repository.create(customer(thread + "-" + i + "@mail.com", "Round " + round));
+                }
+            }
+        });
+        reopen();
+
+        // then
+        assertEquals(threads * keys, repository.size());
+        for (int thread = 0; thread < threads; thread++) {
+            for (int i = 0; i < keys; i++) {
+                assertEquals("Round 19", repository.read(thread + "-" + i + "@mail.com").getFirstname());
+            }
+        }
+    }
+
+    @Test
+    public void failedBackgroundCompactionKeepsTheOldLogAndIsReported() throws Exception {
+        // given: a directory where the compacted log would be written
+        repository.close();
+        Path blocked = directory.resolve(MappedLogRepository.COMPACTED_FILE);
+        Files.createDirectories(blocked.resolve("blocked"));
+        // records of about 40 bytes: 4 rounds start one compaction, the next one waits for 20 KB garbage
+        repository = new MappedLogRepository(directory, 10_000);
+
+        // when
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 100; i++) {
+                repository.create(customer(i + "@mail.com", "Round " + round));
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (repository.getCompactionFailure() == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // then: the repository keeps working with the old log
+        assertNotNull(repository.getCompactionFailure());
+        repository.create(customer("new@mail.com", "New"));
+        assertEquals(101, repository.size());
+        assertEquals("Round 3", repository.read("0@mail.com").getFirstname());
+
+        // and when: nothing is in the way any more
+        Files.delete(blocked.resolve("blocked"));
+        Files.delete(blocked);
+        repository.compact();
+
+        // then
+        assertNull(repository.getCompactionFailure());
+        reopen();
+        assertEquals(101, repository.size());
+        assertEquals("Round 3", repository.read("99@mail.com").getFirstname());
+        assertEquals("New", repository.read("new@mail.com").getFirstname());
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    /**
+     * Writes, reads and startup time of MappedLogRepository compared to JDBCRepository on
+     * embedded Derby (on disk). Every JDBC create is a committed transaction, forced to disk;
+     * the log only writes to the page cache.
+     */
+    @Test
+    @Tag("benchmark")
+    public void startupAndThroughputComparedToJdbcRepository() throws Exception {
+        int customers = Integer.getInteger("benchmark.customers", 20_000);
+
+        // MappedLogRepository
+        repository.close();
+        Path logDirectory = directory.resolve("log");
+        repository = new MappedLogRepository(logDirectory);
+        double logWrites = measureWrites(repository, customers);
+        double logReads = measureReads(repository, customers);
+        repository.close();
+        long start = System.nanoTime();
+        repository = new MappedLogRepository(logDirectory);
+        long checkpointStartup = System.nanoTime() - start;
+        repository.close();
+        Files.delete(logDirectory.resolve(MappedLogRepository.CHECKPOINT_FILE));
+        start = System.nanoTime();
+        repository = new MappedLogRepository(logDirectory);
+        long scanStartup = System.nanoTime() - start;
+        assertEquals(customers, repository.size());
+
+        // JDBCRepository
+        String jdbcUrl = "jdbc:derby:" + directory.resolve("derby").toAbsolutePath();
+        JDBCRepository jdbc = new JDBCRepository(jdbcUrl + ";create=true");
+        double jdbcWrites = measureWrites(jdbc, customers);
+        double jdbcReads = measureReads(jdbc, customers);
+        jdbc.close();
+        shutdown(jdbcUrl);
+        start = System.nanoTime();
+        jdbc = new JDBCRepository(jdbcUrl);
+        assertNotNull(jdbc.read("0@mail.com"));
+        long jdbcStartup = System.nanoTime() - start;
+        jdbc.close();
+        shutdown(jdbcUrl);
+
+        System.out.printf("%,d customers%n", customers);
+        System.out.printf("MappedLogRepository: create %,9.0f/s  read %,9.0f/s  startup %,5d ms (checkpoint), %,5d ms (scan)%n",
+                logWrites, logReads, TimeUnit.NANOSECONDS.toMillis(checkpointStartup), TimeUnit.NANOSECONDS.toMillis(scanStartup));
+        System.out.printf("JDBCRepository:      create %,9.0f/s  read %,9.0f/s  startup %,5d ms (boot + first read)%n",
+                jdbcWrites, jdbcReads, TimeUnit.NANOSECONDS.toMillis(jdbcStartup));
+    }
+
+    private static double measureWrites(CustomerRepository repository, int customers) {
+        long start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            repository.create(customer(i + "@mail.com", "Carlo"));
+        }
+        return customers / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double measureReads(CustomerRepository repository, int customers) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int reads = customers * 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            assertNotNull(repository.read(random.nextInt(customers) + "@mail.com"));
+        }
+        return reads / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void shutdown(String jdbcUrl) throws SQLException {
+        try {
+            DriverManager.getConnection(jdbcUrl + ";shutdown=true").close();
+        } catch (SQLException e) {
+            // 08006: database shut down
+            if (!"08006".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+    }
+
+    //#endregion
+}
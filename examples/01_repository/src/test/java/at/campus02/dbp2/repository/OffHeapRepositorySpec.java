@@ -0,0 +1,300 @@
+package at.campus02.dbp2.repository;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapRepositorySpec {
+
+    private OffHeapRepository repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        repository = new OffHeapRepository();
+    }
+
+    //#region CRUD
+
+    @Test
+    public void createStoresCustomerAndReadReturnsACopy() {
+        // given
+        Customer carlo = customer("carlo@mail.com", "Carlo");
+
+        // when
+        repository.create(carlo);
+        Customer read = repository.read("carlo@mail.com");
+
+        // then
+        assertNotSame(carlo, read);
+        assertEquals("carlo@mail.com", read.getEmail());
+        assertEquals("Carlo", read.getFirstname());
+        assertEquals("Customer", read.getLastname());
+        assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void readWithNullOrUnknownEmailReturnsNull() {
+        assertNull(repository.read(null));
+        assertNull(repository.read("unknown@mail.com"));
+    }
+
+    @Test
+    public void createCustomerWithoutEmailThrowsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> repository.create(customer(null, "Nobody")));
+    }
+
+    @Test
+    public void nullAndNonAsciiValuesAreStored() {
+        // given
+        Customer customer = customer("jürgen@mail.com", null);
+        customer.setLastname("Gößl 山田");
+
+        // when
+        repository.create(customer);
+        Customer read = repository.read("jürgen@mail.com");
+
+        // then
+        assertNull(read.getFirstname());
+        assertEquals("Gößl 山田", read.getLastname());
+    }
+
+    @Test
+    public void changingReadCustomerWithoutUpdateDoesNotChangeTheRepository() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when
+        repository.read("carlo@mail.com").setFirstname("Conrad");
+
+        // then
+        assertEquals("Carlo", repository.read("carlo@mail.com").getFirstname());
+    }
+
+    @Test
+    public void createOfExistingEmailAndUpdateReplaceTheCustomer() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when
+        repository.create(customer("carlo@mail.com", "Conrad"));
+
+        // then
+        assertEquals("Conrad", repository.read("carlo@mail.com").getFirstname());
+
+        // and when
+        repository.update(customer("carlo@mail.com", "Clara"));
+
+        // then
+        assertEquals("Clara", repository.read("carlo@mail.com").getFirstname());
+        assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void updateDoesNotInsertNotExistingCustomer() {
+        // when
+        repository.update(customer("carlo@mail.com", "Carlo"));
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+    }
+
+    @Test
+    public void deleteOnlyRemovesTheSameCustomer() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when: a customer with other values is not removed
+        repository.delete(customer("carlo@mail.com", "Conrad"));
+
+        // then
+        assertNotNull(repository.read("carlo@mail.com"));
+
+        // and when
+        repository.delete(repository.read("carlo@mail.com"));
+
+        // then
+        assertNull(repository.read("carlo@mail.com"));
+        assertEquals(0, repository.size());
+    }
+
+    @Test
+    public void tooLongValueIsRejectedAndKeepsTheStoredCustomer() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when
+        assertThrows(IllegalArgumentException.class,
+                () -> repository.update(customer("carlo@mail.com", "x".repeat(70_000))));
+
+        // then
+        assertEquals("Carlo", repository.read("carlo@mail.com").getFirstname());
+    }
+
+    //#endregion
+
+    //#region growth
+
+    @Test
+    public void manyCreatesDeletesAndUpdatesKeepAllCustomersReadable() {
+        // given: more customers than the initial table has slots, then delete half and create them again
+        int keys = 50_000;
+        for (int i = 0; i < keys; i++) {
+            repository.create(customer(i + "@mail.com", "Carlo"));
+        }
+        for (int i = 0; i < keys; i += 2) {
+            repository.delete(customer(i + "@mail.com", "Carlo"));
+        }
+        for (int i = 0; i < keys; i += 2) {
+            repository.create(customer(i + "@mail.com", "Again"));
+        }
+
+        // when: long values, the replaced records add up to several chunks and get compacted
+        String longName = "x".repeat(1_000);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < keys; i++) {
+                repository.update(customer(i + "@mail.com", longName + round));
+            }
+        }
+
+        // then
+        assertEquals(keys, repository.size());
+        for (int i = 0; i < keys; i++) {
+            assertEquals(longName + 2, repository.read(i + "@mail.com").getFirstname());
+        }
+        // 50,000 records of about 1 KB, without compaction 3 times as much
+        assertTrue(repository.offHeapBytes() < 100_000_000L, "off-heap bytes: " + repository.offHeapBytes());
+    }
+
+    //#endregion
+
+    //#region memory
+
+    /**
+     * Heap retained by the customers and GC pauses while loading them and afterwards reading with
+     * 10% updates, InMemoryRepository compared to OffHeapRepository.
+     * <p>
+     * 10 million customers need a larger heap for InMemoryRepository, e.g.
+     * {@code gradle benchmark --tests '*OffHeapRepositorySpec*' -Dbenchmark.customers=1000000,10000000 -Dbenchmark.heap=4g}
+     */
+    @Test
+    @Tag("benchmark")
+    public void heapAndGcPausesComparedToInMemoryRepository() {
+        for (String count : System.getProperty("benchmark.customers", "1000000").split(",")) {
+            int customers = Integer.parseInt(count.trim());
+            measure("InMemoryRepository", InMemoryRepository::new, customers);
+            measure("OffHeapRepository ", () -> new OffHeapRepository(customers), customers);
+        }
+    }
+
+    private static void measure(String name, Supplier<CustomerRepository> implementation, int customers) {
+        long heapBefore = usedHeapAfterGc();
+        long directBefore = directMemory();
+        GcPauses pauses = new GcPauses();
+
+        long start = System.nanoTime();
+        CustomerRepository repository = implementation.get();
+        for (int i = 0; i < customers; i++) {
+            Customer customer = new Customer();
+            customer.setEmail(i + "@mail.com");
+            customer.setFirstname("Firstname" + i);
+            customer.setLastname("Lastname" + i);
+            repository.create(customer);
+        }
+        long loaded = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < customers; i++) {
+            Customer customer = repository.read(random.nextInt(customers) + "@mail.com");
+            if (i % 10 == 0) {
+                customer.setFirstname("Changed" + i);
+                repository.update(customer);
+            }
+        }
+        long used = System.nanoTime();
+        pauses.stop();
+
+        // the repository of the previous run may only be collected now
+        long heap = Math.max(0, usedHeapAfterGc() - heapBefore);
+        long direct = Math.max(0, directMemory() - directBefore);
+        // keeps the repository reachable until its heap is measured
+        assertNotNull(repository.read("0@mail.com"));
+        System.out.printf("%,11d customers  %s  heap %,6d MB  off-heap %,6d MB  load %,6d ms  read/update %,6d ms  "
+                        + "GC: %,4d pauses, %,6d ms total, %,5d ms max%n",
+                customers, name, heap >> 20, direct >> 20,
+                TimeUnit.NANOSECONDS.toMillis(loaded - start), TimeUnit.NANOSECONDS.toMillis(used - loaded),
+                pauses.count, pauses.totalMillis, pauses.maxMillis);
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Records the duration of every garbage collection until stopped.
+     */
+    private static class GcPauses {
+        private final List<NotificationEmitter> emitters = new ArrayList<>();
+        private final NotificationListener listener = (notification, handback) -> {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                long duration = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData()).getGcInfo().getDuration();
+                record(duration);
+            }
+        };
+        private int count;
+        private long totalMillis;
+        private long maxMillis;
+
+        GcPauses() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+
+        private synchronized void record(long millis) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        void stop() {
+            for (NotificationEmitter emitter : emitters) {
+                try {
+                    emitter.removeNotificationListener(listener);
+                } catch (Exception e) {
+                    // not registered, nothing to remove
+                }
+            }
+        }
+    }
+
+    //#endregion
+}
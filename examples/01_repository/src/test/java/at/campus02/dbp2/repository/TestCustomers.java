@@ -0,0 +1,22 @@
+package at.campus02.dbp2.repository;
+
+/**
+ * Customers for the specs, all with the lastname "Customer".
+ */
+final class TestCustomers {
+
+    private TestCustomers() {
+    }
+
+    static Customer customer(String email) {
+        return customer(email, "Carlo");
+    }
+
+    static Customer customer(String email, String firstname) {
+        Customer customer = new Customer();
+        customer.setEmail(email);
+        customer.setFirstname(firstname);
+        customer.setLastname("Customer");
+        return customer;
+    }
+}
@@ -0,0 +1,407 @@
+package at.campus02.dbp2.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import static at.campus02.dbp2.repository.TestCustomers.customer;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindRepositorySpec {
+
+    private RecordingRepository recording;
+    private WriteBehindRepository repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        recording = new RecordingRepository();
+        // only flush and close write, unless the test fills the queue
+        repository = new WriteBehindRepository(recording, 100, TimeUnit.HOURS.toMillis(1));
+    }
+
+    @AfterEach
+    public void afterEach() throws Exception {
+        recording.open.countDown();
+        recording.failing = false;
+        repository.close();
+    }
+
+    //#region write behind
+
+    @Test
+    public void writesReachTheUnderlyingRepositoryOnlyWithFlush() {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when / then
+        assertNull(recording.storage.get("carlo@mail.com"));
+        repository.flush();
+        assertEquals("Carlo", recording.storage.get("carlo@mail.com").getFirstname());
+    }
+
+    @Test
+    public void readReturnsTheWaitingState() {
+        // given
+        recording.storage.put("clara@mail.com", customer("clara@mail.com", "Clara"));
+
+        // when
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        repository.delete(customer("clara@mail.com", "Clara"));
+
+        // then
+        assertEquals("Carlo", repository.read("carlo@mail.com").getFirstname());
+        assertNull(repository.read("clara@mail.com"));
+        assertNull(repository.read("conrad@mail.com"));
+        assertNotNull(recording.storage.get("clara@mail.com"));
+    }
+
+    @Test
+    public void writesOfTheSameEmailAreMerged() {
+        // given
+        recording.storage.put("clara@mail.com", customer("clara@mail.com", "Clara"));
+
+        // when
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        repository.update(customer("carlo@mail.com", "Carlo 2"));
+        repository.update(customer("carlo@mail.com", "Carlo 3"));
+        repository.create(customer("conrad@mail.com", "Conrad"));
+        repository.delete(customer("conrad@mail.com", "Conrad"));
+        repository.delete(customer("clara@mail.com", "Clara"));
+        repository.create(customer("clara@mail.com", "Clara 2"));
+        repository.flush();
+
+        // then: one create of the last state, a delete for conrad (he might have existed), delete + create for clara
+        assertEquals(List.of("deleteAll [conrad@mail.com, clara@mail.com]",
+                "createAll [carlo@mail.com, clara@mail.com]"), recording.calls);
+        assertEquals("Carlo 3", recording.storage.get("carlo@mail.com").getFirstname());
+        assertEquals("Clara 2", recording.storage.get("clara@mail.com").getFirstname());
+        assertNull(recording.storage.get("conrad@mail.com"));
+        assertEquals(7, repository.getWriteCount());
+        assertEquals(4, repository.getMergedCount());
+        assertEquals(3, repository.getWrittenCount());
+    }
+
+    @Test
+    public void writesAreFlushedAfterTheMaxDelay() throws Exception {
+        // given
+        repository.close();
+        repository = new WriteBehindRepository(recording, 100, 10);
+
+        // when
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // then
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (recording.storage.get("carlo@mail.com") == null && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNotNull(recording.storage.get("carlo@mail.com"));
+        assertEquals(0, repository.getQueueDepth());
+        assertEquals(1, repository.getFlushCount());
+    }
+
+    @Test
+    public void closeWritesEverythingAndClosesTheUnderlyingRepository() throws Exception {
+        // given
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when
+        repository.close();
+
+        // then
+        assertNotNull(recording.storage.get("carlo@mail.com"));
+        assertTrue(recording.closed);
+        assertThrows(IllegalStateException.class, () -> repository.create(customer("clara@mail.com", "Clara")));
+    }
+
+    @Test
+    public void fullQueueMakesWritersWait() throws Exception {
+        // given: the underlying repository blocks, the first batch is in flight
+        recording.open = new CountDownLatch(1);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 50; i++) {
+                repository.create(customer(i + "@mail.com", "Carlo"));
+            }
+            // half of the capacity starts a flush
+            awaitBlockedFlush();
+            for (int i = 50; i < 150; i++) {
+                repository.create(customer(i + "@mail.com", "Carlo"));
+            }
+
+            // when
+            Future<?> blocked = writer.submit(() -> repository.create(customer("150@mail.com", "Carlo")));
+
+            // then
+            assertThrows(TimeoutException.class, () -> blocked.get(200, TimeUnit.MILLISECONDS));
+            assertEquals(100, repository.getQueueDepth());
+            // merging into a waiting email does not wait
+            repository.update(customer("100@mail.com", "Conrad"));
+
+            // and when
+            recording.open.countDown();
+
+            // then
+            blocked.get(5, TimeUnit.SECONDS);
+            repository.flush();
+            assertEquals(151, recording.storage.size());
+            assertEquals("Conrad", recording.storage.get("100@mail.com").getFirstname());
+            assertTrue(repository.getBlockedCount() >= 1);
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private void awaitBlockedFlush() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (repository.getQueueDepth() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, repository.getQueueDepth());
+    }
+
+    @Test
+    public void failedBackgroundWriteIsReportedByFlush() {
+        // given
+        recording.failing = true;
+        repository.create(customer("carlo@mail.com", "Carlo"));
+
+        // when / then
+        assertThrows(IllegalStateException.class, () -> repository.flush());
+        assertEquals(1, repository.getFailedFlushCount());
+        // reported once
+        repository.flush();
+    }
+
+    @Test
+    public void failedWriteDoesNotLoseTheOtherWritesOfItsBatch() {
+        // given: the batch fails at bad@mail.com after carlo@mail.com is written
+        recording.rejected.add("bad@mail.com");
+        repository.create(customer("carlo@mail.com", "Carlo"));
+        repository.create(customer("bad@mail.com", "Bad"));
+        repository.create(customer("clara@mail.com", "Clara"));
+
+        // when
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> repository.flush());
+
+        // then: the others are written one by one, unless they are written already
+        assertEquals("Write behind failed for [bad@mail.com]", e.getMessage());
+        assertEquals(List.of(
+                "createAll [carlo@mail.com, bad@mail.com, clara@mail.com]",
+                "createAll [bad@mail.com]",
+                "createAll [clara@mail.com]"), recording.calls);
+        assertEquals("Carlo", recording.storage.get("carlo@mail.com").getFirstname());
+        assertEquals("Clara", recording.storage.get("clara@mail.com").getFirstname());
+        assertNull(recording.storage.get("bad@mail.com"));
+        assertEquals(2, repository.getWrittenCount());
+        assertEquals(1, repository.getFailedFlushCount());
+    }
+
+    //#endregion
+
+    //#region JDBCRepository
+
+    @Test
+    public void writesBehindIntoJdbcRepository() throws Exception {
+        // given
+        String jdbcUrl = "jdbc:derby:memory:writeBehindSpec";
+        JDBCRepository jdbc = new JDBCRepository(jdbcUrl + ";create=true");
+        try (WriteBehindRepository writeBehind = new WriteBehindRepository(jdbc, 1_000, 50)) {
+            // when
+            for (int i = 0; i < 2_000; i++) {
+                writeBehind.create(customer(i + "@mail.com", "Carlo"));
+            }
+            for (int i = 0; i < 2_000; i += 2) {
+                writeBehind.update(customer(i + "@mail.com", "Conrad"));
+            }
+            writeBehind.delete(customer("1@mail.com", "Carlo"));
+            writeBehind.flush();
+
+            // then
+            assertEquals("Conrad", writeBehind.read("0@mail.com").getFirstname());
+            assertEquals("Carlo", writeBehind.read("3@mail.com").getFirstname());
+            assertNull(writeBehind.read("1@mail.com"));
+            assertTrue(writeBehind.getAverageFlushMillis() > 0);
+        } finally {
+            drop(jdbcUrl);
+        }
+    }
+
+    @Test
+    public void createAfterUpdateInsertsAndDeleteAfterCreateDeletesInJdbcRepository() throws Exception {
+        // given: conrad exists, carlo does not
+        String jdbcUrl = "jdbc:derby:memory:writeBehindMergeSpec";
+        JDBCRepository jdbc = new JDBCRepository(jdbcUrl + ";create=true");
+        jdbc.create(customer("conrad@mail.com", "Conrad"));
+        try (WriteBehindRepository writeBehind = new WriteBehindRepository(jdbc, 1_000, TimeUnit.HOURS.toMillis(1))) {
+            // when: the update of carlo finds nothing, the create of conrad would fail
+            writeBehind.update(customer("carlo@mail.com", "Carlo"));
+            writeBehind.create(customer("carlo@mail.com", "Carlo 2"));
+            writeBehind.create(customer("conrad@mail.com", "Conrad 2"));
+            writeBehind.delete(customer("conrad@mail.com", "Conrad 2"));
+            writeBehind.flush();
+
+            // then
+            assertEquals("Carlo 2", jdbc.read("carlo@mail.com").getFirstname());
+            assertNull(jdbc.read("conrad@mail.com"));
+        } finally {
+            drop(jdbcUrl);
+        }
+    }
+
+    private static void drop(String jdbcUrl) throws SQLException {
+        try {
+            DriverManager.getConnection(jdbcUrl + ";drop=true").close();
+        } catch (SQLException e) {
+            // 08006: database dropped
+            if (!"08006".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Creates and updates per second against JDBCRepository on embedded Derby (on disk),
+     * directly and behind a WriteBehindRepository, including the final flush.
+     */
+    @Test
+    @Tag("benchmark")
+    public void throughputComparedToSynchronousCommits() throws Exception {
+        int customers = Integer.getInteger("benchmark.customers", 20_000);
+        String jdbcUrl = "jdbc:derby:" + directory.resolve("derby").toAbsolutePath() + ";create=true";
+
+        try (JDBCRepository direct = new JDBCRepository(jdbcUrl)) {
+            System.out.printf("JDBCRepository:                      %,8.0f writes/s%n", measureWrites(direct, customers, "direct-"));
+        }
+        try (WriteBehindRepository writeBehind = new WriteBehindRepository(new JDBCRepository(jdbcUrl))) {
+            double writes = measureWrites(writeBehind, customers, "behind-");
+            System.out.printf("WriteBehindRepository(JDBCRepository): %,8.0f writes/s  (%,d flushes, avg %.1f ms, max %.1f ms, %,d merged, %,d blocked)%n",
+                    writes, writeBehind.getFlushCount(), writeBehind.getAverageFlushMillis(),
+                    writeBehind.getMaxFlushMillis(), writeBehind.getMergedCount(), writeBehind.getBlockedCount());
+        }
+    }
+
+    /**
+     * Every customer is created and updated twice.
+     */
+    private static double measureWrites(CustomerRepository repository, int customers, String prefix) {
+        long start = System.nanoTime();
+        for (int i = 0; i < customers; i++) {
+            repository.create(customer(prefix + i + "@mail.com", "Carlo"));
+            repository.update(customer(prefix + i + "@mail.com", "Conrad"));
+            repository.update(customer(prefix + i + "@mail.com", "Clara"));
+        }
+        if (repository instanceof WriteBehindRepository) {
+            ((WriteBehindRepository) repository).flush();
+        }
+        return customers * 3 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    //#endregion
+
+    /**
+     * Stores in a map and records the batch calls. open blocks writes while it is not counted down.
+     * A batch call stops at the first rejected email, the customers before it stay written.
+     */
+    private static class RecordingRepository implements CustomerRepository, AutoCloseable {
+        final Map<String, Customer> storage = new HashMap<>();
+        final List<String> calls = new ArrayList<>();
+        final Set<String> rejected = ConcurrentHashMap.newKeySet();
+        volatile CountDownLatch open = new CountDownLatch(0);
+        volatile boolean failing;
+        boolean closed;
+
+        private void record(String call, Collection<Customer> customers) {
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                throw new IllegalStateException("Could not write customers");
+            }
+            List<String> emails = new ArrayList<>();
+            customers.forEach(customer -> emails.add(customer.getEmail()));
+            calls.add(call + " " + emails);
+        }
+
+        @Override
+        public void create(Customer customer) {
+            storage.put(customer.getEmail(), customer);
+        }
+
+        @Override
+        public Customer read(String email) {
+            return storage.get(email);
+        }
+
+        @Override
+        public void update(Customer customer) {
+            storage.replace(customer.getEmail(), customer);
+        }
+
+        @Override
+        public void delete(Customer customer) {
+            storage.remove(customer.getEmail());
+        }
+
+        private void writeAll(Collection<Customer> customers, Consumer<Customer> write) {
+            for (Customer customer : customers) {
+                if (rejected.contains(customer.getEmail())) {
+                    throw new IllegalStateException("Could not write " + customer.getEmail());
+                }
+                write.accept(customer);
+            }
+        }
+
+        @Override
+        public void createAll(Collection<Customer> customers) {
+            record("createAll", customers);
+            writeAll(customers, this::create);
+        }
+
+        @Override
+        public void updateAll(Collection<Customer> customers) {
+            record("updateAll", customers);
+            writeAll(customers, this::update);
+        }
+
+        @Override
+        public void deleteAll(Collection<Customer> customers) {
+            record("deleteAll", customers);
+            writeAll(customers, this::delete);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package at.campus02.dbp2.mappings;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade of a CustomerRepository: every method returns at once, the blocking call of the
+ * underlying repository runs on a virtual thread (Java 21 and later) or, without virtual threads, on a
+ * pool of {@code maxConcurrent} platform threads. At most {@code maxConcurrent} calls run at the same time.
+ * <p>
+ * The underlying repository must be usable by several threads at once, i.e. {@link CustomerRepositoryJpa#perOperation}.
+ * A failed call completes the future exceptionally with the exception of the underlying repository,
+ * a call after close with an IllegalStateException.
+ * The stream* methods have no asynchronous variant, a stream holds its connection until it is closed.
+ */
+public class AsyncCustomerRepository implements AutoCloseable {
+
+    private final CustomerRepository delegate;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+    private volatile boolean closed;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peakRunning = new AtomicInteger();
+
+    /**
+     * @param maxConcurrent calls of the underlying repository running at once, e.g. the size of the connection pool
+     */
+    public AsyncCustomerRepository(CustomerRepository delegate, int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1: " + maxConcurrent);
+        }
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent);
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        this.virtual = virtualThreads != null;
+        this.executor = virtual ? virtualThreads : Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+            Thread thread = new Thread(runnable, "AsyncCustomerRepository worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // compiled for Java 11: looked up at runtime, a preview feature before Java 21 (throws)
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    //#region CRUD
+
+    public CompletableFuture<Boolean> create(Customer customer) {
+        return submit(() -> delegate.create(customer));
+    }
+
+    public CompletableFuture<Customer> read(Integer id) {
+        return submit(() -> delegate.read(id));
+    }
+
+    public CompletableFuture<Customer> update(Customer customer) {
+        return submit(() -> delegate.update(customer));
+    }
+
+    public CompletableFuture<Boolean> delete(Customer customer) {
+        return submit(() -> delegate.delete(customer));
+    }
+
+    public CompletableFuture<Integer> createAll(Collection<Customer> customers) {
+        return submit(() -> delegate.createAll(customers));
+    }
+
+    public CompletableFuture<List<Customer>> updateAll(Collection<Customer> customers) {
+        return submit(() -> delegate.updateAll(customers));
+    }
+
+    public CompletableFuture<Integer> deleteAll(Collection<Customer> customers) {
+        return submit(() -> delegate.deleteAll(customers));
+    }
+
+    //#endregion
+
+    //#region queries
+
+    public CompletableFuture<List<Customer>> getAllCustomers() {
+        return submit(delegate::getAllCustomers);
+    }
+
+    public CompletableFuture<List<Customer>> findByLastname(String lastnamePart) {
+        return submit(() -> delegate.findByLastname(lastnamePart));
+    }
+
+    public CompletableFuture<List<Customer>> findByLastnameStartingWith(String lastnamePrefix) {
+        return submit(() -> delegate.findByLastnameStartingWith(lastnamePrefix));
+    }
+
+    public CompletableFuture<List<Customer>> findByAccountType(AccountType type) {
+        return submit(() -> delegate.findByAccountType(type));
+    }
+
+    public CompletableFuture<List<Customer>> findAllRegisteredAfter(LocalDate date) {
+        return submit(() -> delegate.findAllRegisteredAfter(date));
+    }
+
+    public CompletableFuture<Page<Customer>> getAllCustomers(String continuationToken, int pageSize) {
+        return submit(() -> delegate.getAllCustomers(continuationToken, pageSize));
+    }
+
+    public CompletableFuture<Page<Customer>> findByLastname(String lastnamePart, String continuationToken, int pageSize) {
+        return submit(() -> delegate.findByLastname(lastnamePart, continuationToken, pageSize));
+    }
+
+    //#endregion
+
+    private <T> CompletableFuture<T> submit(Callable<T> call) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Repository is closed"));
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    future.completeExceptionally(new IllegalStateException("Repository is closed", e));
+                    return;
+                }
+                try {
+                    peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    running.decrementAndGet();
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed after the check above
+            future.completeExceptionally(new IllegalStateException("Repository is closed", e));
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the calls already submitted, at most a minute (then they are interrupted), and closes
+     * the underlying repository if it is AutoCloseable.
+     * CustomerRepositoryJpa is not, the factory belongs to the caller and stays open.
+     *
+     * @throws IllegalStateException if the underlying repository could not be closed
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (delegate instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) delegate).close();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not close the underlying repository", e);
+            }
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    public int getPeakRunningCount() {
+        return peakRunning.get();
+    }
+}
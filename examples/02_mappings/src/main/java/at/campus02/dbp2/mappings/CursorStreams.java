@@ -0,0 +1,111 @@
+package at.campus02.dbp2.mappings;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.CursoredStream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a query over an EclipseLink database cursor and hands out the results as {@link Stream}.
+ * <p>
+ * Every stream uses its own {@link EntityManager}. Only {@code pageSize} rows are fetched at a time
+ * and the entities handed out are not managed by any persistence context, so memory stays flat
+ * no matter how many rows the query returns. Changes to streamed entities need an explicit update.
+ * <p>
+ * The cursor holds a database connection until the stream is exhausted or closed,
+ * use the stream in a try-with-resources block.
+ */
+class CursorStreams {
+
+    private CursorStreams() {
+    }
+
+    static <T> Stream<T> open(EntityManagerFactory factory, Function<EntityManager, TypedQuery<T>> queryBuilder, int pageSize) {
+        EntityManager manager = factory.createEntityManager();
+        try {
+            TypedQuery<T> query = queryBuilder.apply(manager);
+            query.setHint(QueryHints.CURSOR, HintValues.TRUE);
+            query.setHint(QueryHints.CURSOR_PAGE_SIZE, pageSize);
+            query.setHint(QueryHints.JDBC_FETCH_SIZE, pageSize);
+            // results are neither registered in the persistence context nor put into the shared cache,
+            // otherwise both keep every row read so far (clear() does not help while the cursor is open)
+            query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+            query.setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE);
+            CursoredStream cursor = (CursoredStream) query.getSingleResult();
+
+            PagingIterator<T> iterator = new PagingIterator<>(manager, cursor, pageSize);
+            return StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+                    false
+            ).onClose(iterator::close);
+        } catch (RuntimeException e) {
+            manager.close();
+            throw e;
+        }
+    }
+
+    private static class PagingIterator<T> implements Iterator<T> {
+
+        private final EntityManager manager;
+        private final CursoredStream cursor;
+        private final int pageSize;
+        private int readInPage;
+        private boolean closed;
+
+        PagingIterator(EntityManager manager, CursoredStream cursor, int pageSize) {
+            this.manager = manager;
+            this.cursor = cursor;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (cursor.hasNext()) {
+                return true;
+            }
+            // exhausted: give the connection back right away, not only on close()
+            close();
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (readInPage == pageSize) {
+                // forget the previous page
+                cursor.clear();
+                readInPage = 0;
+            }
+            readInPage++;
+            return (T) cursor.next();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                cursor.close();
+            } finally {
+                manager.close();
+            }
+        }
+    }
+}
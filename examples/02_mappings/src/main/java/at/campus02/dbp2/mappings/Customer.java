@@ -2,24 +2,61 @@ package at.campus02.dbp2.mappings;
 
 import javax.persistence.*;
 import java.time.LocalDate;
+import java.util.Locale;
 import java.util.Objects;
 
+// lastnamePart has to be normalized, the column is already lower case, so no LOWER() for every row
 @NamedQuery(
         name = "Customer.findByLastnamePart",
         query = "SELECT c FROM Customer c " +
-                "WHERE LOWER(c.lastname) LIKE LOWER(:lastnamePart) " +
-                "ORDER BY c.lastname")
+                "WHERE c.lastnameNormalized LIKE :lastnamePart " +
+                "ORDER BY c.lastname, c.id")
 
 @Entity
+@Table(indexes = {
+        // keyset pagination: seek to (registeredSince, id) / (lastname, id) and read the next rows in index order,
+        // also used by findAllRegisteredAfter and the ORDER BY of getAllCustomers / findByLastname
+        @Index(name = "IDX_CUSTOMER_REGISTERED_ID", columnList = "registeredSince, id"),
+        @Index(name = "IDX_CUSTOMER_LASTNAME_ID", columnList = "lastname, id"),
+        // case-insensitive prefix search: LIKE 'prefix%' on the lower case lastname
+        @Index(name = "IDX_CUSTOMER_LASTNAME_NORMALIZED", columnList = "lastnameNormalized"),
+        // findByAccountType
+        @Index(name = "IDX_CUSTOMER_ACCOUNT_TYPE", columnList = "accountType")
+})
 public class Customer {
 
-    @Id @GeneratedValue
+    // ids are reserved in blocks (hi-lo) from the row "Customer" of ID_BLOCKS, see IdBlockSize
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "customerIds")
+    @TableGenerator(name = "customerIds", table = "ID_BLOCKS", pkColumnName = "ENTITY",
+            valueColumnName = "NEXT_ID", pkColumnValue = "Customer", allocationSize = 50)
     private Integer id;
     private String firstname;
     private String lastname;
+    // lastname in lower case, maintained by setLastname, only for searching
+    private String lastnameNormalized;
     private LocalDate registeredSince;
     @Column(nullable = false)
     private AccountType accountType;
+    // incremented by every update, an update or delete with an older version fails
+    @Version
+    private Integer version;
+
+    public Customer() {
+    }
+
+    /**
+     * Detached copy including the id, e.g. for caches.
+     */
+    Customer(Customer other) {
+        id = other.id;
+        firstname = other.firstname;
+        lastname = other.lastname;
+        lastnameNormalized = other.lastnameNormalized;
+        registeredSince = other.registeredSince;
+        accountType = other.accountType;
+        version = other.version;
+    }
 
     public Integer getId() {
         return id;
@@ -40,6 +77,25 @@ public class Customer {
 
     public void setLastname(String lastname) {
         this.lastname = lastname;
+        this.lastnameNormalized = normalize(lastname);
+    }
+
+    String getLastnameNormalized() {
+        return lastnameNormalized;
+    }
+
+    /**
+     * The form in which lastnames are searched: lower case, independent of the default locale.
+     */
+    static String normalize(String lastname) {
+        return lastname == null ? null : lastname.toLowerCase(Locale.ROOT);
+    }
+
+    // also covers lastnames that were not set through setLastname
+    @PrePersist
+    @PreUpdate
+    void normalizeLastname() {
+        lastnameNormalized = normalize(lastname);
     }
 
     public LocalDate getRegisteredSince() {
@@ -58,6 +114,18 @@ public class Customer {
         this.accountType = accountType;
     }
 
+    /**
+     * The version the customer had when it was read. update and delete of the repository fail with an
+     * OptimisticLockException if someone else changed the customer since. Null for a new customer.
+     */
+    public Integer getVersion() {
+        return version;
+    }
+
+    void setVersion(Integer version) {
+        this.version = version;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
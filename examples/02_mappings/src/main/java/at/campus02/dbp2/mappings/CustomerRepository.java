@@ -1,18 +1,43 @@
 package at.campus02.dbp2.mappings;
 
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface CustomerRepository {
 
     boolean create(Customer customer);
     Customer read(Integer id);
+    // with a version: throw OptimisticLockException if the customer was changed since it was read
+    // returns the updated customer: CustomerRepositoryJpa returns the managed one with a shared entity manager
     Customer update(Customer customer);
     boolean delete(Customer customer);
 
+    // bulk variants: same rules as for single customers, written in chunks
+    // returns the number of created customers, null and existing ones are skipped
+    int createAll(Collection<Customer> customers);
+    // throws IllegalArgumentException if a customer of a chunk does not exist
+    List<Customer> updateAll(Collection<Customer> customers);
+    // returns the number of deleted customers, throws IllegalArgumentException if a customer of a chunk does not exist
+    int deleteAll(Collection<Customer> customers);
+
     List<Customer> getAllCustomers();
     List<Customer> findByLastname(String lastnamePart);
+    // case-insensitive, the prefix is taken literally (no LIKE wildcards)
+    List<Customer> findByLastnameStartingWith(String lastnamePrefix);
     List<Customer> findByAccountType(AccountType type);
     List<Customer> findAllRegisteredAfter(LocalDate date);
 
+    // keyset paging: pass null as token for the first page, then the token of the previous page
+    Page<Customer> getAllCustomers(String continuationToken, int pageSize);
+    Page<Customer> findByLastname(String lastnamePart, String continuationToken, int pageSize);
+
+    // streaming variants: same results, fetched page by page over a database cursor.
+    // the stream holds a connection until it is exhausted or closed -> use try-with-resources
+    Stream<Customer> streamAllCustomers();
+    Stream<Customer> streamByLastname(String lastnamePart);
+    Stream<Customer> streamByAccountType(AccountType type);
+    Stream<Customer> streamAllRegisteredAfter(LocalDate date);
+
 }
@@ -1,19 +1,126 @@
 package at.campus02.dbp2.mappings;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
+import javax.persistence.RollbackException;
 import javax.persistence.TypedQuery;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class CustomerRepositoryJpa implements CustomerRepository {
 
-    private EntityManager manager;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_STREAM_PAGE_SIZE = 500;
+    // more candidates from the trigram index and findByLastname scans the table instead
+    private static final int MAX_TRIGRAM_CANDIDATES = 1_000;
+
+    private final EntityManagerFactory factory;
+    // single manager mode: one entity manager for all operations, null in per-operation mode
+    private final EntityManager manager;
+    // customers per transaction in createAll, updateAll and deleteAll
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    // rows fetched at once by the stream* methods
+    private int streamPageSize = DEFAULT_STREAM_PAGE_SIZE;
+    // detached copies of read customers by id, null if read() always asks the database
+    private final LruCache<Integer, Customer> cache;
+    // results of findByLastname, findByAccountType and findAllRegisteredAfter, null if not cached
+    private final QueryResultCache queryCache;
 
     public CustomerRepositoryJpa(EntityManagerFactory factory) {
-        manager = factory.createEntityManager();
+        this(factory, null, null);
+    }
+
+    public CustomerRepositoryJpa(EntityManagerFactory factory, LruCache<Integer, Customer> cache) {
+        this(factory, cache, null);
+    }
+
+    /**
+     * read() looks up customers in the given cache first. Repositories of the same factory can
+     * share one cache, update and delete (also the batch variants) remove changed customers
+     * from it, so the other repositories do not read stale copies. With the cache read returns
+     * a detached copy on a hit and on a miss alike.
+     * <p>
+     * The finders look up their results in the query cache first, every write invalidates it.
+     * Both caches are optional, null disables them.
+     */
+    public CustomerRepositoryJpa(EntityManagerFactory factory, LruCache<Integer, Customer> cache, QueryResultCache queryCache) {
+        this(factory, cache, queryCache, false);
+    }
+
+    private CustomerRepositoryJpa(EntityManagerFactory factory, LruCache<Integer, Customer> cache, QueryResultCache queryCache,
+                                  boolean perOperation) {
+        this.factory = factory;
+        this.cache = cache;
+        this.queryCache = queryCache;
+        // before the first transaction, so the index sees its commit
+        TrigramIndex.of(factory);
+        manager = perOperation ? null : factory.createEntityManager();
+    }
+
+    public static CustomerRepositoryJpa perOperation(EntityManagerFactory factory) {
+        return perOperation(factory, null, null);
+    }
+
+    /**
+     * A repository that gets a short-lived entity manager from the factory for every operation and
+     * closes it afterwards (the batch operations use one for all chunks). Unlike the repositories
+     * of the constructors it can be used by several threads at once, and it keeps no persistence
+     * context between operations: read, update and the finders return detached customers.
+     * The caches are optional, like in the constructor.
+     */
+    public static CustomerRepositoryJpa perOperation(EntityManagerFactory factory, LruCache<Integer, Customer> cache,
+                                                     QueryResultCache queryCache) {
+        return new CustomerRepositoryJpa(factory, cache, queryCache, true);
+    }
+
+    /**
+     * Runs the work with the shared entity manager, or in per-operation mode
+     * with a new one that is closed afterwards.
+     */
+    private <T> T withManager(Function<EntityManager, T> work) {
+        if (manager != null) {
+            return work.apply(manager);
+        }
+        EntityManager perOperation = factory.createEntityManager();
+        try {
+            return work.apply(perOperation);
+        } finally {
+            perOperation.close();
+        }
+    }
+
+    private <T> T inTransaction(Function<EntityManager, T> work) {
+        return withManager(em -> {
+            em.getTransaction().begin();
+            try {
+                T result = work.apply(em);
+                em.getTransaction().commit();
+                return result;
+            } finally {
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+            }
+        });
     }
 
     @Override
@@ -25,9 +132,11 @@ public class CustomerRepositoryJpa implements CustomerRepository {
         if (customer.getId() != null) {
             return false;
         }
-            manager.getTransaction().begin();
-            manager.persist(customer);
-            manager.getTransaction().commit();
+            inTransaction(em -> {
+                em.persist(customer);
+                return null;
+            });
+            invalidateQueries();
 
             return true;
 
@@ -38,52 +147,395 @@ public class CustomerRepositoryJpa implements CustomerRepository {
         if (id == null) {
             return null;
         }
-        return manager.find(Customer.class, id);
+        if (cache == null) {
+            return withManager(em -> em.find(Customer.class, id));
+        }
+
+        // a copy on both ways, changes of the caller must not end up in the cache or the persistence context
+        Customer cached = cache.get(id);
+        if (cached != null) {
+            return new Customer(cached);
+        }
+        // taken before the database is asked: an update committed meanwhile evicts before we could put
+        long loadedIn = cache.getGeneration();
+        // our persistence context may still hold a version that another repository changed since
+        Customer found = withManager(em -> em.find(Customer.class, id, Map.of(QueryHints.REFRESH, HintValues.TRUE)));
+        if (found != null) {
+            cache.putIfNotInvalidated(id, new Customer(found), loadedIn);
+            return new Customer(found);
+        }
+        return null;
     }
 
+    /**
+     * Cache statistics, e.g. for monitoring. Null if the repository has no cache.
+     */
+    public LruCache<Integer, Customer> getCache() {
+        return cache;
+    }
+
+    /**
+     * Query cache statistics, null if the repository has no query cache.
+     */
+    public QueryResultCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Called after every write: the changed customers leave the read cache,
+     * all query results are invalidated.
+     */
+    private void evict(Collection<Integer> ids) {
+        if (cache != null) {
+            ids.forEach(cache::invalidate);
+        }
+        invalidateQueries();
+    }
+
+    private void invalidateQueries() {
+        if (queryCache != null) {
+            queryCache.invalidateAll();
+        }
+    }
+
+    /**
+     * With the shared entity manager the customer is merged, like before: the managed customer is returned,
+     * its later changes are written with the next transaction of the repository.
+     * <p>
+     * In per-operation mode one UPDATE statement, its row count tells whether the customer exists (and still
+     * has its version). Instead of read + merge, which selects the customer up to twice before updating it.
+     * <p>
+     * A customer without version overwrites the row.
+     *
+     * @return the managed customer with the shared entity manager; in per-operation mode the given customer,
+     * it has the state and version of the database now
+     * @throws OptimisticLockException if someone else changed the customer since it was read
+     */
     @Override
     public Customer update(Customer customer) {
         if (customer == null) {
             return null;
         }
-
-        if (customer.getId() == null || read(customer.getId()) == null) {
+        if (customer.getId() == null) {
             throw new IllegalArgumentException("Customer does not exist, cannot update");
         }
+        if (manager != null) {
+            Customer managed = managedForWrite(customer, "Customer does not exist, cannot update");
+            Customer merged = inTransaction(em -> {
+                if (managed == customer) {
+                    // changes of the managed customer are written with the commit
+                    return managed;
+                }
+                // the given customer stays as it is; without version it overwrites
+                Customer state = new Customer(customer);
+                state.setVersion(managed.getVersion());
+                return em.merge(state);
+            }, customer);
+            evict(List.of(customer.getId()));
+            return merged;
+        }
 
-        manager.getTransaction().begin();
-        Customer managed = manager.merge(customer);
-        manager.getTransaction().commit();
-        return managed;
+        String lastnameNormalized = Customer.normalize(customer.getLastname());
+        int updated = inTransaction(em -> {
+            Query query = em.createQuery(
+                    "UPDATE Customer c SET " +
+                            "c.firstname = :firstname, " +
+                            "c.lastname = :lastname, " +
+                            "c.lastnameNormalized = :lastnameNormalized, " +
+                            "c.accountType = :accountType, " +
+                            "c.registeredSince = :registeredSince, " +
+                            "c.version = c.version + 1 " +
+                            "WHERE c.id = :id" + versionCondition(customer))
+                    .setParameter("firstname", customer.getFirstname())
+                    .setParameter("lastname", customer.getLastname())
+                    .setParameter("lastnameNormalized", lastnameNormalized)
+                    .setParameter("accountType", customer.getAccountType())
+                    .setParameter("registeredSince", customer.getRegisteredSince())
+                    .setParameter("id", customer.getId());
+            return withVersion(query, customer).executeUpdate();
+        });
+        if (updated == 0) {
+            throw missingOrStale(customer, "Customer does not exist, cannot update");
+        }
+        // bulk statements bypass the descriptor events that keep the index up to date
+        TrigramIndex.updated(factory, customer.getId(), lastnameNormalized);
+        evict(List.of(customer.getId()));
+        if (customer.getVersion() != null) {
+            customer.setVersion(customer.getVersion() + 1);
+        }
+        return customer;
     }
 
+    /**
+     * With the shared entity manager the managed customer is removed, in per-operation mode one DELETE
+     * statement, its row count tells whether the customer existed (and still had its version).
+     *
+     * @throws OptimisticLockException if someone else changed the customer since it was read
+     */
     @Override
     public boolean delete(Customer customer) {
         if (customer == null) {
             return false;
         }
-
-        if (read(customer.getId()) == null) {
+        if (customer.getId() == null) {
             throw new IllegalArgumentException("Customer does not exist, cannot delete");
         }
+        if (manager != null) {
+            Customer managed = managedForWrite(customer, "Customer does not exist, cannot delete");
+            inTransaction(em -> {
+                em.remove(managed);
+                return null;
+            }, customer);
+            evict(List.of(customer.getId()));
+            return true;
+        }
+
+        int deleted = inTransaction(em -> withVersion(em.createQuery(
+                "DELETE FROM Customer c WHERE c.id = :id" + versionCondition(customer))
+                .setParameter("id", customer.getId()), customer)
+                .executeUpdate());
+        if (deleted == 0) {
+            throw missingOrStale(customer, "Customer does not exist, cannot delete");
+        }
+        TrigramIndex.deleted(factory, List.of(customer.getId()));
+        evict(List.of(customer.getId()));
+        return true;
+    }
 
-        manager.getTransaction().begin();
-        manager.remove(manager.merge(customer));
+    private static String versionCondition(Customer customer) {
+        return customer.getVersion() == null ? "" : " AND c.version = :version";
+    }
 
-        // manager.remove(customer)
+    private static Query withVersion(Query query, Customer customer) {
+        return customer.getVersion() == null ? query : query.setParameter("version", customer.getVersion());
+    }
 
-        manager.getTransaction().commit();
-        return true;
+    /**
+     * After a bulk statement did not find the customer: only a second query can tell whether it does
+     * not exist or has another version. Either way the cached copy may be the outdated one.
+     */
+    private RuntimeException missingOrStale(Customer customer, String message) {
+        evict(List.of(customer.getId()));
+        if (customer.getVersion() == null) {
+            return new IllegalArgumentException(message);
+        }
+        long existing = withManager(em -> em.createQuery(
+                "SELECT COUNT(c) FROM Customer c WHERE c.id = :id", Long.class)
+                .setParameter("id", customer.getId())
+                .getSingleResult());
+        if (existing == 0) {
+            return new IllegalArgumentException(message);
+        }
+        return new OptimisticLockException(
+                "Customer " + customer.getId() + " was changed by someone else since version " + customer.getVersion(),
+                null, customer);
+    }
+
+    /**
+     * Shared entity manager: the managed customer to change. The given one if it is managed, otherwise the
+     * managed copy read again, another repository may have changed it since. Checked before the transaction:
+     * the rollback of a failed one would detach every customer of the shared entity manager.
+     *
+     * @throws IllegalArgumentException if the customer does not exist
+     * @throws OptimisticLockException if the given customer has a version and it is not the current one
+     */
+    private Customer managedForWrite(Customer customer, String message) {
+        if (manager.contains(customer)) {
+            return customer;
+        }
+        Customer managed = manager.find(Customer.class, customer.getId(), Map.of(QueryHints.REFRESH, HintValues.TRUE));
+        if (managed == null) {
+            evict(List.of(customer.getId()));
+            throw new IllegalArgumentException(message);
+        }
+        if (customer.getVersion() != null && !customer.getVersion().equals(managed.getVersion())) {
+            evict(List.of(customer.getId()));
+            throw new OptimisticLockException(
+                    "Customer " + customer.getId() + " was changed by someone else since version " + customer.getVersion(),
+                    null, customer);
+        }
+        return managed;
+    }
+
+    /**
+     * A change between managedForWrite and the commit fails the version check of the commit.
+     */
+    private <T> T inTransaction(Function<EntityManager, T> work, Customer customer) {
+        try {
+            return inTransaction(work);
+        } catch (RollbackException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof OptimisticLockException
+                        || cause instanceof org.eclipse.persistence.exceptions.OptimisticLockException) {
+                    evict(List.of(customer.getId()));
+                    throw new OptimisticLockException(cause.getMessage(), e, customer);
+                }
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public int createAll(Collection<Customer> customers) {
+        List<Customer> toCreate = new ArrayList<>();
+        for (Customer customer : customers) {
+            // same rules as create: skip null and already persisted customers
+            if (customer != null && customer.getId() == null) {
+                toCreate.add(customer);
+            }
+        }
+        try {
+            inChunks(toCreate, (em, chunk) -> chunk.forEach(em::persist));
+        } finally {
+            invalidateQueries();
+        }
+        return toCreate.size();
+    }
+
+    /**
+     * merge checks the version of every customer that has one, a conflict fails the chunk with an
+     * OptimisticLockException. The returned customers have the new version, the given ones keep theirs.
+     */
+    @Override
+    public List<Customer> updateAll(Collection<Customer> customers) {
+        List<Customer> updated = new ArrayList<>();
+        Set<Integer> changed = new HashSet<>();
+        try {
+            inChunks(withoutNull(customers), (em, chunk) -> {
+                changed.addAll(requireExisting(em, chunk, "Customer does not exist, cannot update"));
+                for (Customer customer : chunk) {
+                    updated.add(em.merge(customer));
+                }
+            });
+        } finally {
+            // also after a failure, earlier chunks are committed
+            evict(changed);
+        }
+        return updated;
+    }
+
+    /**
+     * Deletes by id without checking versions, one statement per chunk.
+     */
+    @Override
+    public int deleteAll(Collection<Customer> customers) {
+        int[] deleted = {0};
+        Set<Integer> changed = new HashSet<>();
+        try {
+            inChunks(withoutNull(customers), (em, chunk) -> {
+                Set<Integer> ids = requireExisting(em, chunk, "Customer does not exist, cannot delete");
+                changed.addAll(ids);
+                // one statement per chunk instead of merge + remove for every customer
+                deleted[0] += em.createQuery("DELETE FROM Customer c WHERE c.id IN :ids")
+                        .setParameter("ids", ids)
+                        .executeUpdate();
+            }, chunk -> TrigramIndex.deleted(factory, ids(chunk)));
+        } finally {
+            evict(changed);
+        }
+        return deleted[0];
+    }
+
+    private static List<Customer> withoutNull(Collection<Customer> customers) {
+        List<Customer> result = new ArrayList<>(customers.size());
+        for (Customer customer : customers) {
+            if (customer != null) {
+                result.add(customer);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One query per chunk instead of one read per customer.
+     */
+    private static Set<Integer> requireExisting(EntityManager manager, List<Customer> chunk, String message) {
+        Set<Integer> ids = new HashSet<>();
+        for (Customer customer : chunk) {
+            if (customer.getId() == null) {
+                throw new IllegalArgumentException(message);
+            }
+            ids.add(customer.getId());
+        }
+        Long existing = manager.createQuery(
+                "SELECT COUNT(c) FROM Customer c WHERE c.id IN :ids", Long.class)
+                .setParameter("ids", ids)
+                .getSingleResult();
+        if (existing != ids.size()) {
+            throw new IllegalArgumentException(message);
+        }
+        return ids;
+    }
+
+    private static List<Integer> ids(List<Customer> customers) {
+        List<Integer> ids = new ArrayList<>(customers.size());
+        for (Customer customer : customers) {
+            ids.add(customer.getId());
+        }
+        return ids;
+    }
+
+    private void inChunks(List<Customer> customers, BiConsumer<EntityManager, List<Customer>> work) {
+        inChunks(customers, work, chunk -> { });
+    }
+
+    /**
+     * One transaction per chunk of {@code batchSize} customers. The persistence context is
+     * flushed and cleared after each chunk, so it does not grow with the number of customers.
+     * If a chunk fails, it is rolled back; chunks committed before stay in the database.
+     *
+     * @param committed called with every chunk after its commit
+     */
+    private void inChunks(List<Customer> customers, BiConsumer<EntityManager, List<Customer>> work,
+                          Consumer<List<Customer>> committed) {
+        withManager(em -> {
+            for (int from = 0; from < customers.size(); from += batchSize) {
+                List<Customer> chunk = customers.subList(from, Math.min(from + batchSize, customers.size()));
+                em.getTransaction().begin();
+                try {
+                    work.accept(em, chunk);
+                    em.flush();
+                    em.getTransaction().commit();
+                    committed.accept(chunk);
+                } catch (RollbackException e) {
+                    throw optimisticLockFailure(e);
+                } finally {
+                    if (em.getTransaction().isActive()) {
+                        em.getTransaction().rollback();
+                    }
+                    em.clear();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * EclipseLink reports a failed version check of the commit with its own exception
+     * inside the RollbackException, callers should get the JPA one.
+     */
+    private static RuntimeException optimisticLockFailure(RollbackException e) {
+        if (e.getCause() instanceof org.eclipse.persistence.exceptions.OptimisticLockException) {
+            Object entity = ((org.eclipse.persistence.exceptions.OptimisticLockException) e.getCause()).getObject();
+            return new OptimisticLockException(e.getCause().getMessage(), e, entity);
+        }
+        return e;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
     }
 
     @Override
     public List<Customer> getAllCustomers() {
-        TypedQuery<Customer> query = manager.createQuery(
-                "SELECT c FROM Customer c " +
-                        "ORDER BY c.registeredSince",
-                Customer.class
-        );
-        return query.getResultList();
+        return withManager(em -> allCustomersQuery(em).getResultList());
     }
 
     @Override
@@ -91,39 +543,300 @@ public class CustomerRepositoryJpa implements CustomerRepository {
         if (lastnamePart == null || lastnamePart.isEmpty()) {
             return Collections.emptyList();
         }
+        return cached("findByLastname", lastnamePart, () -> withManager(em -> searchByLastname(em, lastnamePart)));
+    }
 
-        TypedQuery<Customer> query = manager.createNamedQuery(
-                "Customer.findByLastnamePart",
-                Customer.class
-        );
-        query.setParameter("lastnamePart", "%" + lastnamePart + "%");
-
+    /**
+     * Parts of at least three letters are looked up in the trigram index, the database only checks
+     * the candidates. Shorter parts, parts with LIKE wildcards and parts of too many lastnames
+     * fall back to the LIKE query over the whole table. Both return the same customers.
+     */
+    private List<Customer> searchByLastname(EntityManager manager, String lastnamePart) {
+        String normalized = Customer.normalize(lastnamePart);
+        List<Integer> candidates = null;
+        if (normalized.length() >= TrigramIndex.GRAM && normalized.indexOf('%') < 0 && normalized.indexOf('_') < 0) {
+            candidates = TrigramIndex.of(factory).candidates(factory, normalized, MAX_TRIGRAM_CANDIDATES);
+        }
+        if (candidates == null) {
+            return byLastnameQuery(manager, lastnamePart).getResultList();
+        }
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return manager.createQuery(
+                "SELECT c FROM Customer c " +
+                        "WHERE c.id IN :ids AND c.lastnameNormalized LIKE :lastnamePart " +
+                        "ORDER BY c.lastname, c.id",
+                Customer.class)
+                .setParameter("ids", candidates)
+                .setParameter("lastnamePart", "%" + normalized + "%")
+                .getResultList();
+    }
 
-        return query.getResultList();
+    @Override
+    public List<Customer> findByLastnameStartingWith(String lastnamePrefix) {
+        if (lastnamePrefix == null || lastnamePrefix.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String escaped = Customer.normalize(lastnamePrefix)
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_");
+        // a LIKE without leading % can seek in IDX_CUSTOMER_LASTNAME_NORMALIZED
+        return cached("findByLastnameStartingWith", lastnamePrefix, () -> withManager(em -> em.createQuery(
+                "SELECT c FROM Customer c " +
+                        "WHERE c.lastnameNormalized LIKE :lastnamePrefix ESCAPE '\\' " +
+                        "ORDER BY c.lastname, c.id",
+                Customer.class)
+                .setParameter("lastnamePrefix", escaped + "%")
+                .getResultList()));
     }
 
     @Override
     public List<Customer> findByAccountType(AccountType type) {
+        return cached("findByAccountType", type,
+                () -> withManager(em -> byAccountTypeQuery(em, type).getResultList()));
+    }
+
+    @Override
+    public List<Customer> findAllRegisteredAfter(LocalDate date) {
+        return cached("findAllRegisteredAfter", date,
+                () -> withManager(em -> registeredAfterQuery(em, date).getResultList()));
+    }
+
+    private List<Customer> cached(String query, Object parameter, Supplier<List<Customer>> load) {
+        if (queryCache == null) {
+            return load.get();
+        }
+        return queryCache.get(query, parameter, load);
+    }
+
+    //#region keyset paging
 
+    @Override
+    public Page<Customer> getAllCustomers(String continuationToken, int pageSize) {
+        requirePageSize(pageSize);
+        Keyset after = Keyset.decode(continuationToken);
+        List<Customer> rows = withManager(em -> registeredSinceRows(em, after, pageSize));
+        return toPage(rows, pageSize, last -> new Keyset(
+                last.getRegisteredSince() == null ? null : last.getRegisteredSince().toString(),
+                last.getId()));
+    }
+
+    /**
+     * The page after the keyset and one row more, if there is one.
+     */
+    private static List<Customer> registeredSinceRows(EntityManager manager, Keyset after, int pageSize) {
+        List<Customer> rows = new ArrayList<>(pageSize + 1);
+
+        // customers without registration date come last, like in getAllCustomers()
+        if (after == null || after.value != null) {
+            TypedQuery<Customer> query;
+            if (after == null) {
+                query = manager.createQuery(
+                        "SELECT c FROM Customer c " +
+                                "WHERE c.registeredSince IS NOT NULL " +
+                                "ORDER BY c.registeredSince, c.id",
+                        Customer.class);
+            } else {
+                // the first condition lets the database seek into the index
+                query = manager.createQuery(
+                        "SELECT c FROM Customer c " +
+                                "WHERE c.registeredSince >= :registeredSince " +
+                                "AND (c.registeredSince > :registeredSince OR c.id > :id) " +
+                                "ORDER BY c.registeredSince, c.id",
+                        Customer.class);
+                query.setParameter("registeredSince", parseDate(after.value));
+                query.setParameter("id", after.id);
+            }
+            rows.addAll(query.setMaxResults(pageSize + 1).getResultList());
+        }
+        if (rows.size() <= pageSize) {
+            TypedQuery<Customer> query = manager.createQuery(
+                    "SELECT c FROM Customer c " +
+                            "WHERE c.registeredSince IS NULL AND c.id > :id " +
+                            "ORDER BY c.id",
+                    Customer.class);
+            query.setParameter("id", after != null && after.value == null ? after.id : Integer.MIN_VALUE);
+            rows.addAll(query.setMaxResults(pageSize + 1 - rows.size()).getResultList());
+        }
+        return rows;
+    }
+
+    @Override
+    public Page<Customer> findByLastname(String lastnamePart, String continuationToken, int pageSize) {
+        requirePageSize(pageSize);
+        if (lastnamePart == null || lastnamePart.isEmpty()) {
+            return Page.empty();
+        }
+        Keyset after = Keyset.decode(continuationToken);
+        List<Customer> rows = withManager(em -> lastnameRows(em, lastnamePart, after, pageSize));
+
+        // LIKE never matches null, so there is always a lastname
+        return toPage(rows, pageSize, last -> new Keyset(last.getLastname(), last.getId()));
+    }
+
+    private static List<Customer> lastnameRows(EntityManager manager, String lastnamePart, Keyset after, int pageSize) {
+        TypedQuery<Customer> query;
+        if (after == null) {
+            query = manager.createQuery(
+                    "SELECT c FROM Customer c " +
+                            "WHERE c.lastnameNormalized LIKE :lastnamePart " +
+                            "ORDER BY c.lastname, c.id",
+                    Customer.class);
+        } else {
+            query = manager.createQuery(
+                    "SELECT c FROM Customer c " +
+                            "WHERE c.lastnameNormalized LIKE :lastnamePart " +
+                            "AND c.lastname >= :lastname " +
+                            "AND (c.lastname > :lastname OR c.id > :id) " +
+                            "ORDER BY c.lastname, c.id",
+                    Customer.class);
+            query.setParameter("lastname", after.value);
+            query.setParameter("id", after.id);
+        }
+        query.setParameter("lastnamePart", "%" + Customer.normalize(lastnamePart) + "%");
+        return query.setMaxResults(pageSize + 1).getResultList();
+    }
+
+    private static void requirePageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+    }
+
+    /**
+     * rows contains one row more than the page if there is a next page.
+     */
+    private static Page<Customer> toPage(List<Customer> rows, int pageSize, Function<Customer, Keyset> keyOf) {
+        if (rows.size() <= pageSize) {
+            return new Page<>(rows, null);
+        }
+        List<Customer> content = new ArrayList<>(rows.subList(0, pageSize));
+        return new Page<>(content, keyOf.apply(content.get(pageSize - 1)).encode());
+    }
+
+    private static LocalDate parseDate(String value) {
+        try {
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+
+    /**
+     * Sort key of the last customer of a page, the continuation token is its opaque form.
+     */
+    private static class Keyset {
+        private final String value;
+        private final int id;
+
+        Keyset(String value, int id) {
+            this.value = value;
+            this.id = id;
+        }
+
+        String encode() {
+            String plain = value == null ? String.valueOf(id) : id + ":" + value;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Keyset decode(String token) {
+            if (token == null) {
+                return null;
+            }
+            try {
+                String plain = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+                int separator = plain.indexOf(':');
+                if (separator < 0) {
+                    return new Keyset(null, Integer.parseInt(plain));
+                }
+                return new Keyset(plain.substring(separator + 1), Integer.parseInt(plain.substring(0, separator)));
+            } catch (IllegalArgumentException e) {
+                // also covers NumberFormatException
+                throw new IllegalArgumentException("Invalid continuation token", e);
+            }
+        }
+    }
+
+    //#endregion
+
+    //#region streaming
+
+    @Override
+    public Stream<Customer> streamAllCustomers() {
+        return CursorStreams.open(factory, CustomerRepositoryJpa::allCustomersQuery, streamPageSize);
+    }
+
+    @Override
+    public Stream<Customer> streamByLastname(String lastnamePart) {
+        if (lastnamePart == null || lastnamePart.isEmpty()) {
+            return Stream.empty();
+        }
+        return CursorStreams.open(factory, em -> byLastnameQuery(em, lastnamePart), streamPageSize);
+    }
+
+    @Override
+    public Stream<Customer> streamByAccountType(AccountType type) {
+        return CursorStreams.open(factory, em -> byAccountTypeQuery(em, type), streamPageSize);
+    }
+
+    @Override
+    public Stream<Customer> streamAllRegisteredAfter(LocalDate date) {
+        return CursorStreams.open(factory, em -> registeredAfterQuery(em, date), streamPageSize);
+    }
+
+    public int getStreamPageSize() {
+        return streamPageSize;
+    }
+
+    public void setStreamPageSize(int streamPageSize) {
+        if (streamPageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1");
+        }
+        this.streamPageSize = streamPageSize;
+    }
+
+    //#endregion
+
+    //#region queries, shared by the list and the stream variants
+
+    private static TypedQuery<Customer> allCustomersQuery(EntityManager manager) {
+        return manager.createQuery(
+                "SELECT c FROM Customer c " +
+                        "ORDER BY c.registeredSince",
+                Customer.class
+        );
+    }
+
+    private static TypedQuery<Customer> byLastnameQuery(EntityManager manager, String lastnamePart) {
+        TypedQuery<Customer> query = manager.createNamedQuery(
+                "Customer.findByLastnamePart",
+                Customer.class
+        );
+        query.setParameter("lastnamePart", "%" + Customer.normalize(lastnamePart) + "%");
+        return query;
+    }
+
+    private static TypedQuery<Customer> byAccountTypeQuery(EntityManager manager, AccountType type) {
         TypedQuery<Customer> query = manager.createQuery(
                 "SELECT c FROM Customer c " +
                         "WHERE c.accountType = :accountType",
                 Customer.class
         );
         query.setParameter("accountType", type);
-        return query.getResultList();
+        return query;
     }
 
-    @Override
-    public List<Customer> findAllRegisteredAfter(LocalDate date) {
+    private static TypedQuery<Customer> registeredAfterQuery(EntityManager manager, LocalDate date) {
         TypedQuery<Customer> query = manager.createQuery(
                 "SELECT c FROM Customer c " +
                         "WHERE c.registeredSince > :registeredAfter",
                 Customer.class
         );
         query.setParameter("registeredAfter", date);
-        return query.getResultList();
+        return query;
     }
 
-
+    //#endregion
 }
@@ -0,0 +1,193 @@
+package at.campus02.dbp2.mappings;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Size bounded cache with least-recently-used eviction and an optional time-to-live.
+ * <p>
+ * Thread-safe, one instance can be shared by several repositories.
+ */
+public class LruCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final ToIntFunction<? super V> weigher;
+    private final LongSupplier clock;
+
+    // access order: the eldest entry is the least recently used one
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // incremented by every invalidation, see putIfNotInvalidated
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long weight;
+
+    /**
+     * @param maxSize    maximum number of entries, the least recently used one is evicted first
+     * @param ttlMillis  entries expire this long after they were put, 0 for no expiry
+     */
+    public LruCache(int maxSize, long ttlMillis) {
+        this(maxSize, ttlMillis, value -> 1);
+    }
+
+    /**
+     * @param weigher    weight of a value, e.g. the number of rows of a query result;
+     *                   only for statistics, the size limit counts entries
+     */
+    public LruCache(int maxSize, long ttlMillis, ToIntFunction<? super V> weigher) {
+        this(maxSize, ttlMillis, weigher, System::nanoTime);
+    }
+
+    LruCache(int maxSize, long ttlMillis, LongSupplier clock) {
+        this(maxSize, ttlMillis, value -> 1, clock);
+    }
+
+    LruCache(int maxSize, long ttlMillis, ToIntFunction<? super V> weigher, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Time-to-live must not be negative");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.weigher = weigher;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the cached value, or null if there is none or it expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && ttlNanos > 0 && clock.getAsLong() - entry.created >= ttlNanos) {
+            remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        Entry<V> entry = new Entry<>(value, weigher.applyAsInt(value), clock.getAsLong());
+        Entry<V> replaced = entries.put(key, entry);
+        weight += entry.weight - (replaced == null ? 0 : replaced.weight);
+        Iterator<Map.Entry<K, Entry<V>>> eldestFirst = entries.entrySet().iterator();
+        while (entries.size() > maxSize) {
+            weight -= eldestFirst.next().getValue().weight;
+            eldestFirst.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Taken before a value is loaded for {@link #putIfNotInvalidated(Object, Object, long)}.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Puts the value only if nothing was invalidated since the generation was taken: an invalidation
+     * while the value was loaded (e.g. by a concurrent update) may mean the value is already outdated.
+     *
+     * @return false if the value was not put
+     */
+    public synchronized boolean putIfNotInvalidated(K key, V value, long loadedIn) {
+        if (generation != loadedIn) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    private void remove(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    //#region statistics
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Sum of the weights of all entries, the number of entries without a weigher.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Entries removed because the cache was full.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Entries removed because their time-to-live was over.
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    //#endregion
+
+    private static class Entry<V> {
+        private final V value;
+        private final int weight;
+        private final long created;
+
+        Entry(V value, int weight, long created) {
+            this.value = value;
+            this.weight = weight;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package at.campus02.dbp2.mappings;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a keyset paged query. Pass {@link #getContinuationToken()} to the
+ * same query to get the next page; it is {@code null} on the last page.
+ */
+public class Page<T> {
+
+    private final List<T> content;
+    private final String continuationToken;
+
+    public Page(List<T> content, String continuationToken) {
+        this.content = Collections.unmodifiableList(content);
+        this.continuationToken = continuationToken;
+    }
+
+    public static <T> Page<T> empty() {
+        return new Page<>(Collections.emptyList(), null);
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasNext() {
+        return continuationToken != null;
+    }
+}
@@ -0,0 +1,100 @@
+package at.campus02.dbp2.mappings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Results of the finder queries, keyed by query name and parameter.
+ * <p>
+ * Every write to customers invalidates all results, a result cannot tell which
+ * customers would match after a change. One instance can be shared by several
+ * repositories of the same factory.
+ */
+public class QueryResultCache {
+
+    private final LruCache<List<Object>, List<Customer>> results;
+    // incremented by every invalidation, results loaded before are not cached anymore
+    private long generation;
+
+    /**
+     * @param maxQueries maximum number of cached results, the least recently used one is evicted first
+     * @param ttlMillis  results expire this long after they were loaded, 0 for no expiry
+     */
+    public QueryResultCache(int maxQueries, long ttlMillis) {
+        results = new LruCache<>(maxQueries, ttlMillis, List::size);
+    }
+
+    /**
+     * @return copies of the cached customers, or of the ones returned by load on a miss
+     */
+    List<Customer> get(String query, Object parameter, Supplier<List<Customer>> load) {
+        List<Object> key = Arrays.asList(query, parameter);
+        List<Customer> cached = results.get(key);
+        if (cached == null) {
+            long loadedIn = currentGeneration();
+            cached = copies(load.get());
+            putIfNotInvalidated(key, cached, loadedIn);
+        }
+        return copies(cached);
+    }
+
+    private synchronized long currentGeneration() {
+        return generation;
+    }
+
+    private synchronized void putIfNotInvalidated(List<Object> key, List<Customer> result, long loadedIn) {
+        // a write during the query may already be missing in the result
+        if (generation == loadedIn) {
+            results.put(key, result);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        results.invalidateAll();
+    }
+
+    private static List<Customer> copies(List<Customer> customers) {
+        List<Customer> copies = new ArrayList<>(customers.size());
+        for (Customer customer : customers) {
+            copies.add(new Customer(customer));
+        }
+        return copies;
+    }
+
+    //#region statistics
+
+    /**
+     * Number of cached results.
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Number of customers in all cached results, a measure for the memory used.
+     */
+    public long getCachedRows() {
+        return results.getWeight();
+    }
+
+    public long getHits() {
+        return results.getHits();
+    }
+
+    public long getMisses() {
+        return results.getMisses();
+    }
+
+    public long getEvictions() {
+        return results.getEvictions();
+    }
+
+    public double getHitRate() {
+        return results.getHitRate();
+    }
+
+    //#endregion
+}
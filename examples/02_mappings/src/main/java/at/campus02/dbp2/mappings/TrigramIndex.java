@@ -0,0 +1,324 @@
+package at.campus02.dbp2.mappings;
+
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.server.Server;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * In-process index from every three-letter sequence (trigram) of the normalized lastnames to the
+ * ids of the customers that contain it. A search for a part of at least three letters only has to
+ * look at the customers that contain all of its trigrams, instead of scanning the whole table.
+ * <p>
+ * One index per factory, built on first use. Inserts, updates and deletes through any entity manager
+ * of the factory are seen by a descriptor event listener, bulk statements are reported by
+ * {@link #updated} and {@link #deleted}. New lastnames are added when they are flushed, old lastnames
+ * and deleted customers are removed only after the commit: until then a search may return candidates
+ * that do not match, so callers have to check the candidates against the database. That way a rolled
+ * back transaction cannot make a customer invisible to the search.
+ * <p>
+ * Transactions that were already running when the index was created only add to it, their old
+ * lastnames stay as candidates that do not match.
+ */
+class TrigramIndex {
+
+    static final int GRAM = 3;
+
+    private static final String PROPERTY = TrigramIndex.class.getName();
+
+    private final Map<String, Posting> postings = new HashMap<>();
+    // committed normalized lastname per id, null for ids deleted while the index is built
+    private final Map<Integer, String> lastnames = new HashMap<>();
+    // lastnames flushed by running transactions per unit of work, null for deletes; weak for units of
+    // work acquired before the index was registered, they never report their end
+    private final Map<Session, Map<Integer, String>> flushed = new WeakHashMap<>();
+    private final Object buildLock = new Object();
+    private volatile boolean built;
+
+    private TrigramIndex() {
+    }
+
+    /**
+     * The index of the factory, registers it for changes of customers on first call.
+     */
+    static TrigramIndex of(EntityManagerFactory factory) {
+        Server session = JpaHelper.getServerSession(factory);
+        synchronized (session) {
+            TrigramIndex index = (TrigramIndex) session.getProperty(PROPERTY);
+            if (index == null) {
+                index = new TrigramIndex();
+                session.setProperty(PROPERTY, index);
+                session.getDescriptor(Customer.class).getEventManager().addListener(index.new Listener());
+                // sessions copy the listeners when they are acquired, so this only reaches transactions begun later
+                session.getEventManager().addListener(index.new Transactions());
+            }
+            return index;
+        }
+    }
+
+    /**
+     * For committed JPQL UPDATE statements, they bypass the listener. Does nothing if the factory has no
+     * index yet, it reads the current lastnames when it is built.
+     */
+    static void updated(EntityManagerFactory factory, Integer id, String normalizedLastname) {
+        TrigramIndex index = existing(factory);
+        if (index != null) {
+            index.committed(id, normalizedLastname);
+        }
+    }
+
+    /**
+     * For committed JPQL DELETE statements, like {@link #updated}.
+     */
+    static void deleted(EntityManagerFactory factory, Collection<Integer> ids) {
+        TrigramIndex index = existing(factory);
+        if (index != null) {
+            for (Integer id : ids) {
+                index.committed(id, null);
+            }
+        }
+    }
+
+    private static TrigramIndex existing(EntityManagerFactory factory) {
+        Server session = JpaHelper.getServerSession(factory);
+        synchronized (session) {
+            return (TrigramIndex) session.getProperty(PROPERTY);
+        }
+    }
+
+    /**
+     * Ids of the customers whose normalized lastname may contain the normalized part, sorted.
+     *
+     * @param part  at least {@link #GRAM} characters
+     * @param limit maximum number of candidates
+     * @return the candidates, or null if there are more than limit
+     */
+    List<Integer> candidates(EntityManagerFactory factory, String part, int limit) {
+        if (!built) {
+            build(factory);
+        }
+
+        List<Posting> required = new ArrayList<>();
+        synchronized (this) {
+            for (String gram : grams(part)) {
+                Posting posting = postings.get(gram);
+                if (posting == null) {
+                    return new ArrayList<>();
+                }
+                required.add(posting);
+            }
+            // start with the rarest trigram, every other one can only remove candidates
+            required.sort(Comparator.comparingInt(posting -> posting.size));
+
+            List<Integer> candidates = new ArrayList<>();
+            Posting rarest = required.get(0);
+            for (int i = 0; i < rarest.size; i++) {
+                int id = rarest.ids[i];
+                if (containedInAll(required, id)) {
+                    if (candidates.size() == limit) {
+                        return null;
+                    }
+                    candidates.add(id);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    private static boolean containedInAll(List<Posting> postings, int id) {
+        for (int i = 1; i < postings.size(); i++) {
+            if (!postings.get(i).contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads all lastnames once. Commits during the build are newer than the rows read,
+     * so the rows of their ids are skipped.
+     */
+    private void build(EntityManagerFactory factory) {
+        synchronized (buildLock) {
+            if (built) {
+                return;
+            }
+            EntityManager manager = factory.createEntityManager();
+            try {
+                List<Object[]> rows = manager.createQuery(
+                        "SELECT c.id, c.lastnameNormalized FROM Customer c", Object[].class)
+                        .getResultList();
+                synchronized (this) {
+                    for (Object[] row : rows) {
+                        Integer id = (Integer) row[0];
+                        if (!lastnames.containsKey(id)) {
+                            lastnames.put(id, (String) row[1]);
+                            add(id, (String) row[1]);
+                        }
+                    }
+                    lastnames.values().removeIf(lastname -> lastname == null);
+                    built = true;
+                }
+            } finally {
+                manager.close();
+            }
+        }
+    }
+
+    private synchronized void add(Integer id, String normalizedLastname) {
+        if (id == null || normalizedLastname == null) {
+            return;
+        }
+        for (String gram : grams(normalizedLastname)) {
+            postings.computeIfAbsent(gram, key -> new Posting()).add(id);
+        }
+    }
+
+    /**
+     * Removes the id from the trigrams of the lastname that are not in the committed lastname of the id.
+     */
+    private synchronized void removeStale(Integer id, String normalizedLastname) {
+        if (normalizedLastname == null) {
+            return;
+        }
+        String current = lastnames.get(id);
+        Set<String> kept = current == null ? Set.of() : new HashSet<>(grams(current));
+        for (String gram : grams(normalizedLastname)) {
+            Posting posting = postings.get(gram);
+            if (posting != null && !kept.contains(gram)) {
+                posting.remove(id);
+                if (posting.size == 0) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * The lastname of the id after a commit, null if the customer was deleted.
+     */
+    private synchronized void committed(Integer id, String normalizedLastname) {
+        if (id == null) {
+            return;
+        }
+        // a rollback of a concurrent transaction may have removed trigrams the lastname shares with it
+        add(id, normalizedLastname);
+        String old = normalizedLastname == null && built ? lastnames.remove(id) : lastnames.put(id, normalizedLastname);
+        removeStale(id, old);
+    }
+
+    private synchronized void flushed(Session unitOfWork, Integer id, String normalizedLastname) {
+        if (id != null) {
+            flushed.computeIfAbsent(unitOfWork, key -> new HashMap<>()).put(id, normalizedLastname);
+        }
+    }
+
+    private static List<String> grams(String normalized) {
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + GRAM <= normalized.length(); i++) {
+            grams.add(normalized.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+
+    /**
+     * Called within the flush of every entity manager of the factory, before the commit.
+     */
+    private class Listener extends DescriptorEventAdapter {
+
+        @Override
+        public void postInsert(DescriptorEvent event) {
+            postUpdate(event);
+        }
+
+        @Override
+        public void postUpdate(DescriptorEvent event) {
+            Customer customer = (Customer) event.getSource();
+            add(customer.getId(), customer.getLastnameNormalized());
+            flushed(event.getSession(), customer.getId(), customer.getLastnameNormalized());
+        }
+
+        @Override
+        public void postDelete(DescriptorEvent event) {
+            flushed(event.getSession(), ((Customer) event.getSource()).getId(), null);
+        }
+    }
+
+    /**
+     * Applies the flushed changes of a unit of work after its commit, or removes the added trigrams
+     * when it is released without one (after a rollback).
+     */
+    private class Transactions extends SessionEventAdapter {
+
+        @Override
+        public void postCommitUnitOfWork(SessionEvent event) {
+            synchronized (TrigramIndex.this) {
+                Map<Integer, String> changes = flushed.remove(event.getSession());
+                if (changes != null) {
+                    changes.forEach(TrigramIndex.this::committed);
+                }
+            }
+        }
+
+        @Override
+        public void postReleaseUnitOfWork(SessionEvent event) {
+            synchronized (TrigramIndex.this) {
+                Map<Integer, String> changes = flushed.remove(event.getSession());
+                if (changes != null) {
+                    changes.forEach(TrigramIndex.this::removeStale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorted ids without duplicates. Ids are generated in ascending order, so adding is usually an append.
+     */
+    private static class Posting {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at < 0) {
+                return;
+            }
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncCustomerRepositorySpec {
+
+    //#region test data
+    private static Customer initCustomer(String lastname) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname");
+        customer.setLastname(lastname);
+        customer.setAccountType(AccountType.BASIC);
+        customer.setRegisteredSince(LocalDate.of(2021, 10, 1));
+        return customer;
+    }
+    //#endregion
+
+    //#region setup / tear down
+    private EntityManagerFactory factory;
+    private AsyncCustomerRepository repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        repository = new AsyncCustomerRepository(CustomerRepositoryJpa.perOperation(factory), 4);
+    }
+
+    @AfterEach
+    public void afterEach() throws InterruptedException {
+        repository.close();
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+    //#endregion
+
+    @Test
+    public void createReadUpdateAndDeleteComplete() throws Exception {
+        // given
+        Customer customer = initCustomer("Lastname");
+
+        // when
+        assertTrue(repository.create(customer).get(5, TimeUnit.SECONDS));
+        Customer fromDb = repository.read(customer.getId()).get(5, TimeUnit.SECONDS);
+        fromDb.setLastname("Changed");
+        Customer updated = repository.update(fromDb).get(5, TimeUnit.SECONDS);
+
+        // then
+        assertEquals("Changed", updated.getLastname());
+        assertEquals(1, repository.findByLastname("chang").get(5, TimeUnit.SECONDS).size());
+
+        // and when
+        boolean deleted = repository.delete(updated).get(5, TimeUnit.SECONDS);
+
+        // then
+        assertTrue(deleted);
+        assertNull(repository.read(customer.getId()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyConcurrentCallsRunWithinTheLimit() throws Exception {
+        // given
+        List<CompletableFuture<Boolean>> creates = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            creates.add(repository.create(initCustomer("Lastname" + i)));
+        }
+        CompletableFuture.allOf(creates.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        // then
+        assertEquals(100, repository.getAllCustomers().get(5, TimeUnit.SECONDS).size());
+        assertEquals(10, repository.getAllCustomers(null, 10).get(5, TimeUnit.SECONDS).getContent().size());
+        assertTrue(repository.getPeakRunningCount() <= 4);
+        assertEquals(Runtime.version().feature() >= 21, repository.isVirtual());
+    }
+
+    @Test
+    public void failedCallCompletesExceptionally() throws Exception {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer).get(5, TimeUnit.SECONDS);
+        Customer first = repository.read(customer.getId()).get(5, TimeUnit.SECONDS);
+        Customer second = repository.read(customer.getId()).get(5, TimeUnit.SECONDS);
+        repository.update(first).get(5, TimeUnit.SECONDS);
+
+        // when
+        CompletableFuture<Customer> outdated = repository.update(second);
+
+        // then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> outdated.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof OptimisticLockException, "cause: " + e.getCause());
+    }
+
+    @Test
+    public void callAfterCloseCompletesExceptionallyWithIllegalStateException() throws Exception {
+        // given
+        repository.close();
+
+        // when
+        CompletableFuture<Customer> read = repository.read(1);
+
+        // then: no exception on the calling thread, the future fails
+        ExecutionException e = assertThrows(ExecutionException.class, () -> read.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException, "cause: " + e.getCause());
+        assertEquals("Repository is closed", e.getCause().getMessage());
+        assertTrue(factory.isOpen());
+    }
+}
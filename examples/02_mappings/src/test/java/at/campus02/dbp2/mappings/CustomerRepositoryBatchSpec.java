@@ -0,0 +1,232 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CustomerRepositoryBatchSpec {
+
+    //#region test data
+    private static Customer initCustomer(int number) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname" + number);
+        customer.setLastname("Lastname" + number);
+        customer.setAccountType(number % 2 == 0 ? AccountType.BASIC : AccountType.PREMIUM);
+        customer.setRegisteredSince(LocalDate.of(2021, 1, 1).plusDays(number % 365));
+        return customer;
+    }
+
+    private static List<Customer> initCustomers(int count) {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            customers.add(initCustomer(i));
+        }
+        return customers;
+    }
+
+    private long countInDatabase() {
+        return manager.createQuery("SELECT COUNT(c) FROM Customer c", Long.class).getSingleResult();
+    }
+    //#endregion
+
+    //#region setup / tear down
+    private EntityManagerFactory factory;
+    private EntityManager manager;
+    private CustomerRepositoryJpa repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        manager = factory.createEntityManager();
+        repository = new CustomerRepositoryJpa(factory);
+        // small chunks, so the tests span several transactions
+        repository.setBatchSize(7);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (manager.isOpen()) {
+            manager.close();
+        }
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+    //#endregion
+
+    //#region createAll
+
+    @Test
+    public void createAllPersistsAllCustomersAndReturnsCount() {
+        // given
+        List<Customer> customers = initCustomers(20);
+
+        // when
+        int created = repository.createAll(customers);
+
+        // then
+        assertEquals(20, created);
+        assertEquals(20, countInDatabase());
+        for (Customer customer : customers) {
+            assertNotNull(customer.getId());
+            Customer fromDb = manager.find(Customer.class, customer.getId());
+            assertEquals(customer.getLastname(), fromDb.getLastname());
+        }
+    }
+
+    @Test
+    public void createAllSkipsNullAndExistingCustomers() {
+        // given
+        Customer existing = initCustomer(1);
+        manager.getTransaction().begin();
+        manager.persist(existing);
+        manager.getTransaction().commit();
+
+        // when
+        int created = repository.createAll(Arrays.asList(null, existing, initCustomer(2)));
+
+        // then
+        assertEquals(1, created);
+        assertEquals(2, countInDatabase());
+    }
+
+    @Test
+    public void createAllKeepsCommittedChunksWhenALaterChunkFails() {
+        // given: the 10th customer (second chunk) is not valid
+        List<Customer> customers = initCustomers(20);
+        customers.get(9).setAccountType(null);
+
+        // when
+        assertThrows(RuntimeException.class, () -> repository.createAll(customers));
+
+        // then: only the first chunk is in the database
+        assertEquals(7, countInDatabase());
+    }
+
+    //#endregion
+
+    //#region updateAll
+
+    @Test
+    public void updateAllChangesAllCustomersInDatabase() {
+        // given
+        List<Customer> customers = initCustomers(20);
+        repository.createAll(customers);
+
+        // when
+        customers.forEach(customer -> customer.setAccountType(AccountType.PREMIUM));
+        List<Customer> updated = repository.updateAll(customers);
+
+        // then
+        assertEquals(20, updated.size());
+        assertEquals(20L, (long) manager.createQuery(
+                "SELECT COUNT(c) FROM Customer c WHERE c.accountType = :type", Long.class)
+                .setParameter("type", AccountType.PREMIUM)
+                .getSingleResult());
+    }
+
+    @Test
+    public void updateAllWithNotExistingCustomerThrowsIllegalArgumentException() {
+        // given
+        List<Customer> customers = initCustomers(3);
+        repository.createAll(customers);
+        Customer notExisting = initCustomer(4);
+
+        // when / then
+        assertThrows(IllegalArgumentException.class,
+                () -> repository.updateAll(Arrays.asList(customers.get(0), notExisting)));
+    }
+
+    @Test
+    public void updateAllWithOutdatedCustomerThrowsOptimisticLockException() {
+        // given
+        List<Customer> customers = initCustomers(3);
+        repository.createAll(customers);
+        Customer outdated = new Customer(customers.get(1));
+        customers.get(1).setFirstname("changed");
+        repository.update(customers.get(1));
+
+        // when / then
+        outdated.setFirstname("outdated");
+        assertThrows(OptimisticLockException.class,
+                () -> repository.updateAll(Arrays.asList(customers.get(0), outdated)));
+        assertEquals("changed", manager.find(Customer.class, outdated.getId()).getFirstname());
+    }
+
+    //#endregion
+
+    //#region deleteAll
+
+    @Test
+    public void deleteAllRemovesCustomersFromDatabaseAndReturnsCount() {
+        // given
+        List<Customer> customers = initCustomers(20);
+        repository.createAll(customers);
+
+        // when
+        int deleted = repository.deleteAll(customers.subList(0, 15));
+
+        // then
+        assertEquals(15, deleted);
+        assertEquals(5, countInDatabase());
+        manager.clear();
+        assertNull(manager.find(Customer.class, customers.get(0).getId()));
+        assertNotNull(manager.find(Customer.class, customers.get(19).getId()));
+    }
+
+    @Test
+    public void deleteAllWithNotExistingCustomerThrowsIllegalArgumentException() {
+        // given
+        Customer existing = initCustomer(1);
+        repository.create(existing);
+
+        // when / then
+        assertThrows(IllegalArgumentException.class,
+                () -> repository.deleteAll(Arrays.asList(existing, initCustomer(2))));
+        assertEquals(1, countInDatabase());
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    @Test
+    @Tag("benchmark")
+    public void createAllComparedToSingleCreates() {
+        int count = Integer.getInteger("benchmark.customers", 50_000);
+
+        long start = System.nanoTime();
+        for (Customer customer : initCustomers(count / 10)) {
+            repository.create(customer);
+        }
+        double singleMillis = (System.nanoTime() - start) / 1_000_000.0 * 10;
+
+        for (int batchSize : new int[]{50, 500, 5_000}) {
+            manager.getTransaction().begin();
+            manager.createQuery("DELETE FROM Customer c").executeUpdate();
+            manager.getTransaction().commit();
+
+            repository.setBatchSize(batchSize);
+            start = System.nanoTime();
+            repository.createAll(initCustomers(count));
+            double batchMillis = (System.nanoTime() - start) / 1_000_000.0;
+
+            System.out.printf("%,d customers: create one by one ~%,.0f ms (extrapolated), createAll with batch size %,d: %,.0f ms%n",
+                    count, singleMillis, batchSize, batchMillis);
+        }
+    }
+
+    //#endregion
+}
@@ -0,0 +1,420 @@
+package at.campus02.dbp2.mappings;
+
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CustomerRepositoryCacheSpec {
+
+    //#region test data
+    private static Customer initCustomer(String lastname) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname");
+        customer.setLastname(lastname);
+        customer.setAccountType(AccountType.BASIC);
+        customer.setRegisteredSince(LocalDate.of(2021, 10, 1));
+        return customer;
+    }
+    //#endregion
+
+    //#region setup / tear down
+    private EntityManagerFactory factory;
+    private LruCache<Integer, Customer> cache;
+    private QueryResultCache queryCache;
+    // two repositories of the same factory, sharing the caches
+    private CustomerRepositoryJpa repository;
+    private CustomerRepositoryJpa other;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        cache = new LruCache<>(100, 0);
+        queryCache = new QueryResultCache(10, 0);
+        repository = new CustomerRepositoryJpa(factory, cache, queryCache);
+        other = new CustomerRepositoryJpa(factory, cache, queryCache);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+    //#endregion
+
+    //#region read
+
+    @Test
+    public void secondReadIsServedFromCache() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+
+        // when
+        Customer first = repository.read(customer.getId());
+        Customer second = other.read(customer.getId());
+
+        // then
+        assertEquals(customer, first);
+        assertEquals(customer, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void notExistingCustomerIsNotCached() {
+        // when
+        assertNull(repository.read(-1));
+        assertNull(repository.read(-1));
+
+        // then
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void changingReadCustomerDoesNotChangeCache() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+        repository.read(customer.getId());
+
+        // when
+        other.read(customer.getId()).setLastname("Changed");
+
+        // then
+        assertEquals("Lastname", repository.read(customer.getId()).getLastname());
+    }
+
+    @Test
+    public void changesAfterAMissAndAfterAHitAreOnlyWrittenByUpdate() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+
+        // when
+        Customer missed = repository.read(customer.getId());
+        Customer hit = repository.read(customer.getId());
+        missed.setLastname("Missed");
+        hit.setFirstname("Hit");
+        // commits the transaction of the shared entity manager
+        repository.create(initCustomer("Other"));
+
+        // then: neither is managed, the next transaction wrote none of the changes
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertNotSame(missed, hit);
+        Customer stored = CustomerRepositoryJpa.perOperation(factory).read(customer.getId());
+        assertEquals("Firstname", stored.getFirstname());
+        assertEquals("Lastname", stored.getLastname());
+
+        // and update writes them
+        repository.update(missed);
+        assertEquals("Missed", CustomerRepositoryJpa.perOperation(factory).read(customer.getId()).getLastname());
+    }
+
+    //#endregion
+
+    //#region invalidation
+
+    @Test
+    public void updateThroughOneRepositoryIsVisibleInTheOther() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+        other.read(customer.getId());
+
+        // when
+        Customer changed = repository.read(customer.getId());
+        changed.setLastname("Changed");
+        repository.update(changed);
+
+        // then
+        assertEquals("Changed", other.read(customer.getId()).getLastname());
+    }
+
+    @Test
+    public void deleteThroughOneRepositoryIsVisibleInTheOther() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+        other.read(customer.getId());
+
+        // when
+        repository.delete(repository.read(customer.getId()));
+
+        // then
+        assertNull(other.read(customer.getId()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void customerLoadedBeforeAnInvalidationIsNotCached() {
+        // given
+        long loadedIn = cache.getGeneration();
+        cache.invalidate(1);
+
+        // when
+        boolean put = cache.putIfNotInvalidated(1, initCustomer("Outdated"), loadedIn);
+
+        // then
+        assertFalse(put);
+        assertNull(cache.get(1));
+        assertTrue(cache.putIfNotInvalidated(1, initCustomer("Current"), cache.getGeneration()));
+    }
+
+    @Test
+    public void updateWhileReadLoadsTheCustomerDoesNotLeaveItStaleInCache() throws Exception {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+        factory.getCache().evictAll();
+        // another repository updates the customer after read got the row, before read puts it into the cache;
+        // per operation: its single UPDATE does not read the customer that read is just building
+        CustomerRepositoryJpa writer = CustomerRepositoryJpa.perOperation(factory, cache, queryCache);
+        AtomicBoolean updateOnce = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DescriptorEventAdapter updateWhileLoading = new DescriptorEventAdapter() {
+            @Override
+            public void postBuild(DescriptorEvent event) {
+                updateConcurrently();
+            }
+
+            @Override
+            public void postRefresh(DescriptorEvent event) {
+                updateConcurrently();
+            }
+
+            private void updateConcurrently() {
+                if (updateOnce.getAndSet(false)) {
+                    Customer changed = new Customer(customer);
+                    changed.setLastname("Changed");
+                    try {
+                        executor.submit(() -> writer.update(changed)).get(10, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        };
+        JpaHelper.getServerSession(factory).getDescriptor(Customer.class).getEventManager()
+                .addListener(updateWhileLoading);
+
+        try {
+            // when
+            Customer loaded = repository.read(customer.getId());
+
+            // then: read returns what it loaded, but does not cache it
+            assertFalse(updateOnce.get());
+            assertEquals("Lastname", loaded.getLastname());
+            assertEquals(0, cache.size());
+            assertEquals("Changed", other.read(customer.getId()).getLastname());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void conflictEvictsTheOutdatedCustomer() {
+        // given: changed by a repository without the shared cache
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+        repository.read(customer.getId());
+        Customer changed = new CustomerRepositoryJpa(factory).read(customer.getId());
+        changed.setLastname("Changed");
+        new CustomerRepositoryJpa(factory).update(changed);
+
+        // when
+        Customer outdated = repository.read(customer.getId());
+        outdated.setFirstname("Outdated");
+        assertThrows(OptimisticLockException.class, () -> repository.update(outdated));
+
+        // then
+        Customer current = repository.read(customer.getId());
+        assertEquals("Changed", current.getLastname());
+        assertEquals(2, current.getVersion());
+    }
+
+    @Test
+    public void batchOperationsInvalidateChangedCustomers() {
+        // given
+        Customer updated = initCustomer("Updated");
+        Customer deleted = initCustomer("Deleted");
+        repository.createAll(List.of(updated, deleted));
+        other.read(updated.getId());
+        other.read(deleted.getId());
+
+        // when
+        updated.setFirstname("Changed");
+        repository.updateAll(List.of(updated));
+        repository.deleteAll(List.of(deleted));
+
+        // then
+        assertEquals("Changed", other.read(updated.getId()).getFirstname());
+        assertNull(other.read(deleted.getId()));
+    }
+
+    //#endregion
+
+    //#region eviction
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        // given
+        LruCache<Integer, String> lru = new LruCache<>(2, 0);
+        lru.put(1, "one");
+        lru.put(2, "two");
+        lru.get(1);
+
+        // when
+        lru.put(3, "three");
+
+        // then
+        assertEquals("one", lru.get(1));
+        assertNull(lru.get(2));
+        assertEquals("three", lru.get(3));
+        assertEquals(1, lru.getEvictions());
+        assertEquals(2, lru.size());
+    }
+
+    @Test
+    public void entryExpiresAfterTimeToLive() {
+        // given
+        AtomicLong now = new AtomicLong();
+        LruCache<Integer, String> ttl = new LruCache<>(10, 1_000, now::get);
+        ttl.put(1, "one");
+
+        // when
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        String beforeExpiry = ttl.get(1);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        String afterExpiry = ttl.get(1);
+
+        // then
+        assertEquals("one", beforeExpiry);
+        assertNull(afterExpiry);
+        assertEquals(1, ttl.getExpirations());
+        assertEquals(0, ttl.size());
+    }
+
+    @Test
+    public void repositoryCacheIsBoundedBySize() {
+        // given
+        LruCache<Integer, Customer> small = new LruCache<>(3, 0);
+        CustomerRepositoryJpa bounded = new CustomerRepositoryJpa(factory, small);
+        for (int i = 0; i < 5; i++) {
+            Customer customer = initCustomer("Lastname" + i);
+            bounded.create(customer);
+            bounded.read(customer.getId());
+        }
+
+        // then
+        assertEquals(3, small.size());
+        assertEquals(2, small.getEvictions());
+    }
+
+    //#endregion
+
+    //#region query results
+
+    @Test
+    public void repeatedFinderCallIsServedFromQueryCache() {
+        // given
+        repository.createAll(List.of(initCustomer("Alpha"), initCustomer("Beta"), initCustomer("Gamma")));
+
+        // when
+        List<Customer> first = repository.findByAccountType(AccountType.BASIC);
+        List<Customer> second = other.findByAccountType(AccountType.BASIC);
+
+        // then
+        assertEquals(first, second);
+        assertEquals(3, second.size());
+        assertEquals(1, queryCache.getMisses());
+        assertEquals(1, queryCache.getHits());
+        assertEquals(1, queryCache.size());
+        assertEquals(3, queryCache.getCachedRows());
+    }
+
+    @Test
+    public void queryCacheIsKeyedByQueryAndParameter() {
+        // given
+        repository.createAll(List.of(initCustomer("Alpha"), initCustomer("Beta")));
+
+        // when
+        repository.findByLastname("alp");
+        repository.findByLastname("bet");
+        repository.findByAccountType(AccountType.BASIC);
+        repository.findByAccountType(AccountType.PREMIUM);
+        repository.findAllRegisteredAfter(LocalDate.of(2021, 1, 1));
+        repository.findByLastname("alp");
+
+        // then
+        assertEquals(5, queryCache.size());
+        assertEquals(1, queryCache.getHits());
+        // Alpha, Beta, both BASIC customers, none PREMIUM, both registered after
+        assertEquals(1 + 1 + 2 + 0 + 2, queryCache.getCachedRows());
+    }
+
+    @Test
+    public void changingFoundCustomerDoesNotChangeQueryCache() {
+        // given
+        repository.create(initCustomer("Alpha"));
+        repository.findByLastname("alp").get(0).setLastname("Changed");
+
+        // when
+        List<Customer> found = other.findByLastname("alp");
+
+        // then
+        assertEquals("Alpha", found.get(0).getLastname());
+    }
+
+    @Test
+    public void everyWriteInvalidatesQueryResults() {
+        // given
+        Customer alpha = initCustomer("Alpha");
+        repository.create(alpha);
+        assertEquals(1, other.findByAccountType(AccountType.BASIC).size());
+
+        // when / then: create
+        Customer beta = initCustomer("Beta");
+        repository.create(beta);
+        assertEquals(2, other.findByAccountType(AccountType.BASIC).size());
+
+        // update
+        Customer premium = repository.read(beta.getId());
+        premium.setAccountType(AccountType.PREMIUM);
+        repository.update(premium);
+        assertEquals(1, other.findByAccountType(AccountType.BASIC).size());
+
+        // delete
+        repository.delete(repository.read(alpha.getId()));
+        assertEquals(0, other.findByAccountType(AccountType.BASIC).size());
+
+        // batch operations
+        repository.createAll(List.of(initCustomer("Gamma"), initCustomer("Delta")));
+        List<Customer> created = other.findByAccountType(AccountType.BASIC);
+        assertEquals(2, created.size());
+        repository.deleteAll(created);
+        assertEquals(0, other.findByAccountType(AccountType.BASIC).size());
+        assertEquals(0, queryCache.getHits());
+    }
+
+    //#endregion
+}
@@ -0,0 +1,223 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CustomerRepositoryConcurrencySpec {
+
+    //#region test data
+    private static Customer initCustomer(String lastname) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname");
+        customer.setLastname(lastname);
+        customer.setAccountType(AccountType.BASIC);
+        customer.setRegisteredSince(LocalDate.of(2021, 10, 1));
+        return customer;
+    }
+    //#endregion
+
+    //#region setup / tear down
+    private EntityManagerFactory factory;
+    private CustomerRepositoryJpa repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        repository = CustomerRepositoryJpa.perOperation(factory);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+    //#endregion
+
+    //#region per-operation mode
+
+    @Test
+    public void perOperationRepositoryCreatesReadsUpdatesAndDeletes() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+
+        // when
+        Customer fromDb = repository.read(customer.getId());
+        fromDb.setLastname("Changed");
+        Customer updated = repository.update(fromDb);
+
+        // then
+        assertEquals("Changed", updated.getLastname());
+        assertEquals("Changed", repository.read(customer.getId()).getLastname());
+        assertEquals(1, repository.findByLastname("chang").size());
+
+        // and when
+        repository.delete(repository.read(customer.getId()));
+
+        // then
+        assertNull(repository.read(customer.getId()));
+    }
+
+    @Test
+    public void changingReadCustomerWithoutUpdateDoesNotChangeTheNextRead() {
+        // given
+        Customer customer = initCustomer("Lastname");
+        repository.create(customer);
+
+        // when: the customer is detached, there is no persistence context that keeps it
+        repository.read(customer.getId()).setLastname("Changed");
+
+        // then
+        assertEquals("Lastname", repository.read(customer.getId()).getLastname());
+    }
+
+    @Test
+    public void perOperationRepositoryCanBeSharedByThreads() throws Exception {
+        // given
+        int threads = 8;
+        int customersPerThread = 25;
+        CustomerRepositoryJpa shared = CustomerRepositoryJpa.perOperation(
+                factory, new LruCache<>(100, 0), new QueryResultCache(10, 0));
+
+        // when
+        List<List<Integer>> ids = runConcurrently(threads, thread -> {
+            List<Integer> created = new ArrayList<>();
+            for (int i = 0; i < customersPerThread; i++) {
+                Customer customer = initCustomer("Thread" + thread);
+                shared.create(customer);
+                Customer fromDb = shared.read(customer.getId());
+                fromDb.setFirstname("Changed");
+                shared.update(fromDb);
+                created.add(customer.getId());
+            }
+            return created;
+        });
+
+        // then
+        for (int thread = 0; thread < threads; thread++) {
+            for (Integer id : ids.get(thread)) {
+                Customer customer = shared.read(id);
+                assertEquals("Thread" + thread, customer.getLastname());
+                assertEquals("Changed", customer.getFirstname());
+            }
+            assertEquals(customersPerThread, shared.findByLastname("Thread" + thread).size());
+        }
+    }
+
+    //#endregion
+
+    //#region throughput
+
+    /**
+     * Create, read and update from 1 to twice as many threads as there are cores,
+     * all threads share one repository in per-operation mode.
+     */
+    @Test
+    @Tag("benchmark")
+    public void throughputScalingWithPerOperationEntityManagers() throws Exception {
+        int keys = 1_000;
+        int operationsPerThread = Integer.getInteger("benchmark.operations", 5_000);
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Customer> initial = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            initial.add(initCustomer("Lastname" + i));
+        }
+        repository.createAll(initial);
+        List<Integer> ids = new ArrayList<>();
+        initial.forEach(customer -> ids.add(customer.getId()));
+
+        // warm up, the first measurement should not pay for class loading and JIT
+        measureThroughput(1, ids, operationsPerThread);
+        double single = 0;
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            double ops = measureThroughput(threads, ids, operationsPerThread);
+            if (threads == 1) {
+                single = ops;
+            }
+            System.out.printf("threads: %2d (%d cores)  %,8.0f ops/s  (x%.1f)%n", threads, cores, ops, ops / single);
+        }
+    }
+
+    /**
+     * 10% creates, 70% reads, 20% updates, returns operations per second.
+     */
+    private double measureThroughput(int threads, List<Integer> ids, int operationsPerThread) throws Exception {
+        long start = System.nanoTime();
+        runConcurrently(threads, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < operationsPerThread; i++) {
+                int operation = random.nextInt(10);
+                if (operation == 0) {
+                    repository.create(initCustomer("Created"));
+                } else if (operation < 8) {
+                    repository.read(ids.get(random.nextInt(ids.size())));
+                } else {
+                    Customer customer = repository.read(ids.get(random.nextInt(ids.size())));
+                    customer.setFirstname("Changed" + i);
+                    try {
+                        repository.update(customer);
+                    } catch (OptimisticLockException e) {
+                        // another thread updated the customer in between, counts as an operation
+                    }
+                }
+            }
+            return null;
+        });
+        long elapsed = System.nanoTime() - start;
+        return (double) threads * operationsPerThread / elapsed * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    //#endregion
+
+    //#region helpers
+
+    private interface Worker<T> {
+        T run(int thread) throws Exception;
+    }
+
+    /**
+     * Starts all threads at the same time, returns the results by thread and rethrows failures.
+     */
+    private static <T> List<T> runConcurrently(int threads, Worker<T> worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return worker.run(thread);
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(5, TimeUnit.MINUTES));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    //#endregion
+}
@@ -6,6 +6,7 @@ import org.junit.jupiter.api.Test;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.Persistence;
 
 import java.time.LocalDate;
@@ -255,4 +256,203 @@ public class CustomerRepositoryCrudSpec {
     }
 
     //#endregion
+
+    //#region round trips
+
+    @Test
+    public void updateIsOneStatementPerOperation() {
+        //given
+        CustomerRepository repository = CustomerRepositoryJpa.perOperation(factory);
+        Customer existing = initDefaultCustomer();
+        manager.getTransaction().begin();
+        manager.persist(existing);
+        manager.getTransaction().commit();
+        StatementCounter statements = StatementCounter.install(factory);
+
+        //when
+        existing.setFirstname("changedFirstname");
+        repository.update(existing);
+
+        //then
+        assertEquals(1, statements.count(), statements.statements().toString());
+    }
+
+    @Test
+    public void deleteIsOneStatementPerOperation() {
+        //given
+        CustomerRepository repository = CustomerRepositoryJpa.perOperation(factory);
+        Customer existing = initDefaultCustomer();
+        manager.getTransaction().begin();
+        manager.persist(existing);
+        manager.getTransaction().commit();
+        StatementCounter statements = StatementCounter.install(factory);
+
+        //when
+        repository.delete(existing);
+
+        //then
+        assertEquals(1, statements.count(), statements.statements().toString());
+    }
+
+    @Test
+    public void updateAndDeleteOfDeletedCustomerThrowAfterOneStatementEachPerOperation() {
+        //given
+        CustomerRepository repository = CustomerRepositoryJpa.perOperation(factory);
+        Customer deleted = initDefaultCustomer();
+        manager.getTransaction().begin();
+        manager.persist(deleted);
+        manager.remove(deleted);
+        manager.getTransaction().commit();
+        StatementCounter statements = StatementCounter.install(factory);
+
+        //when / then
+        assertThrows(IllegalArgumentException.class, () -> repository.update(deleted));
+        assertThrows(IllegalArgumentException.class, () -> repository.delete(deleted));
+        assertEquals(2, statements.count(), statements.statements().toString());
+    }
+
+    @Test
+    public void readAfterUpdateReturnsTheNewState() {
+        //given
+        Customer existing = initDefaultCustomer();
+        repository.create(existing);
+        // now in the persistence context of the repository
+        Customer read = repository.read(existing.getId());
+
+        //when
+        Customer changed = new Customer(read);
+        changed.setLastname("changedLastname");
+        repository.update(changed);
+
+        //then
+        assertEquals("changedLastname", repository.read(existing.getId()).getLastname());
+        assertEquals(1, repository.findByLastname("changedLast").size());
+    }
+
+    @Test
+    public void updateReturnsTheManagedCustomerWhoseLaterChangesAreWritten() {
+        //given
+        Customer existing = initDefaultCustomer();
+        repository.create(existing);
+        Customer changed = new Customer(existing);
+        changed.setFirstname("changedFirstname");
+
+        //when
+        Customer updated = repository.update(changed);
+        updated.setLastname("changedLastname");
+        repository.create(initDefaultCustomer());
+
+        //then: the given customer stays as it is, the managed one is written with the next transaction
+        assertSame(existing, updated);
+        assertEquals(1, changed.getVersion());
+        Customer fromDb = manager.find(Customer.class, existing.getId());
+        assertEquals("changedFirstname", fromDb.getFirstname());
+        assertEquals("changedLastname", fromDb.getLastname());
+    }
+
+    @Test
+    public void updateAndDeleteKeepOtherCustomersManaged() {
+        //given: two customers in the persistence context of the repository
+        Customer first = initDefaultCustomer();
+        Customer second = initDefaultCustomer();
+        repository.create(first);
+        repository.create(second);
+        Customer managed = repository.read(second.getId());
+
+        //when
+        Customer changed = new Customer(repository.read(first.getId()));
+        changed.setLastname("changedLastname");
+        repository.update(changed);
+
+        //then: the same instance as before, the updated customer is read again
+        assertSame(managed, repository.read(second.getId()));
+        assertEquals("changedLastname", repository.read(first.getId()).getLastname());
+
+        //and when
+        repository.delete(repository.read(first.getId()));
+
+        //then
+        assertSame(managed, repository.read(second.getId()));
+        assertNull(repository.read(first.getId()));
+    }
+
+    //#endregion
+
+    //#region optimistic locking
+
+    @Test
+    public void createAndUpdateSetTheVersion() {
+        //given
+        Customer customer = initDefaultCustomer();
+
+        //when
+        repository.create(customer);
+        Integer created = customer.getVersion();
+        customer.setFirstname("changedFirstname");
+        repository.update(customer);
+
+        //then
+        assertEquals(1, created);
+        assertEquals(2, customer.getVersion());
+        assertEquals(2, manager.find(Customer.class, customer.getId()).getVersion());
+    }
+
+    @Test
+    public void updateOrDeleteOfOutdatedCustomerThrowsOptimisticLockException() {
+        //given
+        Customer customer = initDefaultCustomer();
+        repository.create(customer);
+        Customer first = new Customer(repository.read(customer.getId()));
+        Customer second = new Customer(repository.read(customer.getId()));
+        first.setFirstname("first");
+        repository.update(first);
+
+        //when
+        second.setFirstname("second");
+        OptimisticLockException e = assertThrows(OptimisticLockException.class, () -> repository.update(second));
+
+        //then
+        assertSame(second, e.getEntity());
+        assertThrows(OptimisticLockException.class, () -> repository.delete(second));
+        Customer fromDb = repository.read(customer.getId());
+        assertEquals("first", fromDb.getFirstname());
+        assertEquals(2, fromDb.getVersion());
+    }
+
+    @Test
+    public void updateOfDeletedCustomerWithVersionThrowsIllegalArgumentException() {
+        //given
+        Customer customer = initDefaultCustomer();
+        repository.create(customer);
+        Customer outdated = new Customer(customer);
+        repository.delete(customer);
+
+        //when / then
+        assertThrows(IllegalArgumentException.class, () -> repository.update(outdated));
+        assertThrows(IllegalArgumentException.class, () -> repository.delete(outdated));
+    }
+
+    @Test
+    public void customerWithoutVersionOverwrites() {
+        //given
+        Customer customer = initDefaultCustomer();
+        repository.create(customer);
+        Customer changed = new Customer(customer);
+        changed.setFirstname("changed");
+        repository.update(changed);
+
+        //when
+        Customer blind = new Customer(customer);
+        blind.setVersion(null);
+        blind.setFirstname("blind");
+        repository.update(blind);
+
+        //then
+        Customer fromDb = repository.read(customer.getId());
+        assertEquals("blind", fromDb.getFirstname());
+        assertEquals(3, fromDb.getVersion());
+        assertNull(blind.getVersion());
+    }
+
+    //#endregion
 }
@@ -0,0 +1,190 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CustomerRepositoryIndexSpec {
+
+    private static final String[] INDEXES = {
+            "IDX_CUSTOMER_REGISTERED_ID",
+            "IDX_CUSTOMER_LASTNAME_ID",
+            "IDX_CUSTOMER_LASTNAME_NORMALIZED",
+            "IDX_CUSTOMER_ACCOUNT_TYPE"
+    };
+
+    private EntityManagerFactory factory;
+    private EntityManager manager;
+    private CustomerRepositoryJpa repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        manager = factory.createEntityManager();
+        repository = new CustomerRepositoryJpa(factory);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (manager.isOpen()) {
+            manager.close();
+        }
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> indexNames() {
+        return manager.createNativeQuery(
+                "SELECT c.CONGLOMERATENAME FROM SYS.SYSCONGLOMERATES c " +
+                        "JOIN SYS.SYSTABLES t ON c.TABLEID = t.TABLEID " +
+                        "WHERE t.TABLENAME = 'CUSTOMER' AND c.ISINDEX")
+                .getResultList();
+    }
+
+    @Test
+    public void schemaGenerationCreatesIndexesForTheQueryPaths() {
+        //when
+        List<Object> indexes = indexNames();
+
+        //then
+        assertThat(indexes, hasItems((Object[]) INDEXES));
+    }
+
+    //#region benchmark
+
+    /**
+     * 1% PREMIUM customers and 1% registered in the last 70 days, so an index can skip 99% of the rows.
+     */
+    private static Customer customer(int number) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname" + number);
+        customer.setLastname("Lastname" + number % 1_000);
+        customer.setAccountType(number % 100 == 0 ? AccountType.PREMIUM : AccountType.BASIC);
+        customer.setRegisteredSince(LocalDate.of(2000, 1, 1).plusDays(number % 7_000));
+        return customer;
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void queryLatencyWithAndWithoutIndexes() {
+        int count = Integer.getInteger("benchmark.customers", 1_000_000);
+        List<Customer> chunk = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chunk.add(customer(i));
+            if (chunk.size() == 10_000) {
+                repository.createAll(chunk);
+                chunk.clear();
+            }
+        }
+        repository.createAll(chunk);
+        // Derby only uses an index if its statistics say it is selective
+        execute("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', 'CUSTOMER', NULL)");
+
+        // warm up, the first measurement should not pay for class loading and JIT
+        measureQueries();
+        double[] indexed = measureQueries();
+        for (String index : INDEXES) {
+            execute("DROP INDEX " + index);
+        }
+        double[] scanned = measureQueries();
+
+        String[] queries = {"findByAccountType(PREMIUM)", "findAllRegisteredAfter", "getAllCustomers, first 100"};
+        for (int i = 0; i < queries.length; i++) {
+            System.out.printf("%,d customers, %-28s with indexes %8.2f ms  without %8.2f ms%n",
+                    count, queries[i], indexed[i], scanned[i]);
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void lastnameSearchWithTrigramIndexAndLikeScan() {
+        int count = Integer.getInteger("benchmark.customers", 1_000_000);
+        // random lastnames of 6 to 10 letters, a part of 4 letters is in a few of them only
+        Random random = new Random(42);
+        List<String> searches = new ArrayList<>();
+        List<Customer> chunk = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder lastname = new StringBuilder();
+            int length = 6 + random.nextInt(5);
+            for (int letter = 0; letter < length; letter++) {
+                lastname.append((char) ('a' + random.nextInt(26)));
+            }
+            Customer customer = customer(i);
+            customer.setLastname(Character.toUpperCase(lastname.charAt(0)) + lastname.substring(1));
+            chunk.add(customer);
+            if (i % (count / 5) == 0) {
+                searches.add(lastname.substring(2, 6).toUpperCase());
+            }
+            if (chunk.size() == 10_000) {
+                repository.createAll(chunk);
+                chunk.clear();
+            }
+        }
+        repository.createAll(chunk);
+
+        long start = System.nanoTime();
+        repository.findByLastname("warm");
+        System.out.printf("%,d customers, trigram index built in %,d ms%n",
+                count, (System.nanoTime() - start) / 1_000_000);
+
+        for (String search : searches) {
+            double trigram = averageMillis(fresh -> fresh.findByLastname(search));
+            double scan = averageMillis(fresh -> manager.createNamedQuery("Customer.findByLastnamePart", Customer.class)
+                    .setParameter("lastnamePart", "%" + Customer.normalize(search) + "%")
+                    .getResultList());
+            System.out.printf("%,d customers, findByLastname(%s): %d found, trigram index %8.2f ms  LIKE scan %8.2f ms%n",
+                    count, search, repository.findByLastname(search).size(), trigram, scan);
+        }
+    }
+
+    private double[] measureQueries() {
+        LocalDate lastSeventyDays = LocalDate.of(2000, 1, 1).plusDays(7_000 - 70);
+        return new double[]{
+                averageMillis(fresh -> fresh.findByAccountType(AccountType.PREMIUM)),
+                averageMillis(fresh -> fresh.findAllRegisteredAfter(lastSeventyDays)),
+                averageMillis(fresh -> manager.createQuery(
+                        "SELECT c FROM Customer c ORDER BY c.registeredSince", Customer.class)
+                        .setMaxResults(100)
+                        .getResultList())
+        };
+    }
+
+    private void execute(String sql) {
+        manager.getTransaction().begin();
+        manager.createNativeQuery(sql).executeUpdate();
+        manager.getTransaction().commit();
+    }
+
+    /**
+     * Every repetition gets a new repository, so no run finds the customers of the one before in its persistence context.
+     */
+    private double averageMillis(Function<CustomerRepository, List<Customer>> query) {
+        int repetitions = 10;
+        long elapsed = 0;
+        for (int i = 0; i < repetitions; i++) {
+            CustomerRepository fresh = new CustomerRepositoryJpa(factory);
+            manager.clear();
+            long start = System.nanoTime();
+            query.apply(fresh);
+            elapsed += System.nanoTime() - start;
+        }
+        return elapsed / 1_000_000.0 / repetitions;
+    }
+
+    //#endregion
+}
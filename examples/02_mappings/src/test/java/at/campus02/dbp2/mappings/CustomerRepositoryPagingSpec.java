@@ -0,0 +1,233 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CustomerRepositoryPagingSpec {
+
+    private EntityManagerFactory factory;
+    private EntityManager manager;
+    private CustomerRepositoryJpa repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        manager = factory.createEntityManager();
+        repository = new CustomerRepositoryJpa(factory);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (manager.isOpen()) {
+            manager.close();
+        }
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+
+    private static Customer customer(String lastname, LocalDate registeredSince) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname");
+        customer.setLastname(lastname);
+        customer.setAccountType(AccountType.BASIC);
+        customer.setRegisteredSince(registeredSince);
+        return customer;
+    }
+
+    /**
+     * Several customers share a registration date or a lastname, some have no registration date.
+     */
+    private void setupTestdata() {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            customers.add(customer("Berger", LocalDate.of(2021, 1, 1 + i % 3)));
+            customers.add(customer("Bergmann" + i % 4, LocalDate.of(2021, 2, 1 + i % 5)));
+            customers.add(customer("Huber", i % 4 == 0 ? null : LocalDate.of(2021, 3, 1)));
+        }
+        repository.createAll(customers);
+    }
+
+    private static List<Customer> readAllPages(Function<String, Page<Customer>> query) {
+        List<Customer> all = new ArrayList<>();
+        String token = null;
+        do {
+            Page<Customer> page = query.apply(token);
+            all.addAll(page.getContent());
+            token = page.getContinuationToken();
+        } while (token != null);
+        return all;
+    }
+
+    private static List<Integer> ids(List<Customer> customers) {
+        List<Integer> ids = new ArrayList<>();
+        customers.forEach(customer -> ids.add(customer.getId()));
+        return ids;
+    }
+
+    @Test
+    public void pagingThroughAllCustomersReturnsEveryCustomerOnceSortedByRegistrationDate() {
+        //given
+        setupTestdata();
+
+        //when
+        List<Customer> paged = readAllPages(token -> repository.getAllCustomers(token, 4));
+
+        //then
+        List<Customer> expected = repository.getAllCustomers();
+        assertThat(paged.size(), is(30));
+        assertThat(paged, containsInAnyOrder(expected.toArray()));
+        for (int i = 1; i < paged.size(); i++) {
+            LocalDate previous = paged.get(i - 1).getRegisteredSince();
+            LocalDate current = paged.get(i).getRegisteredSince();
+            // customers without registration date come last
+            assertThat(previous == null && current != null, is(false));
+            if (previous != null && current != null) {
+                assertThat(previous, lessThanOrEqualTo(current));
+            }
+        }
+    }
+
+    @Test
+    public void pageSizeOneWorksAcrossEqualSortKeys() {
+        //given
+        setupTestdata();
+
+        //when
+        List<Customer> paged = readAllPages(token -> repository.getAllCustomers(token, 1));
+
+        //then
+        assertThat(ids(paged), containsInAnyOrder(ids(repository.getAllCustomers()).toArray()));
+    }
+
+    @Test
+    public void pagingFindByLastnameReturnsTheSameCustomersInTheSameOrder() {
+        //given
+        setupTestdata();
+
+        //when
+        List<Customer> paged = readAllPages(token -> repository.findByLastname("eRg", token, 3));
+
+        //then
+        List<Customer> expected = repository.findByLastname("eRg");
+        assertThat(paged.size(), is(20));
+        assertThat(paged, containsInAnyOrder(expected.toArray()));
+        for (int i = 1; i < paged.size(); i++) {
+            assertThat(paged.get(i - 1).getLastname(), lessThanOrEqualTo(paged.get(i).getLastname()));
+        }
+    }
+
+    @Test
+    public void lastPageHasNoContinuationToken() {
+        //given
+        setupTestdata();
+
+        //when
+        Page<Customer> page = repository.getAllCustomers(null, 30);
+
+        //then
+        assertThat(page.getContent().size(), is(30));
+        assertThat(page.hasNext(), is(false));
+        assertThat(page.getContinuationToken(), is(nullValue()));
+    }
+
+    @Test
+    public void pagingOnEmptyDatabaseReturnsEmptyPage() {
+        //when
+        Page<Customer> page = repository.getAllCustomers(null, 10);
+
+        //then
+        assertThat(page.getContent(), is(empty()));
+        assertThat(page.hasNext(), is(false));
+    }
+
+    @Test
+    public void findByLastnameWithNullOrEmptyStringReturnsEmptyPage() {
+        //given
+        setupTestdata();
+
+        //when / then
+        assertThat(repository.findByLastname(null, null, 10).getContent(), is(empty()));
+        assertThat(repository.findByLastname("", null, 10).getContent(), is(empty()));
+    }
+
+    @Test
+    public void invalidTokenOrPageSizeThrowsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> repository.getAllCustomers("not a token", 10));
+        assertThrows(IllegalArgumentException.class, () -> repository.findByLastname("er", "bm90OmEgdG9rZW4", 10));
+        assertThrows(IllegalArgumentException.class, () -> repository.getAllCustomers(null, 0));
+    }
+
+    //#region benchmark
+
+    @Test
+    @Tag("benchmark")
+    public void latencyPerPageWithKeysetAndOffsetPaging() {
+        int count = Integer.getInteger("benchmark.customers", 200_000);
+        int pageSize = 50;
+        List<Customer> chunk = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chunk.add(customer("Lastname" + i % 1_000, LocalDate.of(2000, 1, 1).plusDays(i % 7_000)));
+            if (chunk.size() == 10_000) {
+                repository.createAll(chunk);
+                chunk.clear();
+            }
+        }
+        repository.createAll(chunk);
+
+        // walk through all pages once and remember the tokens at a few depths
+        int pages = (count + pageSize - 1) / pageSize;
+        int[] depths = {0, pages / 10, pages / 4, pages / 2, pages - 1};
+        String[] tokens = new String[depths.length];
+        String token = null;
+        for (int page = 0, next = 0; page < pages && next < depths.length; page++) {
+            if (page == depths[next]) {
+                tokens[next++] = token;
+            }
+            token = repository.getAllCustomers(token, pageSize).getContinuationToken();
+            manager.clear();
+        }
+
+        int repetitions = 20;
+        for (int i = 0; i < depths.length; i++) {
+            String pageToken = tokens[i];
+            double keyset = averageMillis(repetitions, () -> repository.getAllCustomers(pageToken, pageSize));
+            int firstResult = depths[i] * pageSize;
+            double offset = averageMillis(repetitions, () -> manager.createQuery(
+                    "SELECT c FROM Customer c ORDER BY c.registeredSince, c.id", Customer.class)
+                    .setFirstResult(firstResult)
+                    .setMaxResults(pageSize)
+                    .getResultList());
+            System.out.printf("%,d customers, page %,6d: keyset %7.2f ms  offset %8.2f ms%n",
+                    count, depths[i] + 1, keyset, offset);
+        }
+    }
+
+    private double averageMillis(int repetitions, Runnable query) {
+        // warm up
+        query.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            query.run();
+        }
+        double millis = (System.nanoTime() - start) / 1_000_000.0 / repetitions;
+        manager.clear();
+        return millis;
+    }
+
+    //#endregion
+}
@@ -7,14 +7,18 @@ import org.junit.jupiter.api.Test;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.Persistence;
 import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CustomerRepositoryQuerySpec {
@@ -237,4 +241,254 @@ public class CustomerRepositoryQuerySpec {
     }
     //#endregion
 
+    //#region lastname search
+
+    /**
+     * The query findByLastname used before the trigram index and the normalized column.
+     */
+    private List<Customer> findByLastnameWithLowerLike(String lastnamePart) {
+        return manager.createQuery(
+                "SELECT c FROM Customer c " +
+                        "WHERE LOWER(c.lastname) LIKE LOWER(:lastnamePart) " +
+                        "ORDER BY c.lastname, c.id",
+                Customer.class)
+                .setParameter("lastnamePart", "%" + lastnamePart + "%")
+                .getResultList();
+    }
+
+    private static final List<String> SEARCHES = Arrays.asList(
+            "a", "ER", "orn", "eBEr", "andl", "hornbacher", "Hornbachers", "abcd", "bcx", "xyz",
+            "b%r", "_er", "e_e", "er%");
+
+    private void assertSameAsLowerLike() {
+        for (String search : SEARCHES) {
+            assertThat(search, repository.findByLastname(search), is(findByLastnameWithLowerLike(search)));
+        }
+    }
+
+    @Test
+    public void findByLastnameReturnsTheSameAsTheLowerLikeQuery() {
+        //given: abc and bcd are both in Abcxbcd, but abcd is not
+        setupCommonTestdata();
+        Customer trigramsOnly = new Customer();
+        trigramsOnly.setLastname("Abcxbcd");
+        trigramsOnly.setAccountType(AccountType.BASIC);
+        repository.create(trigramsOnly);
+
+        //when / then
+        assertSameAsLowerLike();
+        assertThat(repository.findByLastname("abcd"), is(empty()));
+    }
+
+    @Test
+    public void findByLastnameSeesChangesAfterTheFirstSearch() {
+        //given
+        setupCommonTestdata();
+        assertSameAsLowerLike();
+
+        //when: changes through the repository and directly through an entity manager
+        Customer created = new Customer();
+        created.setLastname("Bcxorn");
+        created.setAccountType(AccountType.PREMIUM);
+        repository.create(created);
+
+        Customer renamed = repository.read(customer1.getId());
+        renamed.setLastname("Oberhornbacher");
+        repository.update(renamed);
+
+        repository.delete(repository.read(customer4.getId()));
+
+        Customer persisted = new Customer();
+        persisted.setLastname("ABCD");
+        persisted.setAccountType(AccountType.BASIC);
+        manager.getTransaction().begin();
+        manager.persist(persisted);
+        manager.getTransaction().commit();
+        manager.clear();
+
+        //then
+        assertSameAsLowerLike();
+        assertThat(repository.findByLastname("aarhus"), is(empty()));
+        assertThat(repository.findByLastname("ORNBACH").size(), is(2));
+    }
+
+    private List<Integer> trigramCandidates(String normalized) {
+        return TrigramIndex.of(factory).candidates(factory, normalized, 1_000);
+    }
+
+    @Test
+    public void oldLastnamesAndDeletedCustomersLeaveTheTrigramIndexAfterCommit() {
+        //given
+        setupCommonTestdata();
+        assertThat(trigramCandidates("aarhus"), contains(customer1.getId()));
+        EntityManager other = factory.createEntityManager();
+
+        //when: renamed and deleted through the repository and through another entity manager
+        Customer renamed = repository.read(customer1.getId());
+        renamed.setLastname("Zeller");
+        repository.update(renamed);
+
+        other.getTransaction().begin();
+        other.find(Customer.class, customer2.getId()).setLastname("Zimmer");
+        other.remove(other.find(Customer.class, customer3.getId()));
+        other.getTransaction().commit();
+        other.close();
+
+        repository.delete(repository.read(customer4.getId()));
+        repository.deleteAll(List.of(repository.read(customer5.getId())));
+
+        //then
+        assertThat(trigramCandidates("aarhus"), is(empty()));
+        assertThat(trigramCandidates("brandtner"), is(empty()));
+        assertThat(trigramCandidates("chandler"), is(empty()));
+        assertThat(trigramCandidates("dornacher"), is(empty()));
+        assertThat(trigramCandidates("eberhard"), is(empty()));
+        assertThat(trigramCandidates("zeller"), contains(customer1.getId()));
+        assertThat(trigramCandidates("zimmer"), contains(customer2.getId()));
+        // trigrams the old and the new lastname share stay
+        assertThat(trigramCandidates("ebe"), contains(customer6.getId()));
+    }
+
+    @Test
+    public void rolledBackRenameLeavesTheTrigramIndexAsItWas() {
+        //given
+        setupCommonTestdata();
+        assertThat(trigramCandidates("aarhus"), contains(customer1.getId()));
+        EntityManager other = factory.createEntityManager();
+
+        //when: the new lastname is flushed, but not committed
+        other.getTransaction().begin();
+        other.find(Customer.class, customer1.getId()).setLastname("Zeller");
+        other.flush();
+        other.getTransaction().rollback();
+        other.close();
+
+        //then
+        assertThat(trigramCandidates("aarhus"), contains(customer1.getId()));
+        assertThat(trigramCandidates("zeller"), is(empty()));
+    }
+
+    @Test
+    public void failedUpdateDoesNotChangeTheTrigramIndex() {
+        //given: customer1 was changed by someone else since it was read
+        setupCommonTestdata();
+        assertThat(trigramCandidates("aarhus"), contains(customer1.getId()));
+        Customer stale = repository.read(customer1.getId());
+        EntityManager other = factory.createEntityManager();
+        other.getTransaction().begin();
+        other.find(Customer.class, customer1.getId()).setFirstname("Alberta");
+        other.getTransaction().commit();
+        other.close();
+
+        //when
+        stale.setLastname("Zeller");
+        assertThrows(OptimisticLockException.class, () -> repository.update(stale));
+
+        //then
+        assertThat(trigramCandidates("aarhus"), contains(customer1.getId()));
+        assertThat(trigramCandidates("zeller"), is(empty()));
+    }
+
+    @Test
+    public void findByLastnameStartingWithIsCaseInsensitiveAndSorted() {
+        //given
+        setupCommonTestdata();
+
+        //when / then
+        assertThat(repository.findByLastnameStartingWith("eBEr"), contains(customer5, customer6));
+        assertThat(repository.findByLastnameStartingWith("Hornbacher"), contains(customer7));
+        assertThat(repository.findByLastnameStartingWith("orn"), is(empty()));
+        assertThat(repository.findByLastnameStartingWith(""), is(empty()));
+        assertThat(repository.findByLastnameStartingWith(null), is(empty()));
+    }
+
+    @Test
+    public void findByLastnameStartingWithTakesWildcardsLiterally() {
+        //given
+        setupCommonTestdata();
+        Customer percent = new Customer();
+        percent.setLastname("50%_Rabatt");
+        percent.setAccountType(AccountType.BASIC);
+        repository.create(percent);
+
+        //when / then
+        assertThat(repository.findByLastnameStartingWith("%"), is(empty()));
+        assertThat(repository.findByLastnameStartingWith("_"), is(empty()));
+        assertThat(repository.findByLastnameStartingWith("50%_r"), contains(percent));
+    }
+
+    //#endregion
+
+    //#region streaming
+
+    private static List<Customer> collect(Stream<Customer> stream) {
+        try (Stream<Customer> closing = stream) {
+            return closing.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void streamAllCustomersReturnsAllCustomersSortedByRegistrationDate() {
+        //given
+        setupCommonTestdata();
+
+        //when
+        List<Customer> streamed = collect(repository.streamAllCustomers());
+
+        //then
+        assertThat(streamed, contains(customer1, customer2, customer3, customer4, customer5, customer6, customer7));
+    }
+
+    @Test
+    public void streamAllCustomersOnEmptyDatabaseReturnsEmptyStream() {
+        assertThat(collect(repository.streamAllCustomers()), is(empty()));
+    }
+
+    @Test
+    public void streamingFindersReturnTheSameAsTheListFinders() {
+        //given
+        setupCommonTestdata();
+
+        //when / then
+        assertThat(collect(repository.streamByLastname("orn")), contains(customer4, customer7));
+        assertThat(collect(repository.streamByLastname("eBEr")), contains(customer5, customer6));
+        assertThat(collect(repository.streamByLastname("")), is(empty()));
+        assertThat(collect(repository.streamByLastname(null)), is(empty()));
+        assertThat(collect(repository.streamByAccountType(AccountType.BASIC)),
+                containsInAnyOrder(customer1, customer4, customer6, customer7));
+        assertThat(collect(repository.streamByAccountType(null)), is(empty()));
+        assertThat(collect(repository.streamAllRegisteredAfter(LocalDate.of(2021, 4, 4))),
+                containsInAnyOrder(customer5, customer6, customer7));
+    }
+
+    @Test
+    public void streamSpanningSeveralPagesReturnsAllCustomersInOrder() {
+        //given
+        setupCommonTestdata();
+        ((CustomerRepositoryJpa) repository).setStreamPageSize(2);
+
+        //when
+        List<Customer> streamed = collect(repository.streamAllCustomers());
+
+        //then
+        assertThat(streamed, contains(customer1, customer2, customer3, customer4, customer5, customer6, customer7));
+    }
+
+    @Test
+    public void closingAStreamEarlyReleasesTheCursor() {
+        //given
+        setupCommonTestdata();
+
+        //when: many more streams than connections in the pool, each only partially read
+        for (int i = 0; i < 100; i++) {
+            try (Stream<Customer> stream = repository.streamAllCustomers()) {
+                assertThat(stream.findFirst().orElse(null), is(customer1));
+            }
+        }
+
+        //then: the repository still works
+        assertThat(repository.getAllCustomers().size(), is(7));
+    }
+
+    //#endregion
 }
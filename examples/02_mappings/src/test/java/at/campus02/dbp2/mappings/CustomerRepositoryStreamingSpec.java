@@ -0,0 +1,89 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Streams more customers than fit into the heap of the "memoryTest" task (-Xmx48m),
+ * which only works if the stream does not keep the rows it already handed out.
+ */
+@Tag("memory")
+public class CustomerRepositoryStreamingSpec {
+
+    private EntityManagerFactory factory;
+    private CustomerRepositoryJpa repository;
+
+    @BeforeEach
+    public void beforeEach() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        repository = new CustomerRepositoryJpa(factory);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (factory.isOpen()) {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void streamingALargeTableKeepsMemoryFlat() {
+        //given
+        int count = Integer.getInteger("benchmark.customers", 300_000);
+        insertCustomers(count);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        //when
+        long streamed = 0;
+        long maxUsed = 0;
+        LocalDate previous = LocalDate.MIN;
+        try (Stream<Customer> stream = repository.streamAllCustomers()) {
+            Iterator<Customer> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                Customer customer = iterator.next();
+                //then: still sorted
+                assertFalse(customer.getRegisteredSince().isBefore(previous));
+                previous = customer.getRegisteredSince();
+                if (++streamed % 50_000 == 0) {
+                    maxUsed = Math.max(maxUsed, runtime.totalMemory() - runtime.freeMemory());
+                }
+            }
+        }
+
+        //then
+        assertEquals(count, streamed);
+        System.out.printf("streamed %,d customers with max heap %,d MB, used before %,d MB, peak sampled %,d MB%n",
+                streamed, runtime.maxMemory() >> 20, usedBefore >> 20, maxUsed >> 20);
+    }
+
+    private void insertCustomers(int count) {
+        List<Customer> chunk = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Customer customer = new Customer();
+            customer.setFirstname("Firstname" + i);
+            customer.setLastname("Lastname" + i);
+            customer.setAccountType(i % 2 == 0 ? AccountType.BASIC : AccountType.PREMIUM);
+            customer.setRegisteredSince(LocalDate.of(2000, 1, 1).plusDays(i % 7_000));
+            chunk.add(customer);
+            if (chunk.size() == 10_000) {
+                repository.createAll(chunk);
+                chunk.clear();
+            }
+        }
+        repository.createAll(chunk);
+    }
+}
@@ -0,0 +1,198 @@
+package at.campus02.dbp2.mappings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdGenerationSpec {
+
+    //#region test data
+    private static Customer initCustomer(int number) {
+        Customer customer = new Customer();
+        customer.setFirstname("Firstname" + number);
+        customer.setLastname("Lastname" + number);
+        customer.setAccountType(AccountType.BASIC);
+        customer.setRegisteredSince(LocalDate.of(2021, 10, 1));
+        return customer;
+    }
+
+    private static List<Customer> initCustomers(int count) {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            customers.add(initCustomer(i));
+        }
+        return customers;
+    }
+    //#endregion
+
+    //#region setup / tear down
+    private final List<EntityManagerFactory> factories = new ArrayList<>();
+
+    /**
+     * The first factory creates the tables, every further one uses them like another JVM would.
+     */
+    private EntityManagerFactory factory(int blockSize) {
+        Map<String, String> properties = factories.isEmpty()
+                ? Map.of(IdBlockSize.PROPERTY, String.valueOf(blockSize))
+                : Map.of(IdBlockSize.PROPERTY, String.valueOf(blockSize), "eclipselink.ddl-generation", "none");
+        EntityManagerFactory factory = Persistence.createEntityManagerFactory("persistenceUnitName", properties);
+        factories.add(factory);
+        // deploys the persistence unit
+        factory.createEntityManager().close();
+        return factory;
+    }
+
+    @AfterEach
+    public void afterEach() {
+        for (EntityManagerFactory factory : factories) {
+            if (factory.isOpen()) {
+                factory.close();
+            }
+        }
+    }
+    //#endregion
+
+    //#region block size
+
+    @Test
+    public void idsAreReservedInBlocksOfTheConfiguredSize() {
+        // given
+        EntityManagerFactory factory = factory(7);
+        CustomerRepositoryJpa repository = new CustomerRepositoryJpa(factory);
+        StatementCounter statements = StatementCounter.install(factory);
+
+        // when
+        repository.createAll(initCustomers(20));
+
+        // then: 3 blocks for 20 ids
+        assertEquals(3, statements.statements().stream()
+                .filter(statement -> statement.startsWith("UPDATE ID_BLOCKS"))
+                .count(), statements.statements().toString());
+    }
+
+    @Test
+    public void blockSizeBelowOneIsRejected() {
+        assertThrows(PersistenceException.class, () -> factory(0));
+    }
+
+    @Test
+    public void factoriesWithDifferentBlockSizesNeverGetTheSameId() throws Exception {
+        // given
+        int customersPerFactory = 200;
+        List<CustomerRepositoryJpa> repositories = List.of(
+                CustomerRepositoryJpa.perOperation(factory(5)),
+                CustomerRepositoryJpa.perOperation(factory(3)),
+                CustomerRepositoryJpa.perOperation(factory(50)));
+
+        // when
+        List<List<Integer>> ids = runConcurrently(repositories.size(), thread -> {
+            List<Integer> created = new ArrayList<>();
+            for (Customer customer : initCustomers(customersPerFactory)) {
+                repositories.get(thread).create(customer);
+                created.add(customer.getId());
+            }
+            return created;
+        });
+
+        // then
+        Set<Integer> distinct = new HashSet<>();
+        ids.forEach(distinct::addAll);
+        assertEquals(repositories.size() * customersPerFactory, distinct.size());
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    /**
+     * Insert throughput by block size: createAll in one thread, and single creates from several
+     * threads that all need ids from the same row.
+     */
+    @Test
+    @Tag("benchmark")
+    public void insertThroughputByBlockSize() throws Exception {
+        int count = Integer.getInteger("benchmark.customers", 20_000);
+        int threads = 4;
+
+        for (int blockSize : new int[]{1, 10, 50, 500, 5_000}) {
+            EntityManagerFactory factory = factory(blockSize);
+            CustomerRepositoryJpa repository = CustomerRepositoryJpa.perOperation(factory);
+            // warm up, also the first block
+            repository.createAll(initCustomers(1_000));
+
+            long start = System.nanoTime();
+            repository.createAll(initCustomers(count));
+            double createAll = count / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+
+            List<List<Customer>> perThread = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                perThread.add(initCustomers(count / 10 / threads));
+            }
+            start = System.nanoTime();
+            runConcurrently(threads, thread -> {
+                perThread.get(thread).forEach(repository::create);
+                return null;
+            });
+            double creates = count / 10.0 / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+
+            System.out.printf("block size %,5d: createAll %,8.0f customers/s, create from %d threads %,6.0f customers/s%n",
+                    blockSize, createAll, threads, creates);
+            // the next factory creates the tables again
+            factory.close();
+            factories.clear();
+        }
+    }
+
+    //#endregion
+
+    //#region helpers
+
+    private interface Worker<T> {
+        T run(int thread) throws Exception;
+    }
+
+    /**
+     * Starts all threads at the same time, returns the results by thread and rethrows failures.
+     */
+    private static <T> List<T> runConcurrently(int threads, Worker<T> worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return worker.run(thread);
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(5, TimeUnit.MINUTES));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    //#endregion
+}
@@ -1,22 +1,33 @@
 package at.campus02.dbp2.relations;
 
 import javax.persistence.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.util.HashSet;
+import java.util.Set;
 
 @Entity
 public class Animal {
+    // ids are reserved in blocks (hi-lo) from the row "Animal" of ID_BLOCKS, see IdBlockSize
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "animalIds")
+    @TableGenerator(name = "animalIds", table = "ID_BLOCKS", pkColumnName = "ENTITY",
+            valueColumnName = "NEXT_ID", pkColumnValue = "Animal", allocationSize = 50)
     private Integer id;
     private String name;
-    @OneToOne
+    // lazy needs the woven class (see build.gradle), the owner is loaded when it is used first
+    @OneToOne(fetch = FetchType.LAZY)
     private Student owner;
     @ManyToOne
     private Species species;
-    @ManyToMany // or Transient
-    private final List<Country> countries = new ArrayList<>();
+    // a set: every link at most once, the primary key of the join table (both columns, created by EclipseLink)
+    // makes sure of it in the database. The key also serves lookups by animal, the index the ones by country
+    // (Country.animals); Derby would index the foreign key anyway, other databases do not.
+    // Not final, the woven class sets the field when it loads the animal
+    @ManyToMany
+    @JoinTable(name = "ANIMAL_COUNTRY",
+            joinColumns = @JoinColumn(name = "animals_ID", nullable = false),
+            inverseJoinColumns = @JoinColumn(name = "countries_NAME", nullable = false),
+            indexes = @Index(name = "ANIMAL_COUNTRY_COUNTRY", columnList = "countries_NAME"))
+    private Set<Country> countries = new HashSet<>();
 
     public Integer getId() {
         return id;
@@ -53,22 +64,26 @@ public class Animal {
         this.species = species;
     }
 
-    public List<Country> getCountries() {
+    public Set<Country> getCountries() {
         return countries;
     }
 
     // if you take student, endless loop
 
+    // the same row: the same id; before persist assigns it only the same object, two new animals
+    // with the same name are two animals
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Animal animal = (Animal) o;
-        return Objects.equals(id, animal.id) && Objects.equals(name, animal.name);
+        return id != null && id.equals(animal.id);
     }
 
+    // neither id nor name: persist assigns the id and setName changes the name while the animal
+    // is in the sets of its countries, it would get lost there
     @Override
     public int hashCode() {
-        return Objects.hash(id, name);
+        return getClass().hashCode();
     }
 }
@@ -0,0 +1,30 @@
+package at.campus02.dbp2.relations;
+
+/**
+ * An animal with the number of countries it lives in, counted by the database (see SummaryQueries).
+ * No entity: nothing of it is managed or cached, neither the animal nor its countries are loaded.
+ */
+public class AnimalSummary {
+
+    private final Integer id;
+    private final String name;
+    private final long countryCount;
+
+    public AnimalSummary(Integer id, String name, long countryCount) {
+        this.id = id;
+        this.name = name;
+        this.countryCount = countryCount;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCountryCount() {
+        return countryCount;
+    }
+}
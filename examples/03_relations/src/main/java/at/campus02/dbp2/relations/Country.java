@@ -4,8 +4,9 @@ import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
 
 @Entity
 public class Country {
@@ -19,7 +20,7 @@ public class Country {
     // if you dont have mappedBy countries, it makes two tables : animal_country and country_animal
     // mapped by countries : animal_country
     // mapped by animals : country_animal -> you can remove all the animal relations eg cat.getCountry in tests
-    private List<Animal> animals = new ArrayList<>();
+    private Set<Animal> animals = new HashSet<>();
 
     public Country(String name) {
         this.name = name;
@@ -32,7 +33,21 @@ public class Country {
         return name;
     }
 
-    public List<Animal> getAnimals() {
+    public Set<Animal> getAnimals() {
         return animals;
     }
+
+    // the name is the id, assigned by the constructor
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Country country = (Country) o;
+        return Objects.equals(name, country.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name);
+    }
 }
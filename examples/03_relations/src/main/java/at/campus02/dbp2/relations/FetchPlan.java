@@ -0,0 +1,50 @@
+package at.campus02.dbp2.relations;
+
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.Query;
+
+/**
+ * How a query of SpeciesRepository loads the relations it is asked for.
+ */
+public enum FetchPlan {
+
+    /**
+     * Only the queried entities, every relation is loaded when it is used first:
+     * one statement per species for its animals, per animal for its owner and its countries (N+1).
+     */
+    LAZY,
+
+    /**
+     * Everything in one statement with LEFT JOINs. The rows multiply (species x animals x countries),
+     * good for few entities with small collections. Derby joins the countries (join table + COUNTRY) with
+     * a nested loop over the whole join table per animal, which gets slow for many animals.
+     */
+    JOIN,
+
+    /**
+     * One statement per relation, for all loaded entities at once ({@code WHERE ... IN (...)} with their ids,
+     * split into chunks of 500 ids). Up to 500 entities per relation the number of statements does not depend
+     * on the number of entities.
+     */
+    BATCH;
+
+    void applyTo(Query query, String... paths) {
+        switch (this) {
+            case JOIN:
+                for (String path : paths) {
+                    query.setHint(QueryHints.LEFT_FETCH, path);
+                }
+                break;
+            case BATCH:
+                query.setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN);
+                for (String path : paths) {
+                    query.setHint(QueryHints.BATCH, path);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
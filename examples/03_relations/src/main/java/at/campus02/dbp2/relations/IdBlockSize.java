@@ -0,0 +1,35 @@
+package at.campus02.dbp2.relations;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.eclipse.persistence.sessions.Session;
+
+/**
+ * Sets the number of ids every table generator reserves with one UPDATE of its row (hi-lo):
+ * the property {@value #PROPERTY} of the persistence unit, e.g. as override of
+ * Persistence.createEntityManagerFactory. Without it the allocationSize of the annotations applies.
+ * <p>
+ * Reserving a block is {@code UPDATE ID_BLOCKS SET NEXT_ID = NEXT_ID + blockSize} followed by a SELECT,
+ * the row lock of the UPDATE makes that safe for several factories or JVMs on the same database,
+ * also if they use different block sizes.
+ */
+public class IdBlockSize implements SessionCustomizer {
+
+    public static final String PROPERTY = "dbp2.id-block-size";
+
+    @Override
+    public void customize(Session session) {
+        Object blockSize = session.getProperty(PROPERTY);
+        if (blockSize == null) {
+            return;
+        }
+        int size = Integer.parseInt(blockSize.toString());
+        if (size < 1) {
+            throw new IllegalArgumentException(PROPERTY + " must be at least 1");
+        }
+        session.getLogin().getDefaultSequence().setPreallocationSize(size);
+        for (Object sequence : session.getLogin().getSequences().values()) {
+            ((Sequence) sequence).setPreallocationSize(size);
+        }
+    }
+}
@@ -7,12 +7,16 @@ import java.util.List;
 
 @Entity
 public class Species {
+    // ids are reserved in blocks (hi-lo) from the row "Species" of ID_BLOCKS, see IdBlockSize
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "speciesIds")
+    @TableGenerator(name = "speciesIds", table = "ID_BLOCKS", pkColumnName = "ENTITY",
+            valueColumnName = "NEXT_ID", pkColumnValue = "Species", allocationSize = 50)
     private Integer id;
     private String name;
+    // not final: the woven class (see build.gradle) sets it
     @OneToMany (mappedBy = "species", cascade = CascadeType.ALL, orphanRemoval = true)
-    private final List<Animal> animals = new ArrayList<>();
+    private List<Animal> animals = new ArrayList<>();
 
     public Species(String name) {
         this.name = name;
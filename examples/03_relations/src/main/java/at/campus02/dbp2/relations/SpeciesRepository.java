@@ -0,0 +1,187 @@
+package at.campus02.dbp2.relations;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.jpa.JpaEntityManager;
+import org.eclipse.persistence.sessions.IdentityMapAccessor;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.TypedQuery;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Queries for the usual way through the relations: species, their animals, and the owner and
+ * countries of each animal. The fetch plan decides which of them are loaded with the query.
+ * Deleting a species with its animals goes without loading them.
+ */
+public class SpeciesRepository {
+
+    // Student.pet is lazy: without the path the pet of every owner would be loaded on its own when it is used
+    private static final String[] SPECIES_PATHS = {
+            "s.animals", "s.animals.owner", "s.animals.owner.pet", "s.animals.countries"};
+    private static final String[] ANIMAL_PATHS = {
+            "a.owner", "a.owner.pet", "a.countries"};
+
+    private final EntityManager manager;
+
+    public SpeciesRepository(EntityManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * All species ordered by id, with animals, owners and countries loaded according to the plan.
+     */
+    public List<Species> findAll(FetchPlan plan) {
+        TypedQuery<Species> query = manager.createQuery(
+                "SELECT s FROM Species s ORDER BY s.id", Species.class);
+        plan.applyTo(query, SPECIES_PATHS);
+        return query.getResultList();
+    }
+
+    /**
+     * The species with the given id (null if there is none), loaded like in {@link #findAll(FetchPlan)}.
+     */
+    public Species find(Integer id, FetchPlan plan) {
+        TypedQuery<Species> query = manager.createQuery(
+                "SELECT s FROM Species s WHERE s.id = :id", Species.class);
+        query.setParameter("id", id);
+        plan.applyTo(query, SPECIES_PATHS);
+        List<Species> result = query.getResultList();
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * The animals of a species ordered by id, with owners and countries loaded according to the plan.
+     */
+    public List<Animal> findAnimals(Species species, FetchPlan plan) {
+        TypedQuery<Animal> query = manager.createQuery(
+                "SELECT a FROM Animal a WHERE a.species = :species ORDER BY a.id", Animal.class);
+        query.setParameter("species", species);
+        plan.applyTo(query, ANIMAL_PATHS);
+        return query.getResultList();
+    }
+
+    /**
+     * Deletes the species with its animals and their links to countries, like {@code remove} of the species
+     * with its cascade and orphan removal does. Owners and countries stay, like with the cascade.
+     * The same seven statements however many animals the species has (the locked species, the ids of what
+     * changes, links, animals, species; EclipseLink adds a delete of the links itself): the cascade loads
+     * every animal and deletes it and its links on its own.
+     * <p>
+     * The species row is locked first, so no animal can be added to the species until the end of the
+     * transaction. An active transaction of the manager is joined and left to the caller, otherwise
+     * the delete runs in a transaction of its own.
+     * <p>
+     * Bulk statements bypass the entity manager, so only what they change is brought up to date: the species
+     * and its animals are detached (their pending changes are lost), owners and countries of the animals are
+     * refreshed if they are managed and evicted from the shared cache.
+     *
+     * @return false if the species does not exist (anymore)
+     */
+    public boolean delete(Species species) {
+        if (species == null || species.getId() == null) {
+            return false;
+        }
+        Set<Integer> owners = new HashSet<>();
+        Set<String> countries = new HashSet<>();
+        boolean joined = manager.getTransaction().isActive();
+        if (!joined) {
+            manager.getTransaction().begin();
+        }
+        try {
+            // the managed species, pending changes are not flushed before the lock
+            Species locked = manager.find(Species.class, species.getId(), LockModeType.PESSIMISTIC_WRITE,
+                    Map.of(QueryHints.FLUSH, HintValues.FALSE));
+            if (locked == null) {
+                return false;
+            }
+            Set<Integer> animals = new HashSet<>();
+            // the ids only, nothing is loaded; pending changes are not flushed before. Two queries:
+            // Derby takes seconds for the outer join of the join table in one
+            List<Object[]> withOwners = manager.createQuery(
+                    "SELECT a.id, o.id FROM Animal a LEFT JOIN a.owner o WHERE a.species.id = :id", Object[].class)
+                    .setParameter("id", species.getId())
+                    .setFlushMode(FlushModeType.COMMIT)
+                    .getResultList();
+            for (Object[] row : withOwners) {
+                animals.add((Integer) row[0]);
+                if (row[1] != null) {
+                    owners.add((Integer) row[1]);
+                }
+            }
+            countries.addAll(manager.createQuery(
+                    "SELECT DISTINCT c.name FROM Animal a JOIN a.countries c WHERE a.species.id = :id", String.class)
+                    .setParameter("id", species.getId())
+                    .setFlushMode(FlushModeType.COMMIT)
+                    .getResultList());
+            // invalidated in the shared cache first, see managed
+            Cache cache = manager.getEntityManagerFactory().getCache();
+            animals.forEach(id -> cache.evict(Animal.class, id));
+            owners.forEach(id -> cache.evict(Student.class, id));
+            countries.forEach(name -> cache.evict(Country.class, name));
+
+            // the commit must not write them (detaching the species detaches its loaded animals with the cascade)
+            manager.detach(locked);
+            animals.forEach(id -> detach(managed(Animal.class, id)));
+
+            // the join table has no entity, names as in the @JoinTable of Animal.countries;
+            // the same statement EclipseLink runs before the DELETE FROM Animal, which then finds no links
+            manager.createNativeQuery("DELETE FROM ANIMAL_COUNTRY WHERE EXISTS"
+                            + " (SELECT ID FROM ANIMAL WHERE SPECIES_ID = ? AND ID = ANIMAL_COUNTRY.animals_ID)")
+                    .setParameter(1, species.getId())
+                    .executeUpdate();
+            manager.createQuery("DELETE FROM Animal a WHERE a.species.id = :id")
+                    .setParameter("id", species.getId())
+                    .executeUpdate();
+            manager.createQuery("DELETE FROM Species s WHERE s.id = :id")
+                    .setParameter("id", species.getId())
+                    .executeUpdate();
+
+            // their pets and animals are gone, and the commit must not find the deleted animals through them
+            owners.forEach(id -> refresh(managed(Student.class, id)));
+            countries.forEach(name -> refresh(managed(Country.class, name)));
+            if (!joined) {
+                manager.getTransaction().commit();
+            }
+        } finally {
+            if (!joined && manager.getTransaction().isActive()) {
+                manager.getTransaction().rollback();
+            }
+        }
+        // again, they may have been read from the database in between; the JPQL statements invalidate
+        // animals and species in the shared cache themselves
+        Cache cache = manager.getEntityManagerFactory().getCache();
+        owners.forEach(id -> cache.evict(Student.class, id));
+        countries.forEach(name -> cache.evict(Country.class, name));
+        return true;
+    }
+
+    /**
+     * @return the entity if it is in the persistence context, null otherwise. The identity map of the
+     * transaction falls back to the shared cache and copies what it finds there into the persistence context,
+     * invalidated entities excepted: the entity has to be evicted from the shared cache before.
+     */
+    private <T> T managed(Class<T> type, Object id) {
+        IdentityMapAccessor identityMap = manager.unwrap(JpaEntityManager.class)
+                .getActiveSession().getIdentityMapAccessor();
+        return type.cast(identityMap.getFromIdentityMap(id, type, false));
+    }
+
+    private void detach(Object entity) {
+        if (entity != null) {
+            manager.detach(entity);
+        }
+    }
+
+    private void refresh(Object entity) {
+        if (entity != null) {
+            manager.refresh(entity);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package at.campus02.dbp2.relations;
+
+/**
+ * A species with the number of its animals, counted by the database (see SummaryQueries).
+ * No entity: nothing of it is managed or cached, no animal is loaded for the count.
+ */
+public class SpeciesSummary {
+
+    private final Integer id;
+    private final String name;
+    private final long animalCount;
+
+    public SpeciesSummary(Integer id, String name, long animalCount) {
+        this.id = id;
+        this.name = name;
+        this.animalCount = animalCount;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getAnimalCount() {
+        return animalCount;
+    }
+}
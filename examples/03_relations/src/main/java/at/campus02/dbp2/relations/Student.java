@@ -5,12 +5,17 @@ import java.util.Objects;
 
 @Entity
 public class Student {
+    // ids are reserved in blocks (hi-lo) from the row "Student" of ID_BLOCKS, see IdBlockSize
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "studentIds")
+    @TableGenerator(name = "studentIds", table = "ID_BLOCKS", pkColumnName = "ENTITY",
+            valueColumnName = "NEXT_ID", pkColumnValue = "Student", allocationSize = 50)
     private Integer id;
     private String name;
 
-    @OneToOne(mappedBy = "owner", cascade = CascadeType.ALL)
+    // lazy needs the woven class (see build.gradle): loading students does not load their pets,
+    // their species and so on. A query that needs them says so, see SpeciesRepository
+    @OneToOne(mappedBy = "owner", cascade = CascadeType.ALL, fetch = FetchType.LAZY)
     private Animal pet;
 
     public Integer getId() {
@@ -0,0 +1,238 @@
+package at.campus02.dbp2.relations;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class FetchPlanTests {
+
+    private EntityManagerFactory factory;
+    private EntityManager manager;
+    private StatementCounter statements;
+
+    @BeforeEach
+    public void setup() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        manager = factory.createEntityManager();
+        statements = StatementCounter.install(factory);
+    }
+
+    @AfterEach
+    public void teardown(){
+        if (manager.isOpen()){
+            manager.close();
+        }
+        if (factory.isOpen()){
+            factory.close();
+        }
+    }
+
+    /**
+     * Species with animals, every animal has an owner and lives in half of the countries.
+     * Afterwards nothing is cached, neither in the entity manager nor in the shared cache.
+     */
+    private List<Species> createSpecies(int species, int animalsPerSpecies, int countries) {
+        List<Country> allCountries = new ArrayList<>();
+        List<Species> allSpecies = new ArrayList<>();
+        manager.getTransaction().begin();
+        for (int c = 0; c < countries; c++) {
+            Country country = new Country("Country" + c);
+            manager.persist(country);
+            allCountries.add(country);
+        }
+        for (int s = 0; s < species; s++) {
+            Species current = new Species("Species" + s);
+            for (int a = 0; a < animalsPerSpecies; a++) {
+                Animal animal = new Animal("Animal" + s + "-" + a);
+                Student owner = new Student("Student" + s + "-" + a);
+                animal.setSpecies(current);
+                current.getAnimals().add(animal);
+                animal.setOwner(owner);
+                owner.setPet(animal);
+                for (int c = a % 2; c < countries; c += 2) {
+                    animal.getCountries().add(allCountries.get(c));
+                }
+                manager.persist(owner);
+            }
+            manager.persist(current);
+            allSpecies.add(current);
+        }
+        manager.getTransaction().commit();
+        manager.clear();
+        factory.getCache().evictAll();
+        return allSpecies;
+    }
+
+    /**
+     * Uses the relations owner, owner.pet and countries of every animal, returns the number of countries.
+     */
+    private static int walkAnimals(List<Animal> animals) {
+        int countries = 0;
+        for (Animal animal : animals) {
+            assertThat(animal.getOwner().getPet(), is(animal));
+            countries += animal.getCountries().size();
+        }
+        return countries;
+    }
+
+    private static int walk(List<Species> species) {
+        int countries = 0;
+        for (Species current : species) {
+            countries += walkAnimals(current.getAnimals());
+        }
+        return countries;
+    }
+
+    private int statementsToLoadAndWalk(FetchPlan plan, int species, int animalsPerSpecies) {
+        createSpecies(species, animalsPerSpecies, 4);
+        statements.reset();
+        List<Species> loaded = new SpeciesRepository(manager).findAll(plan);
+        int countries = walk(loaded);
+        int count = statements.count();
+
+        assertThat(loaded.size(), is(species));
+        assertThat(countries, is(species * animalsPerSpecies * 2));
+        return count;
+    }
+
+    private void restart() {
+        teardown();
+        setup();
+    }
+
+    //#region findAll
+
+    @Test
+    public void lazyPlanNeedsMoreStatementsForMoreEntities() {
+        //given
+        int few = statementsToLoadAndWalk(FetchPlan.LAZY, 2, 3);
+        restart();
+
+        //when
+        int many = statementsToLoadAndWalk(FetchPlan.LAZY, 10, 20);
+
+        //then: one for the species, then per species and per animal
+        assertThat(many, is(greaterThan(few)));
+        assertThat(many, is(greaterThan(10 * 20)));
+    }
+
+    @Test
+    public void batchPlanNeedsTheSameStatementsForMoreEntities() {
+        //given
+        int few = statementsToLoadAndWalk(FetchPlan.BATCH, 2, 3);
+        restart();
+
+        //when
+        int many = statementsToLoadAndWalk(FetchPlan.BATCH, 10, 20);
+
+        //then: species, animals, owners, their pets, countries
+        assertThat(statements.statements().toString(), few, is(5));
+        assertThat(statements.statements().toString(), many, is(5));
+    }
+
+    @Test
+    public void joinPlanNeedsTheSameStatementsForMoreEntities() {
+        //given
+        int few = statementsToLoadAndWalk(FetchPlan.JOIN, 2, 3);
+        restart();
+
+        //when
+        int many = statementsToLoadAndWalk(FetchPlan.JOIN, 10, 20);
+
+        //then
+        assertThat(statements.statements().toString(), few, is(1));
+        assertThat(statements.statements().toString(), many, is(1));
+    }
+
+    //#endregion
+
+    //#region find, findAnimals
+
+    @Test
+    public void findLoadsOneSpeciesWithItsAnimals() {
+        //given
+        List<Species> species = createSpecies(3, 5, 4);
+        SpeciesRepository repository = new SpeciesRepository(manager);
+        statements.reset();
+
+        //when
+        Species found = repository.find(species.get(1).getId(), FetchPlan.JOIN);
+
+        //then
+        assertThat(found.getName(), is("Species1"));
+        assertThat(walkAnimals(found.getAnimals()), is(5 * 2));
+        assertThat(statements.count(), is(1));
+        assertThat(repository.find(-1, FetchPlan.JOIN), is(nullValue()));
+    }
+
+    @Test
+    public void findAnimalsWithBatchPlanNeedsTheSameStatementsForMoreAnimals() {
+        //given
+        Species few = createSpecies(1, 3, 4).get(0);
+        statements.reset();
+        List<Animal> fewAnimals = new SpeciesRepository(manager).findAnimals(few, FetchPlan.BATCH);
+        walkAnimals(fewAnimals);
+        int fewStatements = statements.count();
+        restart();
+        Species many = createSpecies(1, 100, 4).get(0);
+        statements.reset();
+
+        //when
+        List<Animal> manyAnimals = new SpeciesRepository(manager).findAnimals(many, FetchPlan.BATCH);
+        walkAnimals(manyAnimals);
+
+        //then: animals, their species (the one passed in is detached), owners, their pets, countries
+        assertThat(fewAnimals.size(), is(3));
+        assertThat(manyAnimals.size(), is(100));
+        assertThat(manyAnimals.get(0).getName(), is("Animal0-0"));
+        assertThat(statements.statements().toString(), statements.count(), is(fewStatements));
+        assertThat(fewStatements, is(5));
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    /**
+     * Time to load all species and walk their animals, owners and countries, per fetch plan.
+     * {@code gradle benchmark --tests '*FetchPlanTests*' -Dbenchmark.species=20 -Dbenchmark.animals=50}
+     */
+    @Test
+    @Tag("benchmark")
+    public void loadAndWalkTimePerFetchPlan() {
+        int species = Integer.getInteger("benchmark.species", 20);
+        int animals = Integer.getInteger("benchmark.animals", 50);
+        createSpecies(species, animals, 20);
+        System.out.printf("%,d species x %,d animals, 20 countries, half of them per animal%n", species, animals);
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up
+            for (FetchPlan plan : FetchPlan.values()) {
+                manager.clear();
+                factory.getCache().evictAll();
+                statements.reset();
+                long start = System.nanoTime();
+                int countries = walk(new SpeciesRepository(manager).findAll(plan));
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (round == 1) {
+                    System.out.printf("%-5s %,8d ms  %,7d statements  (%,d countries)%n",
+                            plan, millis, statements.count(), countries);
+                }
+            }
+        }
+    }
+
+    //#endregion
+}
@@ -0,0 +1,65 @@
+package at.campus02.dbp2.relations;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class IdGenerationTests {
+
+    private EntityManagerFactory factory;
+    private EntityManager manager;
+
+    @BeforeEach
+    public void setup() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName",
+                Map.of(IdBlockSize.PROPERTY, "10"));
+        manager = factory.createEntityManager();
+    }
+
+    @AfterEach
+    public void teardown(){
+        if (manager.isOpen()){
+            manager.close();
+        }
+        if (factory.isOpen()){
+            factory.close();
+        }
+    }
+
+    private long nextId(String entity) {
+        return ((Number) manager.createNativeQuery("SELECT NEXT_ID FROM ID_BLOCKS WHERE ENTITY = ?")
+                .setParameter(1, entity)
+                .getSingleResult()).longValue();
+    }
+
+    @Test
+    public void everyEntityReservesBlocksOfTheConfiguredSizeFromItsOwnRow() {
+        //given
+        Species mammals = new Species("Mammals");
+        Student student = new Student("Hansi");
+
+        //when
+        manager.getTransaction().begin();
+        manager.persist(mammals);
+        manager.persist(student);
+        for (int i = 0; i < 11; i++) {
+            manager.persist(new Animal("Animal" + i));
+        }
+        manager.getTransaction().commit();
+
+        //then
+        assertThat(mammals.getId(), is(1));
+        assertThat(student.getId(), is(1));
+        assertThat(nextId("Species"), is(10L));
+        assertThat(nextId("Student"), is(10L));
+        assertThat(nextId("Animal"), is(20L));
+    }
+}
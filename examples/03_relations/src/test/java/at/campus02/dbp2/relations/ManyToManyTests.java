@@ -3,13 +3,25 @@ package at.campus02.dbp2.relations;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class ManyToManyTests {
@@ -89,4 +101,223 @@ public class ManyToManyTests {
     }
 
 
+
+    //#region set semantics
+
+    private Animal persistAnimalInCountries(String name, int countries) {
+        Animal animal = new Animal(name);
+        manager.getTransaction().begin();
+        manager.persist(animal);
+        for (int i = 0; i < countries; i++) {
+            Country country = new Country(name + "-Country" + i);
+            manager.persist(country);
+            animal.getCountries().add(country);
+            country.getAnimals().add(animal);
+        }
+        manager.getTransaction().commit();
+        return animal;
+    }
+
+    private long links() {
+        return ((Number) manager.createNativeQuery("SELECT COUNT(*) FROM ANIMAL_COUNTRY").getSingleResult()).longValue();
+    }
+
+    @Test
+    public void addingOrRemovingOneLinkIsOneStatement() {
+        // given: installed before the first transaction, the entity manager keeps the log it started with
+        StatementCounter statements = StatementCounter.install(factory);
+        Animal cat = persistAnimalInCountries("cat", 50);
+        Country austria = new Country("Austria");
+        manager.getTransaction().begin();
+        manager.persist(austria);
+        manager.getTransaction().commit();
+        statements.reset();
+
+        // when
+        manager.getTransaction().begin();
+        cat.getCountries().add(austria);
+        austria.getAnimals().add(cat);
+        manager.getTransaction().commit();
+
+        // then
+        assertThat(statements.statements().toString(), statements.count(), is(1));
+        assertThat(links(), is(51L));
+
+        // and when
+        statements.reset();
+        manager.getTransaction().begin();
+        cat.getCountries().remove(austria);
+        austria.getAnimals().remove(cat);
+        manager.getTransaction().commit();
+
+        // then
+        assertThat(statements.statements().toString(), statements.count(), is(1));
+        assertThat(links(), is(50L));
+    }
+
+    @Test
+    public void linkIsStoredOnce() {
+        // given
+        Animal cat = new Animal("cat");
+        Country austria = new Country("Austria");
+
+        // when: added twice, from an equal country as well
+        cat.getCountries().add(austria);
+        cat.getCountries().add(austria);
+        cat.getCountries().add(new Country("Austria"));
+        austria.getAnimals().add(cat);
+        manager.getTransaction().begin();
+        manager.persist(austria);
+        manager.getTransaction().commit();
+
+        // then: the id assigned by persist does not lose the cat in the set
+        assertThat(austria.getAnimals().contains(cat), is(true));
+        assertThat(cat.getCountries().size(), is(1));
+        assertThat(links(), is(1L));
+    }
+
+    @Test
+    public void newAnimalsWithTheSameNameAreDifferentAnimals() {
+        // given
+        Country austria = new Country("Austria");
+        Animal rex = new Animal("Rex");
+        Animal otherRex = new Animal("Rex");
+
+        // when
+        austria.getAnimals().add(rex);
+        austria.getAnimals().add(otherRex);
+        rex.getCountries().add(austria);
+        otherRex.getCountries().add(austria);
+        manager.getTransaction().begin();
+        manager.persist(austria);
+        manager.getTransaction().commit();
+        // renamed while in the set
+        rex.setName("Rex 2");
+
+        // then: both are stored, and still found in the set after persist and rename
+        assertThat(austria.getAnimals().size(), is(2));
+        assertThat(austria.getAnimals().contains(rex), is(true));
+        assertThat(austria.getAnimals().contains(otherRex), is(true));
+        assertThat(links(), is(2L));
+        manager.clear();
+        assertThat(manager.find(Animal.class, rex.getId()), is(rex));
+    }
+
+    @Test
+    public void joinTableHasAUniqueKeyAndAnIndexForBothDirections() throws SQLException {
+        // given
+        manager.getTransaction().begin();
+        Connection connection = manager.unwrap(Connection.class);
+
+        // when
+        Map<String, List<String>> indexes = new LinkedHashMap<>();
+        List<String> unique = new ArrayList<>();
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet rows = metaData.getIndexInfo(null, null, "ANIMAL_COUNTRY", false, false)) {
+            while (rows.next()) {
+                String index = rows.getString("INDEX_NAME");
+                indexes.computeIfAbsent(index, name -> new ArrayList<>()).add(rows.getString("COLUMN_NAME"));
+                if (!rows.getBoolean("NON_UNIQUE") && !unique.contains(index)) {
+                    unique.add(index);
+                }
+            }
+        }
+        manager.getTransaction().rollback();
+
+        // then
+        List<List<String>> uniqueColumns = new ArrayList<>();
+        unique.forEach(index -> uniqueColumns.add(indexes.get(index)));
+        List<String> firstColumns = new ArrayList<>();
+        indexes.values().forEach(columns -> firstColumns.add(columns.get(0)));
+        assertThat(indexes.toString(), uniqueColumns, hasItem(Arrays.asList("ANIMALS_ID", "COUNTRIES_NAME")));
+        assertThat(indexes.toString(), firstColumns, hasItem("COUNTRIES_NAME"));
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    /**
+     * Adds and removes single links on an animal with many countries, and on a country with many animals.
+     * {@code gradle benchmark --tests '*ManyToManyTests*' -Dbenchmark.links=5000}
+     */
+    @Test
+    @Tag("benchmark")
+    public void addAndRemoveOneLinkOnLargeCollections() {
+        int links = Integer.getInteger("benchmark.links", 2_000);
+        StatementCounter statements = StatementCounter.install(factory);
+
+        // one animal in many countries, one country with many animals
+        Animal traveller = new Animal("traveller");
+        Country everywhere = new Country("Everywhere");
+        manager.getTransaction().begin();
+        manager.persist(traveller);
+        manager.persist(everywhere);
+        for (int i = 0; i < links; i++) {
+            Country country = new Country("Country" + i);
+            manager.persist(country);
+            traveller.getCountries().add(country);
+            country.getAnimals().add(traveller);
+
+            Animal animal = new Animal("Animal" + i);
+            manager.persist(animal);
+            animal.getCountries().add(everywhere);
+            everywhere.getAnimals().add(animal);
+        }
+        manager.getTransaction().commit();
+        Country extraCountry = new Country("Extra");
+        Animal extraAnimal = new Animal("extra");
+        manager.getTransaction().begin();
+        manager.persist(extraCountry);
+        manager.persist(extraAnimal);
+        manager.getTransaction().commit();
+        manager.clear();
+        factory.getCache().evictAll();
+
+        System.out.printf("%,d links per collection%n", links);
+        for (int round = 0; round < 3; round++) {
+            // the first rounds warm up
+            boolean print = round == 2;
+            Animal animal = manager.find(Animal.class, traveller.getId());
+            Country country = manager.find(Country.class, extraCountry.getName());
+            animal.getCountries().size();
+            country.getAnimals().size();
+            measure("animal: add country", print, statements, () -> {
+                animal.getCountries().add(country);
+                country.getAnimals().add(animal);
+            });
+            measure("animal: remove country", print, statements, () -> {
+                animal.getCountries().remove(country);
+                country.getAnimals().remove(animal);
+            });
+
+            Country large = manager.find(Country.class, everywhere.getName());
+            Animal other = manager.find(Animal.class, extraAnimal.getId());
+            large.getAnimals().size();
+            other.getCountries().size();
+            measure("country: add animal", print, statements, () -> {
+                large.getAnimals().add(other);
+                other.getCountries().add(large);
+            });
+            measure("country: remove animal", print, statements, () -> {
+                large.getAnimals().remove(other);
+                other.getCountries().remove(large);
+            });
+            manager.clear();
+        }
+    }
+
+    private void measure(String name, boolean print, StatementCounter statements, Runnable change) {
+        manager.getTransaction().begin();
+        statements.reset();
+        long start = System.nanoTime();
+        change.run();
+        manager.getTransaction().commit();
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        if (print) {
+            System.out.printf("%-24s %,9d µs  %,5d statements%n", name, micros, statements.count());
+        }
+    }
+
+    //#endregion
 }
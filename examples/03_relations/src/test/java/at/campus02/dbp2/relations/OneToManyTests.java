@@ -3,12 +3,15 @@ package at.campus02.dbp2.relations;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -216,4 +219,249 @@ public class OneToManyTests {
 
     }
 
+    //#region delete species with animals
+
+    private long count(String table) {
+        return ((Number) manager.createNativeQuery("SELECT COUNT(*) FROM " + table).getSingleResult()).longValue();
+    }
+
+    /**
+     * Fish with Nemo and Dory, both owned by students and living in Australia, Dory also in the USA.
+     * Mammals with Leo, living in Australia too.
+     */
+    private Species createFishAndMammals() {
+        Country australia = new Country("Australia");
+        Country usa = new Country("USA");
+        Species fish = new Species("Fish");
+        Species mammals = new Species("Mammals");
+        Animal nemo = new Animal("Nemo");
+        Animal dory = new Animal("Dory");
+        Animal leo = new Animal("Leo");
+        List<Student> owners = new ArrayList<>();
+        for (Animal animal : List.of(nemo, dory)) {
+            Student owner = new Student("Owner of " + animal.getName());
+            owners.add(owner);
+            animal.setOwner(owner);
+            owner.setPet(animal);
+            animal.setSpecies(fish);
+            fish.getAnimals().add(animal);
+            animal.getCountries().add(australia);
+            australia.getAnimals().add(animal);
+        }
+        dory.getCountries().add(usa);
+        usa.getAnimals().add(dory);
+        leo.setSpecies(mammals);
+        mammals.getAnimals().add(leo);
+        leo.getCountries().add(australia);
+        australia.getAnimals().add(leo);
+
+        manager.getTransaction().begin();
+        manager.persist(australia);
+        manager.persist(usa);
+        manager.persist(fish);
+        manager.persist(mammals);
+        owners.forEach(manager::persist);
+        manager.getTransaction().commit();
+        manager.clear();
+        return fish;
+    }
+
+    /**
+     * Checks the database: the cascade leaves the countries in the shared cache with their deleted animals
+     * (Country.animals is the inverse side), so it is evicted before.
+     */
+    private void assertFishAreDeleted(Species fish) {
+        manager.clear();
+        factory.getCache().evictAll();
+        assertThat(manager.find(Species.class, fish.getId()), is(nullValue()));
+        assertThat(count("SPECIES"), is(1L));
+        assertThat(count("ANIMAL"), is(1L));
+        // the owners and countries stay, only the links of the fish are gone
+        assertThat(count("STUDENT"), is(2L));
+        assertThat(count("COUNTRY"), is(2L));
+        assertThat(count("ANIMAL_COUNTRY"), is(1L));
+        Country australia = manager.find(Country.class, "Australia");
+        assertThat(australia.getAnimals().size(), is(1));
+        assertThat(australia.getAnimals().iterator().next().getName(), is("Leo"));
+        assertThat(manager.find(Country.class, "USA").getAnimals().size(), is(0));
+    }
+
+    @Test
+    public void removeSpeciesDeletesAnimalsAndTheirLinksWithCascade() {
+        //given
+        Species fish = createFishAndMammals();
+
+        //when
+        manager.getTransaction().begin();
+        manager.remove(manager.find(Species.class, fish.getId()));
+        manager.getTransaction().commit();
+
+        //then
+        assertFishAreDeleted(fish);
+    }
+
+    @Test
+    public void bulkDeleteOfSpeciesDeletesTheSameAsTheCascade() {
+        //given
+        Species fish = createFishAndMammals();
+        // loaded before: the shared cache knows the animals of Australia
+        assertThat(manager.find(Country.class, "Australia").getAnimals().size(), is(3));
+
+        //when
+        boolean deleted = new SpeciesRepository(manager).delete(fish);
+
+        //then
+        assertThat(deleted, is(true));
+        // the bulk delete evicts the countries itself
+        assertThat(manager.find(Country.class, "Australia").getAnimals().size(), is(1));
+        assertFishAreDeleted(fish);
+        assertThat(new SpeciesRepository(manager).delete(fish), is(false));
+    }
+
+    @Test
+    public void bulkDeleteOfSpeciesOnlyUpdatesTheAffectedEntitiesOfTheManager() {
+        //given
+        Species fish = createFishAndMammals();
+        Species mammals = manager.createQuery("SELECT s FROM Species s WHERE s.name = 'Mammals'", Species.class)
+                .getSingleResult();
+        Animal leo = mammals.getAnimals().get(0);
+        Country australia = manager.find(Country.class, "Australia");
+        Animal nemo = manager.createQuery("SELECT a FROM Animal a WHERE a.name = 'Nemo'", Animal.class)
+                .getSingleResult();
+        Student owner = nemo.getOwner();
+
+        //when
+        boolean deleted = new SpeciesRepository(manager).delete(fish);
+
+        //then: the other species stays managed, owners and countries no longer know the deleted animals
+        assertThat(deleted, is(true));
+        assertThat(manager.contains(mammals), is(true));
+        assertThat(manager.contains(leo), is(true));
+        assertThat(manager.contains(nemo), is(false));
+        assertThat(manager.contains(australia), is(true));
+        assertThat(australia.getAnimals().size(), is(1));
+        assertThat(australia.getAnimals().contains(leo), is(true));
+        assertThat(manager.contains(owner), is(true));
+        assertThat(owner.getPet(), is(nullValue()));
+        assertFishAreDeleted(fish);
+    }
+
+    @Test
+    public void bulkDeleteOfSpeciesJoinsAnActiveTransaction() {
+        //given
+        Species fish = createFishAndMammals();
+        manager.getTransaction().begin();
+
+        //when
+        boolean deleted = new SpeciesRepository(manager).delete(fish);
+
+        //then: the caller decides
+        assertThat(deleted, is(true));
+        assertThat(manager.getTransaction().isActive(), is(true));
+        manager.getTransaction().rollback();
+        manager.clear();
+        assertThat(manager.find(Species.class, fish.getId()), is(notNullValue()));
+        assertThat(count("ANIMAL"), is(3L));
+
+        manager.getTransaction().begin();
+        assertThat(new SpeciesRepository(manager).delete(fish), is(true));
+        manager.getTransaction().commit();
+        assertFishAreDeleted(fish);
+    }
+
+    @Test
+    public void bulkDeleteOfSpeciesNeedsSevenStatementsForAnyNumberOfAnimals() {
+        //given
+        StatementCounter statements = StatementCounter.install(factory);
+        Species species = new Species("Many");
+        Country country = new Country("Everywhere");
+        manager.getTransaction().begin();
+        manager.persist(country);
+        for (int i = 0; i < 200; i++) {
+            Animal animal = new Animal("Animal" + i);
+            animal.setSpecies(species);
+            species.getAnimals().add(animal);
+            animal.getCountries().add(country);
+        }
+        manager.persist(species);
+        manager.getTransaction().commit();
+        // a managed owner or country would be refreshed on top
+        manager.clear();
+        statements.reset();
+
+        //when
+        boolean deleted = new SpeciesRepository(manager).delete(species);
+
+        //then
+        assertThat(deleted, is(true));
+        assertThat(statements.statements().toString(), statements.count(), is(7));
+        // the species row is locked before anything else
+        assertThat(statements.statements().get(0), containsString("FOR UPDATE"));
+        assertThat(count("ANIMAL"), is(0L));
+        assertThat(count("ANIMAL_COUNTRY"), is(0L));
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    /**
+     * Time to delete a species with its animals (each in 5 countries), with the cascade and in bulk.
+     * {@code gradle benchmark --tests '*OneToManyTests*' -Dbenchmark.animals=100,1000,5000}
+     */
+    @Test
+    @Tag("benchmark")
+    public void deleteTimeAgainstAnimalCount() {
+        String[] sizes = System.getProperty("benchmark.animals", "100,1000,5000").split(",");
+        StatementCounter statements = StatementCounter.install(factory);
+        List<Country> countries = new ArrayList<>();
+        manager.getTransaction().begin();
+        for (int c = 0; c < 5; c++) {
+            Country country = new Country("Country" + c);
+            manager.persist(country);
+            countries.add(country);
+        }
+        manager.getTransaction().commit();
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up
+            for (String size : sizes) {
+                int animals = Integer.parseInt(size.trim());
+                for (boolean bulk : new boolean[]{false, true}) {
+                    Species species = new Species("Species" + animals);
+                    manager.getTransaction().begin();
+                    for (int a = 0; a < animals; a++) {
+                        Animal animal = new Animal("Animal" + a);
+                        animal.setSpecies(species);
+                        species.getAnimals().add(animal);
+                        animal.getCountries().addAll(countries);
+                    }
+                    manager.persist(species);
+                    manager.getTransaction().commit();
+                    manager.clear();
+                    factory.getCache().evictAll();
+                    statements.reset();
+
+                    long start = System.nanoTime();
+                    if (bulk) {
+                        new SpeciesRepository(manager).delete(species);
+                    } else {
+                        manager.getTransaction().begin();
+                        manager.remove(manager.find(Species.class, species.getId()));
+                        manager.getTransaction().commit();
+                    }
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    int statementCount = statements.count();
+                    manager.clear();
+                    assertThat(count("ANIMAL"), is(0L));
+                    if (round == 1) {
+                        System.out.printf("%,7d animals  %-7s %,8d ms  %,7d statements%n",
+                                animals, bulk ? "bulk" : "cascade", millis, statementCount);
+                    }
+                }
+            }
+        }
+    }
+
+    //#endregion
 }
@@ -1,15 +1,22 @@
 package at.campus02.dbp2.relations;
 
+import org.eclipse.persistence.internal.weaving.PersistenceWeaved;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 
@@ -133,4 +140,149 @@ public class OneToOneTests {
         assertThat(hansiFromDb.getPet(), is(bunny));
 
     }
+
+    //#region lazy owner and pet
+
+    /**
+     * Students with a pet each, all pets are of the same species.
+     * Afterwards nothing is cached, neither in the entity manager nor in the shared cache.
+     */
+    private void createStudentsWithPets(int students) {
+        Species species = new Species("Species");
+        manager.getTransaction().begin();
+        manager.persist(species);
+        for (int i = 0; i < students; i++) {
+            Student student = new Student("Student" + i);
+            Animal pet = new Animal("Pet" + i);
+            pet.setOwner(student);
+            student.setPet(pet);
+            pet.setSpecies(species);
+            species.getAnimals().add(pet);
+            manager.persist(student);
+            if (i % 1000 == 999) {
+                manager.flush();
+            }
+        }
+        manager.getTransaction().commit();
+        manager.clear();
+        factory.getCache().evictAll();
+    }
+
+    private List<Student> loadStudents() {
+        return manager.createQuery("SELECT s FROM Student s", Student.class).getResultList();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void entitiesAreWoven() {
+        // without weaving (e.g. the classes compiled by an IDE instead of gradle) owner and pet are eager again
+        assertThat(new Student(), is(instanceOf(PersistenceWeaved.class)));
+        assertThat(new Animal(), is(instanceOf(PersistenceWeaved.class)));
+    }
+
+    @Test
+    public void loadingStudentsDoesNotLoadTheirPets() {
+        //given
+        StatementCounter statements = StatementCounter.install(factory);
+        createStudentsWithPets(200);
+        PersistenceUnitUtil util = factory.getPersistenceUnitUtil();
+        statements.reset();
+
+        //when
+        List<Student> students = loadStudents();
+
+        //then
+        assertThat(students.size(), is(200));
+        assertThat(statements.statements().toString(), statements.count(), is(1));
+        for (Student student : students) {
+            assertThat(util.isLoaded(student, "pet"), is(false));
+        }
+
+        // and when: the pet is used
+        Student student = students.get(0);
+        Animal pet = student.getPet();
+
+        //then: one statement for the pet (and its species), the owner is the loaded student
+        assertThat(util.isLoaded(student, "pet"), is(true));
+        assertThat(pet.getName(), is("Pet" + student.getName().substring("Student".length())));
+        assertThat(pet.getOwner(), is(sameInstance(student)));
+        assertThat(statements.statements().toString(), statements.count(), is(3));
+    }
+
+    @Test
+    public void loadingAnimalDoesNotLoadItsOwner() {
+        //given
+        Student hansi = new Student("Hansi");
+        Animal bunny = new Animal("Bunny");
+        bunny.setOwner(hansi);
+        hansi.setPet(bunny);
+        manager.getTransaction().begin();
+        manager.persist(hansi);
+        manager.getTransaction().commit();
+        manager.clear();
+        factory.getCache().evictAll();
+
+        //when
+        Animal bunnyFromDb = manager.find(Animal.class, bunny.getId());
+
+        //then
+        assertThat(factory.getPersistenceUnitUtil().isLoaded(bunnyFromDb, "owner"), is(false));
+        assertThat(bunnyFromDb.getOwner(), is(hansi));
+        assertThat(factory.getPersistenceUnitUtil().isLoaded(bunnyFromDb, "owner"), is(true));
+    }
+
+    //#endregion
+
+    //#region benchmark
+
+    /**
+     * Statements, time and heap (entity manager and shared cache) to load all students,
+     * and then to use their pets.
+     * {@code gradle benchmark --tests '*OneToOneTests*' -Dbenchmark.students=10000}
+     */
+    @Test
+    @Tag("benchmark")
+    public void loadStudentsAndTheirPets() {
+        int count = Integer.getInteger("benchmark.students", 10_000);
+        StatementCounter statements = StatementCounter.install(factory);
+        createStudentsWithPets(count);
+        System.out.printf("%,d students with a pet each%n", count);
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up
+            manager.clear();
+            factory.getCache().evictAll();
+            statements.reset();
+            long heap = usedHeap();
+            long start = System.nanoTime();
+            List<Student> students = loadStudents();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            int loadStatements = statements.count();
+            long loadHeap = usedHeap() - heap;
+
+            statements.reset();
+            start = System.nanoTime();
+            int pets = 0;
+            for (Student student : students) {
+                pets += student.getPet().getName().isEmpty() ? 0 : 1;
+            }
+            long petMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            long petHeap = usedHeap() - heap;
+            if (round == 1) {
+                System.out.printf("load students  %,7d ms  %,7d statements  %,8d KB%n",
+                        millis, loadStatements, loadHeap / 1024);
+                System.out.printf("use %,d pets  %,7d ms  %,7d statements  %,8d KB in total%n",
+                        pets, petMillis, statements.count(), petHeap / 1024);
+            }
+        }
+    }
+
+    //#endregion
 }
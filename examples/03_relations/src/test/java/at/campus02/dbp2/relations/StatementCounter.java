@@ -0,0 +1,73 @@
+package at.campus02.dbp2.relations;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.logging.AbstractSessionLog;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.logging.SessionLogEntry;
+import org.eclipse.persistence.sessions.server.Server;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the SQL statements EclipseLink sends to the database, to pin down how many round trips
+ * an operation needs. Installed as session log of the factory, all other messages go to the log
+ * that was installed before.
+ */
+class StatementCounter extends AbstractSessionLog {
+
+    private final SessionLog previous;
+    private final List<String> statements = new ArrayList<>();
+
+    private StatementCounter(SessionLog previous) {
+        this.previous = previous;
+    }
+
+    static StatementCounter install(EntityManagerFactory factory) {
+        Server session = JpaHelper.getServerSession(factory);
+        StatementCounter counter = new StatementCounter(session.getSessionLog());
+        session.setSessionLog(counter);
+        return counter;
+    }
+
+    @Override
+    public boolean shouldLog(int level, String category) {
+        return SessionLog.SQL.equals(category) || previous.shouldLog(level, category);
+    }
+
+    @Override
+    public void log(SessionLogEntry entry) {
+        if (SessionLog.SQL.equals(entry.getNameSpace())) {
+            // the statements are logged as FINE, SQL warnings (e.g. Derby's "no row found") as FINEST
+            if (entry.getLevel() >= SessionLog.FINE) {
+                synchronized (statements) {
+                    statements.add(entry.getMessage());
+                }
+            }
+        } else if (previous.shouldLog(entry.getLevel(), entry.getNameSpace())) {
+            previous.log(entry);
+        }
+    }
+
+    int count() {
+        synchronized (statements) {
+            return statements.size();
+        }
+    }
+
+    /**
+     * The statements since the last reset, e.g. for the message of a failed assertion.
+     */
+    List<String> statements() {
+        synchronized (statements) {
+            return new ArrayList<>(statements);
+        }
+    }
+
+    void reset() {
+        synchronized (statements) {
+            statements.clear();
+        }
+    }
+}
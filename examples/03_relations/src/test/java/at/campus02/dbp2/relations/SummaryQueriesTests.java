@@ -0,0 +1,219 @@
+package at.campus02.dbp2.relations;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SummaryQueriesTests {
+
+    private EntityManagerFactory factory;
+    private EntityManager manager;
+    private StatementCounter statements;
+
+    @BeforeEach
+    public void setup() {
+        factory = Persistence.createEntityManagerFactory("persistenceUnitName");
+        manager = factory.createEntityManager();
+        statements = StatementCounter.install(factory);
+    }
+
+    @AfterEach
+    public void teardown(){
+        if (manager.isOpen()){
+            manager.close();
+        }
+        if (factory.isOpen()){
+            factory.close();
+        }
+    }
+
+    /**
+     * Species with 0, 1, 2, ... animals, animal a of a species lives in the first a % (countries + 1) countries.
+     * Afterwards nothing is cached, neither in the entity manager nor in the shared cache.
+     */
+    private List<Species> createSpecies(int species, int countries) {
+        List<Country> allCountries = new ArrayList<>();
+        List<Species> allSpecies = new ArrayList<>();
+        manager.getTransaction().begin();
+        for (int c = 0; c < countries; c++) {
+            Country country = new Country("Country" + c);
+            manager.persist(country);
+            allCountries.add(country);
+        }
+        for (int s = 0; s < species; s++) {
+            Species current = new Species("Species" + s);
+            for (int a = 0; a < s; a++) {
+                Animal animal = new Animal("Animal" + s + "-" + a);
+                animal.setSpecies(current);
+                current.getAnimals().add(animal);
+                animal.getCountries().addAll(allCountries.subList(0, a % (countries + 1)));
+            }
+            manager.persist(current);
+            allSpecies.add(current);
+        }
+        manager.getTransaction().commit();
+        manager.clear();
+        factory.getCache().evictAll();
+        return allSpecies;
+    }
+
+    private boolean nothingIsCached(List<Species> species) {
+        for (Species current : species) {
+            if (factory.getCache().contains(Species.class, current.getId())) {
+                return false;
+            }
+            for (Animal animal : current.getAnimals()) {
+                if (factory.getCache().contains(Animal.class, animal.getId())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void speciesSummariesCountTheAnimalsOfEachSpecies() {
+        //given
+        List<Species> species = createSpecies(4, 3);
+        statements.reset();
+
+        //when
+        List<SpeciesSummary> summaries = new SummaryQueries(manager).findSpeciesSummaries();
+
+        //then: also the species without animals
+        assertThat(summaries.size(), is(4));
+        for (int s = 0; s < 4; s++) {
+            assertThat(summaries.get(s).getId(), is(species.get(s).getId()));
+            assertThat(summaries.get(s).getName(), is("Species" + s));
+            assertThat(summaries.get(s).getAnimalCount(), is((long) s));
+        }
+        assertThat(statements.statements().toString(), statements.count(), is(1));
+        assertThat(nothingIsCached(species), is(true));
+    }
+
+    @Test
+    public void animalSummariesCountTheCountriesOfEachAnimal() {
+        //given
+        List<Species> species = createSpecies(6, 3);
+        statements.reset();
+
+        //when
+        List<AnimalSummary> summaries = new SummaryQueries(manager).findAnimalSummaries(species.get(5));
+
+        //then: also the animal without countries
+        assertThat(summaries.size(), is(5));
+        for (int a = 0; a < 5; a++) {
+            assertThat(summaries.get(a).getId(), is(species.get(5).getAnimals().get(a).getId()));
+            assertThat(summaries.get(a).getName(), is("Animal5-" + a));
+            assertThat(summaries.get(a).getCountryCount(), is((long) (a % 4)));
+        }
+        assertThat(statements.statements().toString(), statements.count(), is(1));
+        assertThat(nothingIsCached(species), is(true));
+        assertThat(new SummaryQueries(manager).findAnimalSummaries(species.get(0)).size(), is(0));
+    }
+
+    //#region benchmark
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Time, statements and heap (results, entity manager and shared cache) of one way to get the counts.
+     */
+    private void measure(String name, boolean print, Supplier<Long> counts) {
+        manager.clear();
+        factory.getCache().evictAll();
+        statements.reset();
+        long heap = usedHeap();
+        long start = System.nanoTime();
+        long total = counts.get();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int statementCount = statements.count();
+        long retained = usedHeap() - heap;
+        if (print) {
+            System.out.printf("%-32s %,7d ms  %,7d statements  %,8d KB  (total %,d)%n",
+                    name, millis, statementCount, retained / 1024, total);
+        }
+    }
+
+    /**
+     * Animals per species and countries per animal, counted by navigating the entities (lazy and with
+     * the BATCH fetch plan) and with the summary queries.
+     * {@code gradle benchmark --tests '*SummaryQueriesTests*' -Dbenchmark.species=200}
+     */
+    @Test
+    @Tag("benchmark")
+    public void countsByNavigationAndBySummaryQueries() {
+        int speciesCount = Integer.getInteger("benchmark.species", 200);
+        List<Species> species = createSpecies(speciesCount, 10);
+        long animals = (long) speciesCount * (speciesCount - 1) / 2;
+        System.out.printf("%,d species with 0 to %,d animals (%,d in total), up to 10 countries per animal%n",
+                speciesCount, speciesCount - 1, animals);
+        Species largest = species.get(speciesCount - 1);
+        // the objects of each measurement stay reachable until it is done, the results are kept as well
+        List<Object> results = new ArrayList<>();
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up
+            boolean print = round == 1;
+            measure("animals per species: navigation", print, () -> {
+                List<Species> loaded = manager.createQuery("SELECT s FROM Species s ORDER BY s.id", Species.class)
+                        .getResultList();
+                results.add(loaded);
+                long total = 0;
+                for (Species current : loaded) {
+                    total += current.getAnimals().size();
+                }
+                return total;
+            });
+            measure("animals per species: batch", print, () -> {
+                List<Species> loaded = new SpeciesRepository(manager).findAll(FetchPlan.BATCH);
+                results.add(loaded);
+                long total = 0;
+                for (Species current : loaded) {
+                    total += current.getAnimals().size();
+                }
+                return total;
+            });
+            measure("animals per species: summaries", print, () -> {
+                List<SpeciesSummary> summaries = new SummaryQueries(manager).findSpeciesSummaries();
+                results.add(summaries);
+                return summaries.stream().mapToLong(SpeciesSummary::getAnimalCount).sum();
+            });
+            measure("countries per animal: navigation", print, () -> {
+                Species loaded = manager.find(Species.class, largest.getId());
+                results.add(loaded);
+                long total = 0;
+                for (Animal animal : loaded.getAnimals()) {
+                    total += animal.getCountries().size();
+                }
+                return total;
+            });
+            measure("countries per animal: summaries", print, () -> {
+                List<AnimalSummary> summaries = new SummaryQueries(manager).findAnimalSummaries(largest);
+                results.add(summaries);
+                return summaries.stream().mapToLong(AnimalSummary::getCountryCount).sum();
+            });
+            results.clear();
+        }
+    }
+
+    //#endregion
+}